@@ -1,6 +1,8 @@
 package com.github.bitsapling.sapling.autoconfig;
 
+import com.github.bitsapling.sapling.crontask.FullScrapeSnapshot;
 import com.github.bitsapling.sapling.crontask.PeersCleanup;
+import com.github.bitsapling.sapling.crontask.TorrentStatsReconcile;
 import org.jetbrains.annotations.NotNull;
 import org.quartz.*;
 import org.quartz.spi.JobFactory;
@@ -34,6 +36,42 @@ public class QuartzConfig {
                 .build();
     }
 
+    @Bean
+    public JobDetail torrentStatsReconcileJobDetail() {
+        return JobBuilder.newJob(TorrentStatsReconcile.class)
+                .withIdentity("torrent_stats_reconcile")
+                .withDescription("Torrent Stats Reconciliation")
+                .storeDurably()
+                .build();
+    }
+
+    @Bean
+    public Trigger torrentStatsReconcileTrigger() {
+        return TriggerBuilder.newTrigger()
+                .forJob(torrentStatsReconcileJobDetail())
+                .withSchedule(SimpleScheduleBuilder.repeatMinutelyForever(10))
+                .startAt(DateBuilder.futureDate(10, DateBuilder.IntervalUnit.MINUTE))
+                .build();
+    }
+
+    @Bean
+    public JobDetail fullScrapeSnapshotJobDetail() {
+        return JobBuilder.newJob(FullScrapeSnapshot.class)
+                .withIdentity("full_scrape_snapshot")
+                .withDescription("Full Scrape Snapshot")
+                .storeDurably()
+                .build();
+    }
+
+    @Bean
+    public Trigger fullScrapeSnapshotTrigger(TrackerProperties trackerProperties) {
+        return TriggerBuilder.newTrigger()
+                .forJob(fullScrapeSnapshotJobDetail())
+                .withSchedule(SimpleScheduleBuilder.repeatMinutelyForever(Math.max(1, trackerProperties.getFullScrape().getInterval())))
+                .startNow()
+                .build();
+    }
+
     @Bean
     public JobFactory jobFactory(ApplicationContext applicationContext) {
         AutowiringSpringBeanJobFactory jobFactory = new AutowiringSpringBeanJobFactory();
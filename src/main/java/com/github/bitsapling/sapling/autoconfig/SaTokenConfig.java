@@ -1,6 +1,10 @@
 package com.github.bitsapling.sapling.autoconfig;
 
 import cn.dev33.satoken.interceptor.SaInterceptor;
+import cn.dev33.satoken.stp.StpLogic;
+import cn.dev33.satoken.stp.StpUtil;
+import com.github.bitsapling.sapling.service.GroupPermissionService;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -14,4 +18,15 @@ public class SaTokenConfig implements WebMvcConfigurer {
                 .excludePathPatterns("/auth/**")
                 .excludePathPatterns("/torrent/download/**");
     }
+
+    @Bean
+    public StpLogic stpLogic(GroupPermissionService groupPermissionService) {
+        // Permission checks are a bit test on the cached group of the user, instead of scanning its permission list
+        return new StpLogic(StpUtil.TYPE) {
+            @Override
+            public boolean hasPermission(Object loginId, String permission) {
+                return groupPermissionService.hasPermission(Long.parseLong(String.valueOf(loginId)), permission);
+            }
+        };
+    }
 }
@@ -0,0 +1,182 @@
+package com.github.bitsapling.sapling.autoconfig;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Node-level tracker settings from application.yml (sapling.tracker.*).
+ * Runtime adjustable settings live in {@link com.github.bitsapling.sapling.config.TrackerConfig} instead.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "sapling.tracker")
+@Data
+public class TrackerProperties {
+    private PeerMirror peerMirror = new PeerMirror();
+    private PeerList peerList = new PeerList();
+    private WriteBehind writeBehind = new WriteBehind();
+    private Announce announce = new Announce();
+    private Udp udp = new Udp();
+    private Http http = new Http();
+    private Scrape scrape = new Scrape();
+    private FullScrape fullScrape = new FullScrape();
+    private PasskeyCache passkeyCache = new PasskeyCache();
+    private LoginHistory loginHistory = new LoginHistory();
+    private LoginAttempts loginAttempts = new LoginAttempts();
+    private PermissionCache permissionCache = new PermissionCache();
+    private SettingCache settingCache = new SettingCache();
+    private TorrentCache torrentCache = new TorrentCache();
+    private ClientPolicy clientPolicy = new ClientPolicy();
+    private VirtualThreads virtualThreads = new VirtualThreads();
+    private Proxy proxy = new Proxy();
+
+    @Data
+    public static class PeerMirror {
+        // Persist the in-memory swarms into the peers table, so a restart keeps the swarms and the counters
+        // the next announce of each peer is accounted against
+        private boolean enabled = true;
+        private long flushInterval = 30000;
+    }
+
+    @Data
+    public static class PeerList {
+        // Millis a changed swarm may keep handing out its previous peer list before it is rebuilt
+        private long cacheTtl = 3000;
+    }
+
+    @Data
+    public static class WriteBehind {
+        // Pending (user, torrent) rows which trigger an early flush
+        private int batchSize = 500;
+        // Max millis an announce result waits before it is written into database
+        private long flushInterval = 1000;
+        // Flushes a single row may fail in a row before it is dropped, failures from an unreachable database don't count
+        private int maxAttempts = 5;
+    }
+
+    @Data
+    public static class Announce {
+        // Background announce workers (and queues), 0 means one per available processor
+        private int workers = 0;
+        private int queueCapacity = 8192;
+        // Max millis to drain the queues on shutdown
+        private long shutdownTimeout = 10000;
+    }
+
+    @Data
+    public static class Udp {
+        // BEP 15 tracker, runs next to the HTTP announce endpoints
+        private boolean enabled = false;
+        private String host = "0.0.0.0";
+        private int port = 6969;
+        private int workers = 2;
+    }
+
+    @Data
+    public static class Http {
+        // Standalone announce/scrape listener, the REST API stays on the main server port
+        private boolean enabled = false;
+        private String host = "0.0.0.0";
+        private int port = 6970;
+        // 0 means one per available processor
+        private int eventLoops = 0;
+        // Millis a keep-alive connection may stay silent
+        private long idleTimeout = 30000;
+        // Max bytes of a request head
+        private int maxRequestSize = 8192;
+        // Threads running the handlers, 0 means four per available processor, unused with virtual threads
+        private int workers = 0;
+        // Requests waiting for a worker before new ones are answered with 503
+        private int workerQueueCapacity = 4096;
+    }
+
+    @Data
+    public static class Scrape {
+        // Scrapes asking for more info_hashes are refused
+        private int maxInfoHashes = 100;
+    }
+
+    @Data
+    public static class FullScrape {
+        // Answer scrapes without info_hash from a snapshot file rebuilt in background
+        private boolean enabled = false;
+        // Minutes between two snapshots
+        private int interval = 15;
+        // Also keep a gzip copy for clients sending Accept-Encoding: gzip
+        private boolean gzip = true;
+        private String directory = "cache";
+    }
+
+    @Data
+    public static class PasskeyCache {
+        private long maximumSize = 100000;
+        // Safety net for changes made outside of the application, in milliseconds
+        private long ttl = 600000;
+        // Unknown passkeys are remembered this long, in milliseconds
+        private long negativeTtl = 30000;
+    }
+
+    @Data
+    public static class LoginHistory {
+        // A passkey login repeating one of the same user, ip and user agent within this window is not recorded, in milliseconds
+        private long passkeyWindow = 3600000;
+        // Distinct passkey logins remembered for the window
+        private long maximumTracked = 100000;
+        private int queueCapacity = 10000;
+        private int batchSize = 500;
+        private long flushInterval = 5000;
+    }
+
+    @Data
+    public static class LoginAttempts {
+        // Failed authentications of an IP are counted over this sliding window, in milliseconds
+        private long window = 900000;
+        private long maximumTracked = 100000;
+        // Share the counts with the other nodes through Redis
+        private boolean shared = false;
+        private long syncInterval = 1000;
+    }
+
+    @Data
+    public static class PermissionCache {
+        private long maximumUsers = 100000;
+        // Safety net for changes made outside of the application, in milliseconds
+        private long ttl = 300000;
+    }
+
+    @Data
+    public static class SettingCache {
+        // Picks up settings changed in the database directly, in milliseconds
+        private long refreshInterval = 60000;
+    }
+
+    @Data
+    public static class TorrentCache {
+        // Also the number of latest torrents loaded at startup
+        private long maximumSize = 200000;
+        // Safety net for changes made outside of the application, in milliseconds
+        private long ttl = 3600000;
+    }
+
+    @Data
+    public static class ClientPolicy {
+        // Distinct User-Agent and peer_id prefix pairs whose verdict is remembered
+        private long verdictCacheSize = 10000;
+    }
+
+    @Data
+    public static class VirtualThreads {
+        // Run servlet requests, announce workers and Quartz jobs on virtual threads, needs a JDK 21+ runtime
+        private boolean enabled = false;
+    }
+
+    @Data
+    public static class Proxy {
+        // Addresses or CIDR ranges of the reverse proxies in front of the tracker, X-Real-IP and X-Forwarded-For
+        // are ignored on requests coming from anywhere else
+        private List<String> trusted = new ArrayList<>(List.of("127.0.0.1", "::1"));
+    }
+}
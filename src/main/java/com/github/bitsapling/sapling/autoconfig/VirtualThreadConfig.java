@@ -0,0 +1,45 @@
+package com.github.bitsapling.sapling.autoconfig;
+
+import com.github.bitsapling.sapling.util.VirtualThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.quartz.SchedulerFactoryBeanCustomizer;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Opt-in (sapling.tracker.virtual-threads.enabled) virtual thread mode: Tomcat requests and Quartz jobs get a
+ * virtual thread each, so requests blocked on JDBC/Redis no longer hold one of a fixed number of platform threads.
+ * The announce workers are switched by {@link com.github.bitsapling.sapling.service.AnnounceService} itself.
+ * Needs a JDK 21+ runtime, on older ones a warning is logged and everything stays on platform threads.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "sapling.tracker.virtual-threads", name = "enabled", havingValue = "true")
+@Slf4j
+public class VirtualThreadConfig {
+    public VirtualThreadConfig() {
+        if (!VirtualThreadUtil.isSupported()) {
+            log.warn("Virtual threads are enabled but not supported by this Java runtime ({}), using platform threads",
+                    Runtime.version());
+        }
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        Executor executor = VirtualThreadUtil.perTaskExecutor("tomcat-handler-");
+        return protocolHandler -> {
+            if (executor != null) protocolHandler.setExecutor(executor);
+        };
+    }
+
+    @Bean
+    public SchedulerFactoryBeanCustomizer virtualThreadSchedulerCustomizer() {
+        Executor executor = VirtualThreadUtil.perTaskExecutor("quartz-job-");
+        return schedulerFactoryBean -> {
+            if (executor != null) schedulerFactoryBean.setTaskExecutor(executor);
+        };
+    }
+}
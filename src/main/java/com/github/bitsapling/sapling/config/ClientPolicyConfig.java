@@ -0,0 +1,43 @@
+package com.github.bitsapling.sapling.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class ClientPolicyConfig {
+    // Only allow the clients matching a rule below, instead of denying them
+    private boolean allowListMode;
+    // Azureus-style peer_id prefixes, at most 8 chars, optionally followed by an inclusive range of the 4 version
+    // chars: "-qB", "-TR 3000-3999"
+    private List<String> peerIdRules;
+    // Case-insensitive User-Agent keywords
+    private List<String> userAgentKeywords;
+    // Case-insensitive User-Agent keywords of browsers and bots, always denied
+    private List<String> browserKeywords;
+
+    @NotNull
+    public static String getConfigKey() {
+        return "client_policy";
+    }
+
+    @NotNull
+    public static ClientPolicyConfig spawnDefault() {
+        return new ClientPolicyConfig(false, List.of(), List.of(), List.of(
+                "Mozilla",
+                "Browser",
+                "Chrome",
+                "Safari",
+                "AppleWebKit",
+                "Opera",
+                "Links",
+                "Lynx",
+                "Bot",
+                "Crawler",
+                "Spider",
+                "Unknown"));
+    }
+}
@@ -1,7 +1,6 @@
 package com.github.bitsapling.sapling.controller;
 
 import com.github.bitsapling.sapling.entity.Category;
-import com.github.bitsapling.sapling.entity.Peer;
 import com.github.bitsapling.sapling.entity.Permission;
 import com.github.bitsapling.sapling.entity.PromotionPolicy;
 import com.github.bitsapling.sapling.entity.Torrent;
@@ -9,14 +8,17 @@ import com.github.bitsapling.sapling.entity.User;
 import com.github.bitsapling.sapling.entity.UserGroup;
 import com.github.bitsapling.sapling.exception.TorrentException;
 import com.github.bitsapling.sapling.repository.CategoryRepository;
-import com.github.bitsapling.sapling.repository.PeersRepository;
 import com.github.bitsapling.sapling.repository.TorrentRepository;
 import com.github.bitsapling.sapling.service.AnnouncePerformanceMonitorService;
+import com.github.bitsapling.sapling.service.AnnounceService;
+import com.github.bitsapling.sapling.service.AnnounceWriteBehindService;
 import com.github.bitsapling.sapling.service.CategoryService;
 import com.github.bitsapling.sapling.service.PermissionService;
 import com.github.bitsapling.sapling.service.PromotionService;
 import com.github.bitsapling.sapling.service.UserGroupService;
 import com.github.bitsapling.sapling.service.UserService;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmPeer;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmRegistry;
 import com.github.bitsapling.sapling.type.PrivacyLevel;
 import com.github.bitsapling.sapling.util.TorrentParser;
 import lombok.Getter;
@@ -39,6 +41,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/debug")
@@ -53,7 +56,7 @@ public class DebugController {
     @Autowired
     private UserService userService;
     @Autowired
-    private PeersRepository peersRepository;
+    private SwarmRegistry swarmRegistry;
     @Autowired
     private TorrentRepository torrentRepository;
     @Autowired
@@ -62,6 +65,10 @@ public class DebugController {
     private CategoryService categoryService;
     @Autowired
     private AnnouncePerformanceMonitorService announcePerformanceMonitorService;
+    @Autowired
+    private AnnounceWriteBehindService writeBehindService;
+    @Autowired
+    private AnnounceService announceService;
 
     @GetMapping("/")
     public String torrents() throws IOException {
@@ -76,7 +83,7 @@ public class DebugController {
             debugTorrents++;
             torrentsJoiner.add(new DebugTorrent(entity).toString());
         }
-        for (Peer peer : peersRepository.findAll()) {
+        for (SwarmPeer peer : swarmRegistry.getAllPeers()) {
             debugPeers++;
             peersJoiner.add(new DebugPeer(peer).toString());
         }
@@ -87,11 +94,25 @@ public class DebugController {
         resp = resp.replace("%%announce_ms%%", String.valueOf(announcePerformanceMonitorService.avgMs()));
         resp = resp.replace("%%startup_date%%", announcePerformanceMonitorService.getStartTime().toString());
         resp = resp.replace("%%announce_count%%", String.valueOf(announcePerformanceMonitorService.getHandled()));
+        resp = resp.replace("%%scrape_count%%", String.valueOf(announcePerformanceMonitorService.getScrapes()));
+        resp = resp.replace("%%scrape_hashes%%", String.valueOf(announcePerformanceMonitorService.getScrapedInfoHashes()));
+        resp = resp.replace("%%scrape_ms%%", String.valueOf(announcePerformanceMonitorService.avgScrapeMs()));
+        resp = resp.replace("%%scrape_rejected%%", String.valueOf(announcePerformanceMonitorService.getRejectedScrapes()));
         resp = resp.replace("%%peers_list%%", peersJoiner.toString());
         resp = resp.replace("%%torrents_list%%", torrentsJoiner.toString());
         resp = resp.replace("%%debug_page_db_consumed%%", String.valueOf(dbTimeEnd));
         resp = resp.replace("%%debug_page_consumed%%", String.valueOf(System.currentTimeMillis() - startTime));
         resp = resp.replace("%%announce_job_avg%%", String.valueOf(announcePerformanceMonitorService.avgJobMs()));
+        resp = resp.replace("%%announce_jobs%%", String.valueOf(announceService.getQueuedTasks()));
+        resp = resp.replace("%%announce_partitions%%", announceService.getPartitionStats().stream()
+                .map(stats -> "#" + stats.index() + " " + stats.depth() + " / " + stats.processed() + " / " + stats.rejected() + " / " + stats.coalesced())
+                .collect(Collectors.joining("; ")));
+        resp = resp.replace("%%write_behind_flushes%%", String.valueOf(writeBehindService.getFlushes()));
+        resp = resp.replace("%%write_behind_rows%%", String.valueOf(writeBehindService.getFlushedRows()));
+        resp = resp.replace("%%write_behind_failures%%", String.valueOf(writeBehindService.getFailures()));
+        resp = resp.replace("%%write_behind_pending%%", String.valueOf(writeBehindService.getPendingRows()));
+        resp = resp.replace("%%write_behind_last_ms%%", String.valueOf(writeBehindService.getLastFlushMs()));
+        resp = resp.replace("%%write_behind_max_ms%%", String.valueOf(writeBehindService.getMaxFlushMs()));
         return resp;
     }
 
@@ -219,7 +240,7 @@ public class DebugController {
 
         public DebugTorrent(Torrent torrent) {
             this.id = torrent.getId();
-            this.infoHash = torrent.getInfoHash();
+            this.infoHash = torrent.getInfoHash().toHex();
             this.title = torrent.getTitle();
             this.subTitle = torrent.getSubTitle();
             this.size = torrent.getSize();
@@ -237,7 +258,7 @@ public class DebugController {
     @Getter
     @ToString
     static class DebugPeer {
-        private final long id;
+        private final long userId;
         private final String ip;
         private final int port;
         private final String infoHash;
@@ -249,18 +270,18 @@ public class DebugController {
         private final Timestamp updateAt;
         private final long seedingTime;
 
-        public DebugPeer(Peer peer) {
-            this.id = peer.getId();
-            this.ip = peer.getIp();
-            this.port = peer.getPort();
-            this.infoHash = peer.getInfoHash();
-            this.userAgent = peer.getUserAgent();
-            this.uploaded = peer.getUploaded();
-            this.downloaded = peer.getDownloaded();
-            this.left = peer.getLeft();
-            this.seeder = peer.isSeeder();
-            this.updateAt = peer.getUpdateAt();
-            this.seedingTime = peer.getSeedingTime();
+        public DebugPeer(SwarmPeer peer) {
+            this.userId = peer.userId();
+            this.ip = peer.ip();
+            this.port = peer.port();
+            this.infoHash = peer.infoHash().toHex();
+            this.userAgent = peer.userAgent();
+            this.uploaded = peer.uploaded();
+            this.downloaded = peer.downloaded();
+            this.left = peer.left();
+            this.seeder = peer.seeder();
+            this.updateAt = new Timestamp(peer.updateAt());
+            this.seedingTime = peer.seedingTime();
         }
     }
 
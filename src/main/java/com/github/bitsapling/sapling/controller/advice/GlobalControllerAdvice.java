@@ -5,7 +5,8 @@ import cn.dev33.satoken.exception.NotPermissionException;
 import com.github.bitsapling.sapling.exception.APIGenericException;
 import com.github.bitsapling.sapling.exception.FixedAnnounceException;
 import com.github.bitsapling.sapling.exception.RetryableAnnounceException;
-import com.github.bitsapling.sapling.util.BencodeUtil;
+import com.github.bitsapling.sapling.tracker.TrackerResponseWriter;
+import com.github.bitsapling.sapling.util.BencodeWriter;
 import com.github.bitsapling.sapling.util.ClassUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,22 +31,22 @@ public class GlobalControllerAdvice {
 
     @ExceptionHandler(value = FixedAnnounceException.class)
     @ResponseBody
-    public ResponseEntity<String> announceExceptionHandler(FixedAnnounceException exception) {
-        Map<String, String> dict = new HashMap<>();
-        dict.put("failure reason", classUtil.getClassSimpleName(exception.getClass()) + ": " + exception.getMessage());
-        dict.put("retry in", "never");
+    public ResponseEntity<byte[]> announceExceptionHandler(FixedAnnounceException exception) {
+        BencodeWriter writer = BencodeWriter.local();
+        TrackerResponseWriter.writeFailure(writer, classUtil.getClassSimpleName(exception.getClass()) + ": " + exception.getMessage(), "never");
         return ResponseEntity.ok()
-                .body(BencodeUtil.convertToString(BencodeUtil.bittorrent().encode(dict)));
+                .header("Content-Type", "text/plain; charset=iso-8859-1")
+                .body(writer.toByteArray());
     }
 
     @ExceptionHandler(value = RetryableAnnounceException.class)
     @ResponseBody
-    public ResponseEntity<String> announceExceptionHandler(RetryableAnnounceException exception) {
-        Map<String, String> dict = new HashMap<>();
-        dict.put("failure reason", classUtil.getClassSimpleName(exception.getClass()) + ": " + exception.getMessage());
-        dict.put("retry in", String.valueOf(exception.getRetryIn()));
+    public ResponseEntity<byte[]> announceExceptionHandler(RetryableAnnounceException exception) {
+        BencodeWriter writer = BencodeWriter.local();
+        TrackerResponseWriter.writeFailure(writer, classUtil.getClassSimpleName(exception.getClass()) + ": " + exception.getMessage(), String.valueOf(exception.getRetryIn()));
         return ResponseEntity.ok()
-                .body(BencodeUtil.convertToString(BencodeUtil.bittorrent().encode(dict)));
+                .header("Content-Type", "text/plain; charset=iso-8859-1")
+                .body(writer.toByteArray());
     }
 
     @ExceptionHandler(value = Exception.class)
@@ -35,7 +35,7 @@ public class PeerInfoResponseDTO extends ResponsePojo {
         } else {
             this.user = new UserBasicResponseDTO(peer.getUser());
         }
-        this.infoHash = peer.getInfoHash();
+        this.infoHash = peer.getInfoHash().toHex();
         this.peerId = peer.getPeerId();
         this.userAgent = peer.getUserAgent();
         this.uploaded = peer.getUploaded();
@@ -29,7 +29,7 @@ public class TorrentBasicResponseDTO extends ResponsePojo {
     public TorrentBasicResponseDTO(Torrent torrent){
         super(0);
         this.id = torrent.getId();
-        this.infoHash = torrent.getInfoHash();
+        this.infoHash = torrent.getInfoHash().toHex();
         if(torrent.isAnonymous()){
             this.user = null;
         }else{
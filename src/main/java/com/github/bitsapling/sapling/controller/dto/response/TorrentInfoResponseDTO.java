@@ -30,10 +30,10 @@ public class TorrentInfoResponseDTO extends ResponsePojo {
     private String description;
     private List<String> tag;
 
-    public TorrentInfoResponseDTO(Torrent torrent){
+    public TorrentInfoResponseDTO(Torrent torrent, long finishes){
         super(0);
         this.id = torrent.getId();
-        this.infoHash = torrent.getInfoHash();
+        this.infoHash = torrent.getInfoHash().toHex();
         if(torrent.isAnonymous()){
             this.user = null;
         }else{
@@ -42,6 +42,7 @@ public class TorrentInfoResponseDTO extends ResponsePojo {
         this.title = torrent.getTitle();
         this.subTitle = torrent.getSubTitle();
         this.size = torrent.getSize();
+        this.finishes = finishes;
         this.createdAt = torrent.getCreatedAt();
         this.updatedAt = torrent.getUpdatedAt();
         this.underReview = torrent.isUnderReview();
@@ -3,6 +3,7 @@ package com.github.bitsapling.sapling.controller.torrent;
 import cn.dev33.satoken.annotation.SaCheckPermission;
 import cn.dev33.satoken.exception.NotPermissionException;
 import cn.dev33.satoken.stp.StpUtil;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
 import com.github.bitsapling.sapling.config.SiteBasicConfig;
 import com.github.bitsapling.sapling.config.TrackerConfig;
 import com.github.bitsapling.sapling.controller.dto.response.ScrapeContainerDTO;
@@ -21,11 +22,13 @@ import com.github.bitsapling.sapling.entity.PromotionPolicy;
 import com.github.bitsapling.sapling.entity.Tag;
 import com.github.bitsapling.sapling.entity.Thanks;
 import com.github.bitsapling.sapling.entity.Torrent;
+import com.github.bitsapling.sapling.entity.TransferHistory;
 import com.github.bitsapling.sapling.entity.User;
 import com.github.bitsapling.sapling.exception.APIGenericException;
 import com.github.bitsapling.sapling.exception.EmptyTorrentFileException;
 import com.github.bitsapling.sapling.exception.InvalidTorrentVersionException;
 import com.github.bitsapling.sapling.exception.TorrentException;
+import com.github.bitsapling.sapling.objects.InfoHash;
 import com.github.bitsapling.sapling.objects.ResponsePojo;
 import com.github.bitsapling.sapling.service.AuthenticationService;
 import com.github.bitsapling.sapling.service.CategoryService;
@@ -34,7 +37,9 @@ import com.github.bitsapling.sapling.service.PromotionService;
 import com.github.bitsapling.sapling.service.SettingService;
 import com.github.bitsapling.sapling.service.TagService;
 import com.github.bitsapling.sapling.service.ThanksService;
+import com.github.bitsapling.sapling.service.TorrentCacheService;
 import com.github.bitsapling.sapling.service.TorrentService;
+import com.github.bitsapling.sapling.service.TorrentStatsService;
 import com.github.bitsapling.sapling.service.TransferHistoryService;
 import com.github.bitsapling.sapling.service.UserService;
 import com.github.bitsapling.sapling.util.IPUtil;
@@ -44,6 +49,7 @@ import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.owasp.html.PolicyFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -81,6 +87,8 @@ public class TorrentController {
     @Autowired
     private TorrentService torrentService;
     @Autowired
+    private TorrentCacheService torrentCacheService;
+    @Autowired
     private CategoryService categoryService;
     @Autowired
     private PromotionService promotionService;
@@ -94,6 +102,8 @@ public class TorrentController {
     @Autowired
     private TransferHistoryService transferHistoryService;
     @Autowired
+    private TorrentStatsService torrentStatsService;
+    @Autowired
     private SettingService settingService;
     @Autowired
     private PolicyFactory sanitizeFactory;
@@ -105,6 +115,8 @@ public class TorrentController {
     private PeerService peerService;
     @Autowired
     private ThanksService thanksService;
+    @Autowired
+    private TrackerProperties trackerProperties;
 
     @PostMapping("/upload")
     @SaCheckPermission("torrent:upload")
@@ -145,7 +157,7 @@ public class TorrentController {
         try {
             TorrentParser parser = new TorrentParser(form.getFile().getBytes(), true);
             parser.rewriteForTracker(siteBasicConfig.getSiteName(), publisher, publisherUrl);
-            String infoHash = parser.getInfoHash();
+            InfoHash infoHash = parser.getInfoHash();
             if (torrentService.getTorrent(infoHash) != null) {
                 throw new APIGenericException(TORRENT_ALREADY_EXISTS, "The torrent's info_hash has been exists on this tracker.");
             }
@@ -156,7 +168,7 @@ public class TorrentController {
                     StpUtil.hasPermission("torrent:bypass_review"), form.isAnonymous(), category,
                     promotionPolicy, form.getDescription(), tags);
             torrent = torrentService.save(torrent);
-            return ResponseEntity.ok().body(new TorrentUploadSuccessResponseDTO(torrent.getId(), parser.getInfoHash(), form.getFile()));
+            return ResponseEntity.ok().body(new TorrentUploadSuccessResponseDTO(torrent.getId(), infoHash.toHex(), form.getFile()));
         } catch (EmptyTorrentFileException e) {
             throw new APIGenericException(INVALID_TORRENT_FILE, "This torrent is empty.");
         } catch (InvalidTorrentVersionException e) {
@@ -177,11 +189,11 @@ public class TorrentController {
     @GetMapping("/view/{info_hash}")
     @SaCheckPermission("torrent:view")
     public TorrentInfoResponseDTO view(@PathVariable("info_hash") String infoHash) {
-        Torrent torrent = torrentService.getTorrent(infoHash);
+        Torrent torrent = findTorrent(infoHash);
         if (torrent == null) {
             throw new APIGenericException(TORRENT_NOT_EXISTS, "This torrent not registered on this tracker");
         }
-        return new TorrentInfoResponseDTO(torrent);
+        return new TorrentInfoResponseDTO(torrent, torrentStatsService.getCompletions(torrent.getId()));
     }
 
     @PostMapping("/scrape")
@@ -190,16 +202,28 @@ public class TorrentController {
         if (scrapeRequestDTO.getTorrents() == null) {
             throw new APIGenericException(MISSING_PARAMETERS, "You must provide a list of info_hash");
         }
-        Map<String, ScrapeContainerDTO> scrapes = new HashMap<>();
-        Map<String, List<TransferHistoryDTO>> details = new HashMap<>();
+        int maxInfoHashes = trackerProperties.getScrape().getMaxInfoHashes();
+        if (scrapeRequestDTO.getTorrents().size() > maxInfoHashes) {
+            throw new APIGenericException(TOO_MANY_INFO_HASHES, "You can scrape at most " + maxInfoHashes + " torrents at once");
+        }
+        Map<InfoHash, String> requested = new HashMap<>();
         for (String infoHash : scrapeRequestDTO.getTorrents()) {
-            Torrent torrent = torrentService.getTorrent(infoHash);
-            if (torrent == null) {
-                continue;
+            InfoHash parsed = InfoHash.tryParse(infoHash);
+            if (parsed != null) {
+                requested.putIfAbsent(parsed, infoHash);
             }
-            TransferHistoryService.PeerStatus peerStatus = transferHistoryService.getPeerStatus(torrent);
+        }
+        Map<InfoHash, TorrentCacheService.TorrentSummary> torrents = torrentCacheService.getAll(requested.keySet());
+        Map<Long, TorrentStatsService.PeerStatus> statuses = torrentStatsService.getPeerStatuses(torrents.values());
+        Map<Long, List<TransferHistory>> histories = transferHistoryService.getTransferHistories(
+                torrents.values().stream().map(TorrentCacheService.TorrentSummary::id).toList());
+        Map<String, ScrapeContainerDTO> scrapes = new HashMap<>();
+        Map<String, List<TransferHistoryDTO>> details = new HashMap<>();
+        for (TorrentCacheService.TorrentSummary torrent : torrents.values()) {
+            String infoHash = requested.get(torrent.infoHash());
+            TorrentStatsService.PeerStatus peerStatus = statuses.get(torrent.id());
             scrapes.put(infoHash, new ScrapeContainerDTO(peerStatus.downloaded(), peerStatus.complete(), peerStatus.incomplete(), peerStatus.downloaders()));
-            details.put(infoHash, transferHistoryService.getTransferHistory(torrent).stream().map(TransferHistoryDTO::new).toList());
+            details.put(infoHash, histories.getOrDefault(torrent.id(), List.of()).stream().map(TransferHistoryDTO::new).toList());
         }
         return new TorrentScrapeResponseDTO(scrapes, details);
     }
@@ -209,7 +233,7 @@ public class TorrentController {
     @Transactional
     public HttpEntity<?> sayThanks(@PathVariable("info_hash") String infoHash) {
         User user = userService.getUser(StpUtil.getLoginIdAsLong());
-        Torrent torrent = torrentService.getTorrent(infoHash);
+        Torrent torrent = findTorrent(infoHash);
         if (torrent == null) {
             throw new APIGenericException(TORRENT_NOT_EXISTS, "This torrent not registered on this tracker");
         }
@@ -223,7 +247,7 @@ public class TorrentController {
     @GetMapping("/thanks/{info_hash}")
     @SaCheckPermission("torrent:view")
     public ThanksResponseDTO queryThanks(@PathVariable("info_hash") String infoHash) {
-        Torrent torrent = torrentService.getTorrent(infoHash);
+        Torrent torrent = findTorrent(infoHash);
         if (torrent == null) {
             throw new APIGenericException(TORRENT_NOT_EXISTS, "This torrent not registered on this tracker");
         }
@@ -250,7 +274,7 @@ public class TorrentController {
         if (StringUtils.isEmpty(infoHash)) {
             throw new APIGenericException(MISSING_PARAMETERS, "You must provide a info_hash.");
         }
-        Torrent torrent = torrentService.getTorrent(infoHash);
+        Torrent torrent = findTorrent(infoHash);
         if (torrent == null) {
             throw new APIGenericException(TORRENT_NOT_EXISTS, "This torrent not registered on this tracker");
         }
@@ -259,7 +283,7 @@ public class TorrentController {
                 throw new NotPermissionException("torrent:download_review");
             }
         }
-        File torrentFile = new File(torrentsDirectory, infoHash + ".torrent");
+        File torrentFile = new File(torrentsDirectory, torrent.getInfoHash() + ".torrent");
         if (!torrentFile.exists()) {
             throw new APIGenericException(TORRENT_FILE_MISSING, "This torrent's file are missing on this tracker, please contact with system administrator.");
         }
@@ -271,4 +295,13 @@ public class TorrentController {
         header.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + URLEncodeUtil.urlEncode(fileName, false));
         return new HttpEntity<>(parser.save(), header);
     }
+
+    /**
+     * Resolve the hex info_hash from REST path and body, malformed ones are treated as unknown torrents.
+     */
+    @Nullable
+    private Torrent findTorrent(@Nullable String infoHash) {
+        InfoHash parsed = InfoHash.tryParse(infoHash);
+        return parsed == null ? null : torrentService.getTorrent(parsed);
+    }
 }
@@ -0,0 +1,27 @@
+package com.github.bitsapling.sapling.crontask;
+
+import com.github.bitsapling.sapling.service.FullScrapeService;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.quartz.JobExecutionContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.quartz.QuartzJobBean;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+@Component
+@Slf4j
+public class FullScrapeSnapshot extends QuartzJobBean {
+    @Autowired
+    private FullScrapeService fullScrapeService;
+
+    @Override
+    public void executeInternal(@NotNull JobExecutionContext context) {
+        try {
+            fullScrapeService.build();
+        } catch (IOException e) {
+            log.error("Unable to build the full scrape snapshot", e);
+        }
+    }
+}
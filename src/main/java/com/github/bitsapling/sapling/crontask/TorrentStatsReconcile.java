@@ -0,0 +1,23 @@
+package com.github.bitsapling.sapling.crontask;
+
+import com.github.bitsapling.sapling.service.TorrentStatsService;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.quartz.JobExecutionContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.quartz.QuartzJobBean;
+import org.springframework.stereotype.Component;
+
+@Component
+@Slf4j
+public class TorrentStatsReconcile extends QuartzJobBean {
+    @Autowired
+    private TorrentStatsService torrentStatsService;
+
+    @Override
+    public void executeInternal(@NotNull JobExecutionContext context) {
+        log.info("Executing the torrent stats reconciliation...");
+        int count = torrentStatsService.reconcile();
+        log.info("Torrent stats reconciliation complete! Corrected {} counters.", count);
+    }
+}
@@ -1,7 +1,10 @@
 package com.github.bitsapling.sapling.entity;
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.objects.InfoHashConverter;
 import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
@@ -41,7 +44,8 @@ public class Peer {
     @Column(name = "port", nullable = false, updatable = false)
     private int port;
     @Column(name = "info_hash", nullable = false, updatable = false)
-    private String infoHash;
+    @Convert(converter = InfoHashConverter.class)
+    private InfoHash infoHash;
     @Column(name = "peer_id", nullable = false)
     private String peerId;
     @Column(name = "user_agent", nullable = false)
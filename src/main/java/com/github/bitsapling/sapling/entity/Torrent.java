@@ -2,7 +2,10 @@ package com.github.bitsapling.sapling.entity;
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.objects.InfoHashConverter;
 import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
@@ -43,7 +46,8 @@ public class Torrent {
     @Column(name = "id", nullable = false, updatable = false)
     private long id;
     @Column(name = "info_hash", nullable = false, updatable = false)
-    private String infoHash;
+    @Convert(converter = InfoHashConverter.class)
+    private InfoHash infoHash;
     @PrimaryKeyJoinColumn
     @ManyToOne
     @JsonBackReference
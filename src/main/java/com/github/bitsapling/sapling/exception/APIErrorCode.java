@@ -17,7 +17,8 @@ public enum APIErrorCode {
     USERNAME_ALREADY_IN_USAGE(11, HttpStatus.CONFLICT),
     TOO_MANY_FAILED_AUTHENTICATION_ATTEMPTS(12, HttpStatus.TOO_MANY_REQUESTS),
     MAX_UPLOAD_SIZE_EXCEEDED(13, HttpStatus.PAYLOAD_TOO_LARGE),
-    YOU_ALREADY_THANKED_THIS_TORRENT(14, HttpStatus.NOT_MODIFIED);
+    YOU_ALREADY_THANKED_THIS_TORRENT(14, HttpStatus.NOT_MODIFIED),
+    TOO_MANY_INFO_HASHES(15, HttpStatus.BAD_REQUEST);
 
     private final int code;
     private final HttpStatusCode statusCode;
@@ -0,0 +1,160 @@
+package com.github.bitsapling.sapling.objects;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * A BitTorrent v1 info_hash, the 20 raw bytes are held in three primitive fields.
+ * Used as the key of every in-memory lookup; the 40 chars lowercase hex form only exists
+ * at the REST/JSON boundary and in the database column (see {@link InfoHashConverter}).
+ */
+public final class InfoHash implements Comparable<InfoHash>, Serializable {
+    public static final int LENGTH = 20;
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private final long high;
+    private final long middle;
+    private final int low;
+
+    private InfoHash(long high, long middle, int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+    }
+
+    @NotNull
+    public static InfoHash of(byte @NotNull [] bytes) {
+        if (bytes.length != LENGTH) {
+            throw new IllegalArgumentException("info_hash must be " + LENGTH + " bytes, got " + bytes.length);
+        }
+        return of(bytes, 0);
+    }
+
+    /**
+     * Read 20 bytes starting at offset, the array isn't retained.
+     */
+    @NotNull
+    public static InfoHash of(byte @NotNull [] bytes, int offset) {
+        if (offset < 0 || offset + LENGTH > bytes.length) {
+            throw new IllegalArgumentException("Not enough bytes for an info_hash at offset " + offset);
+        }
+        return new InfoHash(readLong(bytes, offset), readLong(bytes, offset + 8), (int) readBytes(bytes, offset + 16, 4));
+    }
+
+    /**
+     * Parse the 40 chars hex form, in any case.
+     *
+     * @throws IllegalArgumentException if the input isn't a valid hex info_hash
+     */
+    @JsonCreator
+    @NotNull
+    public static InfoHash fromHex(@NotNull String hex) throws IllegalArgumentException {
+        InfoHash infoHash = tryParse(hex);
+        if (infoHash == null) {
+            throw new IllegalArgumentException("Invalid info_hash: " + hex);
+        }
+        return infoHash;
+    }
+
+    @Nullable
+    public static InfoHash tryParse(@Nullable String hex) {
+        if (hex == null || hex.length() != LENGTH * 2) return null;
+        long high = 0;
+        long middle = 0;
+        long low = 0;
+        for (int i = 0; i < LENGTH * 2; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) return null;
+            if (i < 16) {
+                high = (high << 4) | digit;
+            } else if (i < 32) {
+                middle = (middle << 4) | digit;
+            } else {
+                low = (low << 4) | digit;
+            }
+        }
+        return new InfoHash(high, middle, (int) low);
+    }
+
+    public byte @NotNull [] toByteArray() {
+        byte[] bytes = new byte[LENGTH];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    public void writeTo(byte @NotNull [] bytes, int offset) {
+        writeBytes(bytes, offset, high, 8);
+        writeBytes(bytes, offset + 8, middle, 8);
+        writeBytes(bytes, offset + 16, low, 4);
+    }
+
+    @JsonValue
+    @NotNull
+    public String toHex() {
+        char[] chars = new char[LENGTH * 2];
+        writeHex(chars, 0, high, 16);
+        writeHex(chars, 16, middle, 16);
+        writeHex(chars, 32, low, 8);
+        return new String(chars);
+    }
+
+    @Override
+    public int compareTo(@NotNull InfoHash other) {
+        // Same order as the raw bytes compared unsigned, which is the bencode dictionary key order
+        int result = Long.compareUnsigned(high, other.high);
+        if (result != 0) return result;
+        result = Long.compareUnsigned(middle, other.middle);
+        if (result != 0) return result;
+        return Integer.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof InfoHash other)) return false;
+        return high == other.high && middle == other.middle && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        // SHA-1 output is already uniformly distributed
+        return (int) (high ^ (high >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    private static long readLong(byte @NotNull [] bytes, int offset) {
+        return readBytes(bytes, offset, 8);
+    }
+
+    private static long readBytes(byte @NotNull [] bytes, int offset, int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeBytes(byte @NotNull [] bytes, int offset, long value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeHex(char @NotNull [] chars, int offset, long value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            chars[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.bitsapling.sapling.objects;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores {@link InfoHash} as the lowercase hex string the info_hash columns always held.
+ */
+@Converter
+public class InfoHashConverter implements AttributeConverter<InfoHash, String> {
+    @Override
+    public String convertToDatabaseColumn(InfoHash attribute) {
+        return attribute == null ? null : attribute.toHex();
+    }
+
+    @Override
+    public InfoHash convertToEntityAttribute(String dbData) {
+        return dbData == null ? null : InfoHash.fromHex(dbData);
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.bitsapling.sapling.repository;
 
 import com.github.bitsapling.sapling.entity.Peer;
+import com.github.bitsapling.sapling.objects.InfoHash;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
@@ -12,14 +13,16 @@ import java.util.Optional;
 
 @Repository
 public interface PeersRepository extends CrudRepository<Peer, Long> {
-    Optional<Peer> findByIpAndPortAndInfoHashIgnoreCase(@NotNull String ip, int port, @NotNull String infoHash);
+    Optional<Peer> findByIpAndPortAndInfoHash(@NotNull String ip, int port, @NotNull InfoHash infoHash);
 
-    Optional<Peer> findByPeerIdAndInfoHashIgnoreCase(@NotNull String peerId, @NotNull String infoHash);
+    Optional<Peer> findByPeerIdAndInfoHash(@NotNull String peerId, @NotNull InfoHash infoHash);
 
-    List<Peer> findPeersByInfoHashIgnoreCaseOrderByUpdateAtDesc(@NotNull String infoHash, @NotNull Pageable singlePage);
+    List<Peer> findPeersByInfoHashOrderByUpdateAtDesc(@NotNull InfoHash infoHash, @NotNull Pageable singlePage);
 
     //List<PeerEntity> findPeersByUserId(long userId);
     List<Peer> findAllByUpdateAtIsLessThan(@NotNull Timestamp timestamp);
 
-    void deletePeerByInfoHashIgnoreCaseAndPeerId(String infoHash, String peerId);
+    List<Peer> findAllByUpdateAtIsGreaterThanEqual(@NotNull Timestamp timestamp);
+
+    void deletePeerByInfoHashAndPeerId(InfoHash infoHash, String peerId);
 }
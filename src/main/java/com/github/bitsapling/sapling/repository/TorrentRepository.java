@@ -3,6 +3,7 @@ package com.github.bitsapling.sapling.repository;
 import com.github.bitsapling.sapling.entity.Category;
 import com.github.bitsapling.sapling.entity.Torrent;
 import com.github.bitsapling.sapling.entity.User;
+import com.github.bitsapling.sapling.objects.InfoHash;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -10,12 +11,16 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface TorrentRepository extends JpaRepository<Torrent, Long>, JpaSpecificationExecutor<Torrent>{
-    Optional<Torrent> findByInfoHashIgnoreCase(@NotNull String infoHash);
+    Optional<Torrent> findByInfoHash(@NotNull InfoHash infoHash);
+
+    @NotNull
+    List<Torrent> findAllByInfoHashIn(@NotNull Collection<InfoHash> infoHashes);
 
     @NotNull
     List<Torrent> findAllByUserIdOrderByIdDesc(long userId);
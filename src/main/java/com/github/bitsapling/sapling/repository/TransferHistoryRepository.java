@@ -4,10 +4,12 @@ import com.github.bitsapling.sapling.entity.Torrent;
 import com.github.bitsapling.sapling.entity.TransferHistory;
 import com.github.bitsapling.sapling.entity.User;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 @Repository
@@ -18,5 +20,9 @@ public interface TransferHistoryRepository extends CrudRepository<TransferHistor
 
     List<TransferHistory> findAllByTorrentOrderByUpdatedAt(@NotNull Torrent torrent);
 
+    // Fetch the torrents and users in the same query, instead of one select per row
+    @EntityGraph(attributePaths = {"torrent", "user"})
+    List<TransferHistory> findAllByTorrentIdInOrderByUpdatedAt(@NotNull Collection<Long> torrentIds);
+
     List<TransferHistory> findAllByTorrentAndUpdatedAtAfterOrderByUpdatedAt(@NotNull Torrent torrent, Timestamp after);
 }
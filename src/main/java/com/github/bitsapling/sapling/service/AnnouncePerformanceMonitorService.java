@@ -6,6 +6,7 @@ import org.springframework.stereotype.Component;
 
 import java.time.Instant;
 import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
 
 @Component
 
@@ -19,6 +20,13 @@ public class AnnouncePerformanceMonitorService {
             .newBuilder()
             .maximumSize(1000)
             .build();
+    private final Cache<UUID, Long> scrapeTimes = CacheBuilder
+            .newBuilder()
+            .maximumSize(1000)
+            .build();
+    private final LongAdder scrapes = new LongAdder();
+    private final LongAdder scrapedInfoHashes = new LongAdder();
+    private final LongAdder rejectedScrapes = new LongAdder();
     private long handled = 0;
 
     public void recordStats(long ns) {
@@ -30,6 +38,35 @@ public class AnnouncePerformanceMonitorService {
         announceJobTimes.put(UUID.randomUUID(), ns);
     }
 
+    public void recordScrape(int infoHashes, long ns) {
+        scrapeTimes.put(UUID.randomUUID(), ns);
+        scrapes.increment();
+        scrapedInfoHashes.add(infoHashes);
+    }
+
+    /**
+     * A scrape refused for asking too many info_hashes.
+     */
+    public void recordRejectedScrape() {
+        rejectedScrapes.increment();
+    }
+
+    public double avgScrapeMs() {
+        return scrapeTimes.asMap().values().stream().mapToLong(Long::longValue).average().orElse(0) / 1000000;
+    }
+
+    public long getScrapes() {
+        return scrapes.sum();
+    }
+
+    public long getScrapedInfoHashes() {
+        return scrapedInfoHashes.sum();
+    }
+
+    public long getRejectedScrapes() {
+        return rejectedScrapes.sum();
+    }
+
     public double avgNs() {
         return announceTimes.asMap().values().stream().mapToLong(Long::longValue).average().orElse(0);
     }
@@ -1,183 +1,344 @@
 package com.github.bitsapling.sapling.service;
 
-import com.github.bitsapling.sapling.entity.Peer;
-import com.github.bitsapling.sapling.entity.Torrent;
-import com.github.bitsapling.sapling.entity.TransferHistory;
-import com.github.bitsapling.sapling.entity.User;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.entity.PromotionPolicy;
 import com.github.bitsapling.sapling.exception.AnnounceBusyException;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmPeer;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmRegistry;
 import com.github.bitsapling.sapling.type.AnnounceEventType;
-import com.github.bitsapling.sapling.util.ExecutorUtil;
+import com.github.bitsapling.sapling.util.BencodeUtil;
 import com.github.bitsapling.sapling.util.HibernateSessionUtil;
-import jakarta.persistence.EntityManagerFactory;
+import com.github.bitsapling.sapling.util.VirtualThreadUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
-import java.sql.Timestamp;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Handles announces in the background, on a configurable number of partitions.
+ * A task is routed by (info_hash, passkey), so every address a client announces with is applied in order by the same
+ * worker, while a popular torrent is still spread over every worker. Each partition has its own bounded queue.
+ * An announce listing several addresses (ipv4 and ipv6) is one task per address, one swarm entry each for the peer lists,
+ * but traffic and seeding time are counted once per client (passkey, info_hash, peer_id) against the partition's ledger.
+ * A task still waiting in the queue absorbs the later tasks of the same (passkey, info_hash, peer), the worker then
+ * only applies the latest counters once. Tasks carrying a lifecycle event never absorb anything, so those events
+ * are processed in order.
+ */
 @Service
 @Slf4j
 public class AnnounceService {
-    private final BlockingDeque<AnnounceTask> taskQueue = new LinkedBlockingDeque<>(40960);
-    @Autowired
-    private ExecutorUtil executor;
-    @Autowired
-    private UserService userService;
+    // A ledger entry lives as long as the swarm keeps a silent peer
+    private static final long TRAFFIC_TTL = TimeUnit.MINUTES.toMillis(90);
+    private static final long TRAFFIC_PURGE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private Partition[] partitions = new Partition[0];
+    private volatile boolean running;
     @Autowired
     private PeerService peerService;
     @Autowired
-    private TorrentService torrentService;
+    private SwarmRegistry swarmRegistry;
+    @Autowired
+    private TorrentCacheService torrentCacheService;
     @Autowired
-    private EntityManagerFactory entityManagerFactory;
+    private PromotionService promotionService;
     @Autowired
     private AnnouncePerformanceMonitorService monitorService;
     @Autowired
-    private TransferHistoryService transferHistoryService;
+    private AnnounceWriteBehindService writeBehindService;
     @Autowired
     private HibernateSessionUtil sessionUtil;
+    @Autowired
+    private TrackerProperties trackerProperties;
 
-    public AnnounceService() {
-        Thread announceHandleThread = new Thread(() -> {
-            while (true) {
-                try {
-                    AnnounceTask announceTask = taskQueue.take();
-                    boolean participate = sessionUtil.bindToThread();
-                    try {
-                        long start = System.nanoTime();
-                        handleTask(announceTask);
-                        monitorService.recordJobStats(System.nanoTime() - start);
-                    } catch (Exception e) {
-                        log.error("Error handling task: {}", announceTask, e);
-                    } finally {
-                        sessionUtil.closeFromThread(participate);
-                    }
-                } catch (InterruptedException e) {
-                    log.error("Announce handling thread interrupted", e);
-                }
+    @PostConstruct
+    public synchronized void start() {
+        TrackerProperties.Announce config = trackerProperties.getAnnounce();
+        int workers = config.getWorkers() > 0 ? config.getWorkers() : Runtime.getRuntime().availableProcessors();
+        Partition[] created = new Partition[workers];
+        for (int i = 0; i < workers; i++) {
+            created[i] = new Partition(i, config.getQueueCapacity());
+        }
+        partitions = created;
+        running = true;
+        boolean virtual = trackerProperties.getVirtualThreads().isEnabled();
+        for (Partition partition : created) {
+            partition.thread = VirtualThreadUtil.newThread(virtual, "Announce Handling #" + partition.index, () -> work(partition));
+            partition.thread.start();
+        }
+        log.info("Started {} announce workers, {} queued tasks at most per worker", workers, config.getQueueCapacity());
+    }
+
+    /**
+     * Stop accepting tasks and let the workers drain their queues.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        long deadline = System.currentTimeMillis() + trackerProperties.getAnnounce().getShutdownTimeout();
+        for (Partition partition : partitions) {
+            partition.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (partition.thread.isAlive()) {
+                log.warn("Announce worker #{} didn't drain in time, {} tasks dropped", partition.index, partition.queue.size());
+                continue;
             }
-        });
-        announceHandleThread.setName("Announce Handling");
-        announceHandleThread.setDaemon(true);
-        announceHandleThread.start();
+            // Tasks offered while the worker was exiting, schedule() rejects anything offered after this
+            Slot slot;
+            while ((slot = partition.queue.poll()) != null && System.currentTimeMillis() < deadline) {
+                process(partition, slot);
+            }
+            if (slot != null) {
+                log.warn("Announce worker #{} didn't drain in time, {} tasks dropped", partition.index, partition.queue.size() + 1);
+            }
+        }
     }
 
     public void schedule(@NotNull AnnounceTask announceTask) throws AnnounceBusyException {
-        if (!this.taskQueue.offer(announceTask))
+        if (!running) throw new AnnounceBusyException();
+        Partition partition = partitionOf(announceTask);
+        PeerKey key = new PeerKey(announceTask.passKey(), announceTask.infoHash(), announceTask.ip(), announceTask.port());
+        boolean[] rejected = new boolean[1];
+        Slot[] offered = new Slot[1];
+        partition.pending.compute(key, (k, slot) -> {
+            if (slot != null && slot.absorb(announceTask)) {
+                partition.coalesced.increment();
+                return slot;
+            }
+            Slot queued = new Slot(k, announceTask);
+            if (!partition.queue.offer(queued)) {
+                rejected[0] = true;
+                return slot;
+            }
+            offered[0] = queued;
+            return queued;
+        });
+        if (rejected[0]) {
+            partition.rejected.increment();
+            throw new AnnounceBusyException();
+        }
+        // Shutdown began meanwhile, the worker may be gone already: take the task back unless someone polled it
+        if (!running && offered[0] != null && partition.queue.remove(offered[0])) {
+            partition.pending.remove(key, offered[0]);
             throw new AnnounceBusyException();
+        }
+    }
+
+    @NotNull
+    private Partition partitionOf(@NotNull AnnounceTask task) {
+        int hash = task.infoHash().hashCode() * 31 + Objects.hashCode(task.passKey());
+        // Spread the bits before the modulo
+        hash ^= (hash >>> 16);
+        return partitions[Math.floorMod(hash, partitions.length)];
+    }
+
+    private void work(@NotNull Partition partition) {
+        while (running || !partition.queue.isEmpty()) {
+            Slot slot;
+            try {
+                slot = partition.queue.poll(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.error("Announce handling thread interrupted", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            purgeTraffic(partition);
+            if (slot == null) continue;
+            process(partition, slot);
+        }
+    }
+
+    private void purgeTraffic(@NotNull Partition partition) {
+        long now = System.currentTimeMillis();
+        if (now - partition.lastTrafficPurge < TRAFFIC_PURGE_INTERVAL) return;
+        partition.lastTrafficPurge = now;
+        partition.traffic.values().removeIf(traffic -> now - traffic.updateAt() > TRAFFIC_TTL);
+    }
+
+    private void process(@NotNull Partition partition, @NotNull Slot slot) {
+        // Once unlinked nothing can be merged into the slot anymore, a newer task gets its own one
+        partition.pending.remove(slot.key, slot);
+        AnnounceTask announceTask = slot.task;
+        boolean participate = sessionUtil.bindToThread();
+        try {
+            long start = System.nanoTime();
+            handleTask(partition.traffic, announceTask);
+            monitorService.recordJobStats(System.nanoTime() - start);
+        } catch (Exception e) {
+            log.error("Error handling task: {}", announceTask, e);
+        } finally {
+            sessionUtil.closeFromThread(participate);
+            partition.processed.increment();
+        }
+    }
+
+    @NotNull
+    public List<PartitionStats> getPartitionStats() {
+        List<PartitionStats> stats = new ArrayList<>(partitions.length);
+        for (Partition partition : partitions) {
+            stats.add(new PartitionStats(partition.index, partition.queue.size(),
+                    partition.processed.sum(), partition.rejected.sum(), partition.coalesced.sum()));
+        }
+        return stats;
+    }
+
+    public int getQueuedTasks() {
+        int queued = 0;
+        for (Partition partition : partitions) {
+            queued += partition.queue.size();
+        }
+        return queued;
     }
 
-    @Transactional
-    void handleTask(AnnounceTask task) throws NoSuchElementException {
+    /**
+     * @param ledger the last counters of each client, owned by the partition running the task
+     */
+    void handleTask(@NotNull Map<TrafficKey, Traffic> ledger, @NotNull AnnounceTask task) throws NoSuchElementException {
         // Multi-threaded
-        User user = userService.getUser(task.userId());
-        if (user == null) throw new IllegalStateException("User not exists anymore");
-        Torrent torrent = torrentService.getTorrent(task.torrentId());
+        TorrentCacheService.TorrentSummary torrent = torrentCacheService.get(task.infoHash());
         if (torrent == null) throw new IllegalStateException("Torrent not exists anymore");
-        // Register torrent into peers
-        Peer peer = peerService.getPeer(task.ip(), task.port(), task.infoHash());
-        if (peer == null) {
-            peer = createNewPeer(task, user);
+        long now = System.currentTimeMillis();
+        // Register torrent into swarm
+        SwarmPeer previous = swarmRegistry.getPeer(task.infoHash(), task.ip(), task.port());
+        // The other addresses of the same announce carry the same totals, only the first one processed gets a delta.
+        // The swarm entry stands in for a ledger lost in a restart
+        TrafficKey trafficKey = new TrafficKey(task.passKey(), task.infoHash(), task.peerId());
+        Traffic last = ledger.get(trafficKey);
+        if (last == null && previous != null) {
+            last = new Traffic(previous.uploaded(), previous.downloaded(), previous.updateAt(), previous.seeder());
         }
-        long lastUploaded = peer.getUploaded();
-        long lastDownload = peer.getDownloaded();
+        ledger.put(trafficKey, new Traffic(task.uploaded(), task.downloaded(), now, task.left() == 0));
+        long lastUploaded = last == null ? task.uploaded() : last.uploaded();
+        long lastDownload = last == null ? task.downloaded() : last.downloaded();
         long uploadedOffset = task.uploaded() - lastUploaded;
         long downloadedOffset = task.downloaded() - lastDownload;
-        Timestamp lastUpdateAt = torrent.getUpdatedAt();
         if (uploadedOffset < 0) uploadedOffset = task.uploaded();
         if (downloadedOffset < 0) downloadedOffset = task.downloaded();
-        long announceInterval = Instant.now().toEpochMilli() - lastUpdateAt.toInstant().toEpochMilli();
-        peer.setUploaded(task.uploaded() + uploadedOffset);
-        peer.setDownloaded(task.downloaded() + downloadedOffset);
-        peer.setLeft(task.left());
-        peer.setSeeder(task.left() == 0);
-        peer.setUpdateAt(Timestamp.from(Instant.now()));
-        peer.setSeedingTime(peer.getSeedingTime() + (Instant.now().toEpochMilli() - lastUpdateAt.toInstant().toEpochMilli()));
-        peer.setPartialSeeder(task.event() == AnnounceEventType.PAUSED);
+        long announceInterval = last == null ? 0 : Math.max(0, now - last.updateAt());
+        long seedingTimeOffset = last != null && last.seeder() ? announceInterval : 0;
         // Update user peer speed
-        long bytesPerSecondUploading = uploadedOffset / (announceInterval / 1000);
-        long bytesPerSecondDownloading = downloadedOffset / (announceInterval / 1000);
-        peer.setUploadSpeed(bytesPerSecondUploading);
-        peer.setDownloadSpeed(bytesPerSecondDownloading);
-        peer = peerService.save(peer);
-        // Update real user data
-        user.setRealDownloaded(user.getRealDownloaded() + lastDownload);
-        user.setRealUploaded(user.getRealUploaded() + lastUploaded);
+        long announceIntervalSeconds = Math.max(1, announceInterval / 1000);
+        long bytesPerSecondUploading = uploadedOffset / announceIntervalSeconds;
+        long bytesPerSecondDownloading = downloadedOffset / announceIntervalSeconds;
+        byte[] compactEndpoint = BencodeUtil.compactEndpoint(task.ip(), task.port());
+        if (compactEndpoint == null) throw new IllegalArgumentException("Peer ip isn't an ip literal: " + task.ip());
+        SwarmPeer peer = new SwarmPeer(task.infoHash(), task.ip(), task.port(), compactEndpoint, task.peerId(),
+                task.userAgent(), task.passKey(), task.userId(),
+                task.uploaded(), task.downloaded(), task.left(),
+                task.left() == 0, task.event() == AnnounceEventType.PAUSED,
+                now, (previous == null ? 0 : previous.seedingTime()) + seedingTimeOffset,
+                bytesPerSecondUploading, bytesPerSecondDownloading);
+        if (task.event() == AnnounceEventType.STOPPED) {
+            swarmRegistry.removePeer(task.infoHash(), task.ip(), task.port());
+            peerService.mirrorRemoval(peer);
+        } else {
+            swarmRegistry.putPeer(peer);
+            peerService.mirror(peer);
+        }
         // Apply user promotion policy
-        long promotionUploadOffset = (long) user.getGroup().getPromotionPolicy().applyUploadRatio(lastDownload);
-        long promotionDownloadOffset = (long) user.getGroup().getPromotionPolicy().applyDownloadRatio(lastUploaded);
+        long promotionUploadOffset = uploadedOffset;
+        long promotionDownloadOffset = downloadedOffset;
+        PromotionPolicy userPromotion = promotionService.getCachedGroupPromotionPolicy(task.groupId());
+        if (userPromotion != null) {
+            promotionUploadOffset = (long) userPromotion.applyUploadRatio(promotionUploadOffset);
+            promotionDownloadOffset = (long) userPromotion.applyDownloadRatio(promotionDownloadOffset);
+        }
         // Apply torrent promotion policy
-        promotionUploadOffset = (long) torrent.getPromotionPolicy().applyUploadRatio(promotionUploadOffset);
-        promotionDownloadOffset = (long) torrent.getPromotionPolicy().applyDownloadRatio(promotionDownloadOffset);
-        user.setUploaded(user.getUploaded() + promotionUploadOffset);
-        user.setDownloaded(user.getDownloaded() + promotionDownloadOffset);
-        user.setSeedingTime(user.getSeedingTime() + (Instant.now().toEpochMilli() - lastUpdateAt.toInstant().toEpochMilli()));
-        user = userService.save(user);
-        TransferHistory transferHistory = transferHistoryService.getTransferHistory(user, torrent);
-        if (transferHistory != null) {
-            long torrentLeft = transferHistory.getLeft();
-            if (torrentLeft != 0 && task.left() == 0) {
-                transferHistory.setHaveCompleteHistory(true);
-            }
-            transferHistory.setUpdatedAt(Timestamp.from(Instant.now()));
-            transferHistory.setLeft(task.left());
-            transferHistory.setUploaded(transferHistory.getUploaded() + promotionUploadOffset);
-            transferHistory.setDownloaded(transferHistory.getDownloaded() + promotionDownloadOffset);
-            transferHistory.setActualUploaded(transferHistory.getActualUploaded() + uploadedOffset);
-            transferHistory.setActualDownloaded(transferHistory.getActualDownloaded() + downloadedOffset);
-            transferHistory.setUploadSpeed(bytesPerSecondUploading);
-            transferHistory.setDownloadSpeed(bytesPerSecondDownloading);
-        } else {
-            transferHistory = new TransferHistory(0, user, torrent,
-                    task.left(), Timestamp.from(Instant.now()),
-                    Timestamp.from(Instant.now()),
-                    promotionUploadOffset, promotionDownloadOffset, uploadedOffset, downloadedOffset,
-                    bytesPerSecondUploading, bytesPerSecondDownloading, task.event(), false);
-        }
-        transferHistoryService.save(transferHistory);
-        torrentService.save(torrent);
-        if (task.event() == AnnounceEventType.STOPPED) {
-            if (peer.getId() != 0) {
-                peerService.delete(peer);
-            }
+        PromotionPolicy torrentPromotion = promotionService.getCachedPromotionPolicy(torrent.promotionPolicyId());
+        if (torrentPromotion != null) {
+            promotionUploadOffset = (long) torrentPromotion.applyUploadRatio(promotionUploadOffset);
+            promotionDownloadOffset = (long) torrentPromotion.applyDownloadRatio(promotionDownloadOffset);
         }
-
-    }
-
-
-    @NotNull
-    private Peer createNewPeer(AnnounceTask task, User user) {
-        return new Peer(
-                0,
-                task.ip(),
-                task.port(),
-                task.infoHash(),
-                task.peerId(),
-                task.userAgent(),
-                task.uploaded(),
-                task.downloaded(),
-                task.left(),
-                task.left() == 0,
-                task.event() == AnnounceEventType.PAUSED,
-                task.passKey(),
-                Timestamp.from(Instant.now()),
-                0, 0,
-                0,
-                user
-        );
+        boolean completed = task.event() == AnnounceEventType.COMPLETED
+                || (last != null && !last.seeder() && task.left() == 0);
+        // User and transfer history rows are updated by the write-behind stage
+        writeBehindService.record(new AnnounceWriteBehindService.AnnounceAccounting(task.userId(), torrent.id(),
+                promotionUploadOffset, promotionDownloadOffset, uploadedOffset, downloadedOffset, seedingTimeOffset,
+                task.left(), bytesPerSecondUploading, bytesPerSecondDownloading, task.event(), completed, now));
     }
 
     public record AnnounceTask(
-            @NotNull String ip, int port, @NotNull String infoHash, @NotNull String peerId,
+            @NotNull String ip, int port, @NotNull InfoHash infoHash, @NotNull String peerId,
             long uploaded, long downloaded, long left, @NotNull AnnounceEventType event,
-            int numWant, long userId, boolean compact, boolean noPeerId,
+            int numWant, long userId, long groupId, boolean compact, boolean noPeerId,
             boolean supportCrypto, int redundant, String userAgent, String passKey, long torrentId
     ) {
 
     }
+
+    public record PartitionStats(int index, int depth, long processed, long rejected, long coalesced) {
+    }
+
+    private record PeerKey(String passKey, @NotNull InfoHash infoHash, @NotNull String ip, int port) {
+    }
+
+    record TrafficKey(String passKey, @NotNull InfoHash infoHash, @NotNull String peerId) {
+    }
+
+    /**
+     * The totals a client reported last, whichever of its addresses they came with.
+     */
+    record Traffic(long uploaded, long downloaded, long updateAt, boolean seeder) {
+    }
+
+    /**
+     * A queued task, replaced in place by the later announces of the same peer.
+     * Only accessed under the lock of its entry in {@link Partition#pending} until the worker unlinks it.
+     */
+    private static class Slot {
+        private final PeerKey key;
+        private AnnounceTask task;
+
+        private Slot(@NotNull PeerKey key, @NotNull AnnounceTask task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * Take the newer task in place of the queued one. Counters are totals reported by the client, so the latest
+         * task alone gives the same deltas once the worker compares it with the swarm state.
+         *
+         * @return false if the queued task carries an event that must be handled on its own
+         */
+        private boolean absorb(@NotNull AnnounceTask newer) {
+            if (isLifecycle(task.event())) return false;
+            task = newer;
+            return true;
+        }
+
+        private static boolean isLifecycle(@NotNull AnnounceEventType event) {
+            return event == AnnounceEventType.STARTED || event == AnnounceEventType.COMPLETED
+                    || event == AnnounceEventType.STOPPED;
+        }
+    }
+
+    private static class Partition {
+        private final int index;
+        private final BlockingQueue<Slot> queue;
+        private final Map<PeerKey, Slot> pending = new ConcurrentHashMap<>();
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        // Only touched by the worker, or by shutdown() once the worker is gone
+        private final Map<TrafficKey, Traffic> traffic = new HashMap<>();
+        private long lastTrafficPurge = System.currentTimeMillis();
+        private Thread thread;
+
+        private Partition(int index, int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
 }
@@ -0,0 +1,486 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Write-behind stage of announce accounting.
+ * User traffic is added up in striped {@link LongAdder} cells per user, so workers never contend on a lock,
+ * and transfer histories are merged per (user, torrent). Both are flushed together in one transaction as JDBC
+ * batches, once enough rows are pending or the flush interval elapsed.
+ * Every counter is written as a delta ({@code column = column + ?}), so a failed flush is simply merged back
+ * and retried, and other writers of the same rows never get overwritten. When the database is reachable but the
+ * batch still fails, rows are retried one by one so a single bad row can't hold back the others, and a row failing
+ * that many flushes in a row is dropped.
+ * Flushes never overlap, whichever thread asks for one, and the completion listener hears about every transfer
+ * history becoming complete once its flush committed.
+ */
+@Service
+@Slf4j
+public class AnnounceWriteBehindService {
+    private static final String UPDATE_USER = "UPDATE users SET uploaded = uploaded + ?, downloaded = downloaded + ?, " +
+            "real_uploaded = real_uploaded + ?, real_downloaded = real_downloaded + ?, seeding_time = seeding_time + ? " +
+            "WHERE id = ?";
+    // Runs before UPDATE_HISTORY, so to_go is still the old value. An update count of 1 is a new completion
+    private static final String MARK_HISTORY_COMPLETE = "UPDATE transfer_history SET have_complete_history = TRUE " +
+            "WHERE user_id = ? AND torrent_id = ? AND have_complete_history = FALSE AND (? OR (to_go <> 0 AND ? = 0))";
+    private static final String UPDATE_HISTORY = "UPDATE transfer_history SET " +
+            "to_go = ?, updated_at = ?, uploaded = uploaded + ?, downloaded = downloaded + ?, " +
+            "actual_uploaded = actual_uploaded + ?, actual_downloaded = actual_downloaded + ?, " +
+            "upload_speed = ?, download_speed = ?, last_event = ? WHERE user_id = ? AND torrent_id = ?";
+    private static final String INSERT_HISTORY = "INSERT INTO transfer_history (user_id, torrent_id, to_go, started_at, " +
+            "updated_at, uploaded, downloaded, actual_uploaded, actual_downloaded, upload_speed, download_speed, " +
+            "last_event, have_complete_history) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // Cells of a user idle for this many flushes are dropped
+    private static final int IDLE_FLUSHES_BEFORE_EVICT = 60;
+    private final Map<Long, UserTraffic> userTraffic = new ConcurrentHashMap<>();
+    private final Map<HistoryKey, HistoryDelta> historyDeltas = new ConcurrentHashMap<>();
+    private final BlockingQueue<Boolean> flushSignal = new ArrayBlockingQueue<>(1);
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong lastFlushNs = new AtomicLong();
+    private final AtomicLong maxFlushNs = new AtomicLong();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Consecutive failed flushes of single rows, only touched under the flush lock
+    private final Map<Long, Integer> userAttempts = new HashMap<>();
+    private final Map<HistoryKey, Integer> historyAttempts = new HashMap<>();
+    private volatile LongConsumer completionListener = torrentId -> {
+    };
+    private volatile boolean running;
+    private Thread flushThread;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private TrackerProperties trackerProperties;
+
+    public void record(@NotNull AnnounceAccounting accounting) {
+        addTraffic(accounting.userId(), accounting.uploaded(), accounting.downloaded(), accounting.realUploaded(),
+                accounting.realDownloaded(), accounting.seedingTime());
+        historyDeltas.merge(new HistoryKey(accounting.userId(), accounting.torrentId()), HistoryDelta.of(accounting), HistoryDelta::merge);
+        if (historyDeltas.size() >= trackerProperties.getWriteBehind().getBatchSize()) {
+            flushSignal.offer(Boolean.TRUE);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        flushThread = new Thread(this::flushLoop, "Announce Write-Behind");
+        flushThread.setDaemon(true);
+        flushThread.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = flushThread;
+        }
+        if (thread != null) {
+            flushSignal.offer(Boolean.TRUE);
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        // Whatever arrived after the last loop round
+        flush();
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                flushSignal.poll(trackerProperties.getWriteBehind().getFlushInterval(), TimeUnit.MILLISECONDS);
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Unexpected error in announce write-behind loop", e);
+            }
+        }
+    }
+
+    /**
+     * @param listener called with the torrent id of every transfer history which became complete, after the commit
+     */
+    public void setCompletionListener(@NotNull LongConsumer listener) {
+        this.completionListener = listener;
+    }
+
+    /**
+     * Write everything pending, then run the action before any other flush can start.
+     * Lets a reader count rows without a flush landing between its count and its use of it.
+     */
+    public <T> T flushThen(@NotNull Supplier<T> action) {
+        flushLock.lock();
+        try {
+            flush();
+            return action.get();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Write everything pending in one transaction.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            flushLocked();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushLocked() {
+        List<UserDelta> users = drainTraffic();
+        List<HistoryDelta> histories = drain(historyDeltas);
+        if (users.isEmpty() && histories.isEmpty()) return;
+        long start = System.nanoTime();
+        try {
+            List<Long> completedTorrents = transactionTemplate.execute(status -> {
+                flushUsers(users);
+                return flushHistories(histories);
+            });
+            notifyCompletions(completedTorrents);
+            userAttempts.clear();
+            historyAttempts.clear();
+            long ns = System.nanoTime() - start;
+            flushes.incrementAndGet();
+            flushedRows.addAndGet(users.size() + histories.size());
+            lastFlushNs.set(ns);
+            maxFlushNs.accumulateAndGet(ns, Math::max);
+            log.debug("Flushed {} users and {} transfer histories in {} ms", users.size(), histories.size(), ns / 1000000);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            if (isTransient(e)) {
+                log.error("Failed to flush {} users and {} transfer histories, they will be retried", users.size(), histories.size(), e);
+                // Deltas are additive, merging them back loses nothing
+                users.forEach(this::mergeBack);
+                histories.forEach(this::mergeBack);
+                return;
+            }
+            log.warn("Failed to flush {} users and {} transfer histories in one batch, retrying them one by one",
+                    users.size(), histories.size(), e);
+            flushOneByOne(users, histories);
+        }
+    }
+
+    private void flushOneByOne(@NotNull List<UserDelta> users, @NotNull List<HistoryDelta> histories) {
+        for (UserDelta delta : users) {
+            try {
+                flushUsers(List.of(delta));
+                userAttempts.remove(delta.userId());
+            } catch (Exception e) {
+                if (isTransient(e) || userAttempts.merge(delta.userId(), 1, Integer::sum) < maxAttempts()) {
+                    mergeBack(delta);
+                    continue;
+                }
+                userAttempts.remove(delta.userId());
+                log.error("Dropped the pending traffic {} after {} failed flushes", delta, maxAttempts(), e);
+            }
+        }
+        for (HistoryDelta delta : histories) {
+            try {
+                notifyCompletions(flushHistory(delta));
+                historyAttempts.remove(delta.key());
+            } catch (Exception e) {
+                if (isTransient(e) || historyAttempts.merge(delta.key(), 1, Integer::sum) < maxAttempts()) {
+                    mergeBack(delta);
+                    continue;
+                }
+                historyAttempts.remove(delta.key());
+                log.error("Dropped the pending transfer history {} after {} failed flushes", delta, maxAttempts(), e);
+            }
+        }
+    }
+
+    @Nullable
+    private List<Long> flushHistory(@NotNull HistoryDelta delta) {
+        try {
+            return transactionTemplate.execute(status -> flushHistories(List.of(delta)));
+        } catch (DuplicateKeyException e) {
+            // Inserted by another node since the update found no row, it updates now
+            return transactionTemplate.execute(status -> flushHistories(List.of(delta)));
+        }
+    }
+
+    private void notifyCompletions(@Nullable List<Long> completedTorrents) {
+        if (completedTorrents == null) return;
+        completedTorrents.forEach(torrentId -> completionListener.accept(torrentId));
+    }
+
+    private void mergeBack(@NotNull UserDelta delta) {
+        addTraffic(delta.userId(), delta.uploaded(), delta.downloaded(), delta.realUploaded(),
+                delta.realDownloaded(), delta.seedingTime());
+    }
+
+    private void mergeBack(@NotNull HistoryDelta delta) {
+        historyDeltas.merge(delta.key(), delta, HistoryDelta::merge);
+    }
+
+    private int maxAttempts() {
+        return trackerProperties.getWriteBehind().getMaxAttempts();
+    }
+
+    /**
+     * @return whether the failure is about the database being unavailable rather than about the rows
+     */
+    private static boolean isTransient(@NotNull Exception e) {
+        return e instanceof TransientDataAccessException || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException || e instanceof TransactionException;
+    }
+
+    private void flushUsers(@NotNull List<UserDelta> users) {
+        if (users.isEmpty()) return;
+        List<Object[]> args = new ArrayList<>(users.size());
+        for (UserDelta delta : users) {
+            args.add(new Object[]{delta.uploaded(), delta.downloaded(), delta.realUploaded(), delta.realDownloaded(),
+                    delta.seedingTime(), delta.userId()});
+        }
+        jdbcTemplate.batchUpdate(UPDATE_USER, args);
+    }
+
+    /**
+     * @return torrent ids of the histories which became complete
+     */
+    @NotNull
+    private List<Long> flushHistories(@NotNull List<HistoryDelta> histories) {
+        List<Long> completedTorrents = new ArrayList<>();
+        if (histories.isEmpty()) return completedTorrents;
+        List<HistoryDelta> completing = new ArrayList<>();
+        List<Object[]> marks = new ArrayList<>();
+        for (HistoryDelta delta : histories) {
+            if (!delta.completed() && delta.left() != 0) continue;
+            completing.add(delta);
+            marks.add(new Object[]{delta.userId(), delta.torrentId(), delta.completed(), delta.left()});
+        }
+        if (!marks.isEmpty()) {
+            int[] counts = jdbcTemplate.batchUpdate(MARK_HISTORY_COMPLETE, marks);
+            for (int i = 0; i < counts.length; i++) {
+                // SUCCESS_NO_INFO can't tell, the next reconciliation picks those up
+                if (counts[i] == 1) completedTorrents.add(completing.get(i).torrentId());
+            }
+        }
+        List<Object[]> updates = new ArrayList<>(histories.size());
+        for (HistoryDelta delta : histories) {
+            Timestamp updatedAt = new Timestamp(delta.updatedAt());
+            updates.add(new Object[]{delta.left(), updatedAt,
+                    delta.uploaded(), delta.downloaded(), delta.actualUploaded(), delta.actualDownloaded(),
+                    delta.uploadSpeed(), delta.downloadSpeed(), delta.event().ordinal(), delta.userId(), delta.torrentId()});
+        }
+        int[] counts = jdbcTemplate.batchUpdate(UPDATE_HISTORY, updates);
+        List<Object[]> inserts = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            // Only a definite 0 means a missing row, SUCCESS_NO_INFO (rewritten batches) is taken as an update
+            if (counts[i] != 0) continue;
+            HistoryDelta delta = histories.get(i);
+            Timestamp updatedAt = new Timestamp(delta.updatedAt());
+            inserts.add(new Object[]{delta.userId(), delta.torrentId(), delta.left(), updatedAt, updatedAt,
+                    delta.uploaded(), delta.downloaded(), delta.actualUploaded(), delta.actualDownloaded(),
+                    delta.uploadSpeed(), delta.downloadSpeed(), delta.event().ordinal(), delta.completed()});
+            if (delta.completed()) completedTorrents.add(delta.torrentId());
+        }
+        if (!inserts.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_HISTORY, inserts);
+        }
+        return completedTorrents;
+    }
+
+    private void addTraffic(long userId, long uploaded, long downloaded, long realUploaded, long realDownloaded, long seedingTime) {
+        while (true) {
+            UserTraffic traffic = userTraffic.computeIfAbsent(userId, id -> new UserTraffic());
+            if (!traffic.enter()) {
+                // Retired by the flusher meanwhile, it is being removed from the map
+                userTraffic.remove(userId, traffic);
+                continue;
+            }
+            try {
+                traffic.uploaded.add(uploaded);
+                traffic.downloaded.add(downloaded);
+                traffic.realUploaded.add(realUploaded);
+                traffic.realDownloaded.add(realDownloaded);
+                traffic.seedingTime.add(seedingTime);
+            } finally {
+                traffic.exit();
+            }
+            return;
+        }
+    }
+
+    @NotNull
+    private List<UserDelta> drainTraffic() {
+        List<UserDelta> drained = new ArrayList<>();
+        for (Map.Entry<Long, UserTraffic> entry : userTraffic.entrySet()) {
+            UserTraffic traffic = entry.getValue();
+            UserDelta delta = traffic.drain(entry.getKey());
+            if (!delta.isEmpty()) {
+                traffic.idleFlushes = 0;
+                drained.add(delta);
+                continue;
+            }
+            if (++traffic.idleFlushes >= IDLE_FLUSHES_BEFORE_EVICT && traffic.retire()) {
+                userTraffic.remove(entry.getKey(), traffic);
+                // Nobody can add anymore, pick up what was added since the drain above
+                delta = traffic.drain(entry.getKey());
+                if (!delta.isEmpty()) drained.add(delta);
+            }
+        }
+        return drained;
+    }
+
+    @NotNull
+    private static <K, V> List<V> drain(@NotNull Map<K, V> pending) {
+        List<V> drained = new ArrayList<>(pending.size());
+        for (K key : pending.keySet()) {
+            // remove(key) takes the latest merged value, later records start a new entry
+            V value = pending.remove(key);
+            if (value != null) drained.add(value);
+        }
+        return drained;
+    }
+
+    public int getPendingRows() {
+        return historyDeltas.size();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFlushedRows() {
+        return flushedRows.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public double getLastFlushMs() {
+        return lastFlushNs.get() / 1000000d;
+    }
+
+    public double getMaxFlushMs() {
+        return maxFlushNs.get() / 1000000d;
+    }
+
+    /**
+     * Accounting result of a single handled announce.
+     *
+     * @param completed the peer finished the download with this announce
+     */
+    public record AnnounceAccounting(
+            long userId, long torrentId, long uploaded, long downloaded, long realUploaded, long realDownloaded,
+            long seedingTime, long left, long uploadSpeed, long downloadSpeed, @NotNull AnnounceEventType event,
+            boolean completed, long updatedAt
+    ) {
+    }
+
+    private record HistoryKey(long userId, long torrentId) {
+    }
+
+    private record UserDelta(long userId, long uploaded, long downloaded, long realUploaded, long realDownloaded,
+                             long seedingTime) {
+        boolean isEmpty() {
+            return uploaded == 0 && downloaded == 0 && realUploaded == 0 && realDownloaded == 0 && seedingTime == 0;
+        }
+    }
+
+    /**
+     * Pending traffic of a user. Writers register in {@code writers} around their adds, the flusher may only
+     * retire the cells (writers = -1) while nobody is adding, so no delta can land in a dropped instance.
+     */
+    private static final class UserTraffic {
+        private final LongAdder uploaded = new LongAdder();
+        private final LongAdder downloaded = new LongAdder();
+        private final LongAdder realUploaded = new LongAdder();
+        private final LongAdder realDownloaded = new LongAdder();
+        private final LongAdder seedingTime = new LongAdder();
+        private final AtomicInteger writers = new AtomicInteger();
+        // Only touched by the flusher
+        private int idleFlushes;
+
+        boolean enter() {
+            while (true) {
+                int current = writers.get();
+                if (current < 0) return false;
+                if (writers.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        void exit() {
+            writers.decrementAndGet();
+        }
+
+        boolean retire() {
+            return writers.compareAndSet(0, -1);
+        }
+
+        @NotNull
+        UserDelta drain(long userId) {
+            return new UserDelta(userId, uploaded.sumThenReset(), downloaded.sumThenReset(), realUploaded.sumThenReset(),
+                    realDownloaded.sumThenReset(), seedingTime.sumThenReset());
+        }
+    }
+
+    private record HistoryDelta(long userId, long torrentId, long left, long uploaded, long downloaded,
+                                long actualUploaded, long actualDownloaded, long uploadSpeed, long downloadSpeed,
+                                @NotNull AnnounceEventType event, boolean completed, long updatedAt) {
+        @NotNull
+        static HistoryDelta of(@NotNull AnnounceAccounting a) {
+            return new HistoryDelta(a.userId(), a.torrentId(), a.left(), a.uploaded(), a.downloaded(),
+                    a.realUploaded(), a.realDownloaded(), a.uploadSpeed(), a.downloadSpeed(), a.event(), a.completed(), a.updatedAt());
+        }
+
+        @NotNull
+        HistoryKey key() {
+            return new HistoryKey(userId, torrentId);
+        }
+
+        /**
+         * Sum the traffic, the latest state wins for everything else.
+         */
+        @NotNull
+        HistoryDelta merge(@NotNull HistoryDelta other) {
+            HistoryDelta latest = other.updatedAt >= updatedAt ? other : this;
+            return new HistoryDelta(userId, torrentId, latest.left, uploaded + other.uploaded, downloaded + other.downloaded,
+                    actualUploaded + other.actualUploaded, actualDownloaded + other.actualDownloaded,
+                    latest.uploadSpeed, latest.downloadSpeed, latest.event, completed || other.completed, latest.updatedAt);
+        }
+    }
+}
@@ -4,8 +4,6 @@ import com.github.bitsapling.sapling.config.SecurityConfig;
 import com.github.bitsapling.sapling.entity.User;
 import com.github.bitsapling.sapling.exception.APIErrorCode;
 import com.github.bitsapling.sapling.exception.APIGenericException;
-import com.github.bitsapling.sapling.redisentity.RedisLoginAttempt;
-import com.github.bitsapling.sapling.redisrepository.RedisLoginAttemptRepository;
 import com.github.bitsapling.sapling.type.LoginType;
 import com.github.bitsapling.sapling.util.IPUtil;
 import com.github.bitsapling.sapling.util.PasswordHash;
@@ -17,8 +15,6 @@ import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.Optional;
-
 @Service
 @Slf4j
 public class AuthenticationService {
@@ -29,9 +25,11 @@ public class AuthenticationService {
     @Autowired
     private HttpServletRequest request;
     @Autowired
-    private RedisLoginAttemptRepository repository;
+    private LoginAttemptService loginAttemptService;
     @Autowired
     private SettingService settingService;
+    @Autowired
+    private PasskeyCacheService passkeyCacheService;
 
     private SecurityConfig getSecurityConfig() {
         return settingService.get(SecurityConfig.getConfigKey(), SecurityConfig.class);
@@ -54,40 +52,45 @@ public class AuthenticationService {
 
     @Nullable
     public User authenticate(@NotNull String passkey, @Nullable String ipAddress) {
-        checkPasskeyLoginAttempts(ipAddress);
-        User user = userService.getUserByPasskey(passkey);
         if (StringUtils.isEmpty(ipAddress)) {
             ipAddress = IPUtil.getRequestIp(request);
         }
-        if (user != null) {
+        return authenticate(passkey, ipAddress, request.getHeader("User-Agent"));
+    }
+
+    /**
+     * Passkey authentication without a servlet request.
+     */
+    @Nullable
+    public User authenticate(@NotNull String passkey, @NotNull String ipAddress, @NotNull String userAgent) {
+        PasskeyCacheService.PasskeyIdentity identity = authenticatePasskey(passkey, ipAddress, userAgent);
+        return identity == null ? null : userService.getUser(identity.userId());
+    }
+
+    /**
+     * Passkey authentication for the tracker endpoints, resolved from the passkey cache without loading the user.
+     */
+    @Nullable
+    public PasskeyCacheService.PasskeyIdentity authenticatePasskey(@NotNull String passkey, @NotNull String ipAddress, @NotNull String userAgent) {
+        checkPasskeyLoginAttempts(ipAddress);
+        PasskeyCacheService.PasskeyIdentity identity = passkeyCacheService.get(passkey);
+        if (identity != null) {
             cleanUserLoginFail(ipAddress);
-            loginHistoryService.log(user, LoginType.PASSKEY, ipAddress, request.getHeader("User-Agent"));
+            loginHistoryService.logPasskey(identity.userId(), ipAddress, userAgent);
         } else {
             markUserLoginFail(ipAddress);
         }
-        return user;
+        return identity;
     }
 
     public void cleanUserLoginFail(@Nullable String ip) {
         if(ip == null) return;
-        Optional<RedisLoginAttempt> optional = repository.findByIp(ip);
-        optional.ifPresent(redisLoginAttempt -> repository.delete(redisLoginAttempt));
+        loginAttemptService.reset(ip);
     }
 
     public long markUserLoginFail(@Nullable String ip) {
         if(ip == null) return 0;
-        Optional<RedisLoginAttempt> optional = repository.findByIp(ip);
-        RedisLoginAttempt loginAttempt;
-        if (optional.isPresent()) {
-            loginAttempt = optional.get();
-            loginAttempt.setAttempts(loginAttempt.getAttempts() + 1);
-        } else {
-            loginAttempt = new RedisLoginAttempt();
-            loginAttempt.setIp(ip);
-        }
-        loginAttempt.setLastAttempt(System.currentTimeMillis());
-        loginAttempt = repository.save(loginAttempt);
-        return loginAttempt.getAttempts();
+        return loginAttemptService.markFailure(ip);
     }
 
     public void checkAccountLoginAttempts(@Nullable String ip){
@@ -105,8 +108,6 @@ public class AuthenticationService {
 
     public long getUserFail(@Nullable String ip) {
         if (ip == null) return 0;
-        Optional<RedisLoginAttempt> optional = repository.findByIp(ip);
-        long attempts = optional.map(RedisLoginAttempt::getAttempts).orElse(0L);
-        return attempts;
+        return loginAttemptService.getFailures(ip);
     }
 }
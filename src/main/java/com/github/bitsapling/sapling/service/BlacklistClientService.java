@@ -1,52 +1,151 @@
 package com.github.bitsapling.sapling.service;
 
-import com.github.bitsapling.sapling.exception.BrowserReadableAnnounceException;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.config.ClientPolicyConfig;
 import com.github.bitsapling.sapling.exception.FixedAnnounceException;
-import jakarta.servlet.http.HttpServletRequest;
-import org.apache.commons.lang3.StringUtils;
+import com.github.bitsapling.sapling.util.KeywordMatcher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
+/**
+ * Allows or denies clients by User-Agent and peer_id, as configured in {@link ClientPolicyConfig}.
+ * The policy is compiled once per settings snapshot, and the verdict of each distinct User-Agent and peer_id prefix
+ * is remembered, so checking a known client is a single cache lookup.
+ */
 @Service
 @Repository
-
+@Slf4j
 public class BlacklistClientService {
-    private static final String[] BROWSER_BOT_SOFTWARE_KEYWORDS = new String[]{
-            "Mozilla",
-            "Browser",
-            "Chrome",
-            "Safari",
-            "AppleWebKit",
-            "Opera",
-            "Links",
-            "Lynx",
-            "Bot",
-            "Crawler",
-            "Spider",
-            "Unknown"
-    };
-
-    public void checkClient(@NotNull HttpServletRequest request) throws FixedAnnounceException, BrowserReadableAnnounceException {
-        String ua = request.getHeader("User-Agent");
-        if (StringUtils.isEmpty(ua)) {
-            throw new FixedAnnounceException("Client didn't send user-agent to tracker server.");
+    // Client and version part of an Azureus-style peer_id, like -qB4650-
+    private static final int PEER_ID_PREFIX_LENGTH = 8;
+    private static final int VERSION_OFFSET = 3;
+    private static final int VERSION_LENGTH = 4;
+    private volatile Policy policy;
+    @Autowired
+    private SettingService settingService;
+    @Autowired
+    private TrackerProperties trackerProperties;
+
+    /**
+     * @param peerId null when the request carries none, like a scrape
+     */
+    public void checkClient(@NotNull String userAgent, @Nullable String peerId) throws FixedAnnounceException {
+        String peerIdPrefix = peerId == null ? "" : peerId.substring(0, Math.min(PEER_ID_PREFIX_LENGTH, peerId.length()));
+        Policy current = policy();
+        Verdict verdict = current.verdicts().asMap().computeIfAbsent(new ClientKey(userAgent, peerIdPrefix),
+                key -> current.judge(key.userAgent(), key.peerIdPrefix()));
+        switch (verdict) {
+            case BROWSER -> throw new FixedAnnounceException("You must use a Bittorrent Client to connect this tracker.");
+            case DENIED -> throw new FixedAnnounceException("Disallowed client: " + userAgent);
+            default -> {
+            }
+        }
+    }
+
+    @NotNull
+    private Policy policy() {
+        ClientPolicyConfig config = settingService.get(ClientPolicyConfig.getConfigKey(), ClientPolicyConfig.class);
+        Policy current = policy;
+        if (current == null || current.source() != config) {
+            current = compile(config, trackerProperties.getClientPolicy().getVerdictCacheSize());
+            policy = current;
         }
-        checkBrowser(ua);
-        if (!checkAllowedClient(ua)) {
-            throw new FixedAnnounceException("Disallowed client: " + ua);
+        return current;
+    }
+
+    @NotNull
+    private static Policy compile(@NotNull ClientPolicyConfig config, long verdictCacheSize) {
+        Map<String, List<PeerIdRule>> peerIdRules = new HashMap<>();
+        TreeSet<Integer> prefixLengths = new TreeSet<>();
+        if (config.getPeerIdRules() != null) {
+            for (String line : config.getPeerIdRules()) {
+                PeerIdRule rule = PeerIdRule.parse(line);
+                if (rule == null) {
+                    log.warn("Ignored invalid peer_id rule: {}", line);
+                    continue;
+                }
+                peerIdRules.computeIfAbsent(rule.prefix(), key -> new ArrayList<>()).add(rule);
+                prefixLengths.add(rule.prefix().length());
+            }
         }
+        Cache<ClientKey, Verdict> verdicts = CacheBuilder.newBuilder()
+                .maximumSize(verdictCacheSize)
+                .build();
+        return new Policy(config, config.isAllowListMode(), KeywordMatcher.compile(config.getBrowserKeywords()),
+                KeywordMatcher.compile(config.getUserAgentKeywords()), Map.copyOf(peerIdRules),
+                prefixLengths.stream().mapToInt(Integer::intValue).toArray(), verdicts);
+    }
+
+    private enum Verdict {
+        ALLOWED, DENIED, BROWSER
+    }
+
+    private record ClientKey(@NotNull String userAgent, @NotNull String peerIdPrefix) {
     }
 
-    private boolean checkAllowedClient(@NotNull String ua) {
-        return true;
+    /**
+     * @param source         the settings it was compiled from, compared by identity
+     * @param prefixLengths  distinct lengths of the peer_id rule prefixes, in ascending order
+     */
+    private record Policy(@NotNull ClientPolicyConfig source, boolean allowListMode, @NotNull KeywordMatcher browsers,
+                          @NotNull KeywordMatcher userAgents, @NotNull Map<String, List<PeerIdRule>> peerIdRules,
+                          int @NotNull [] prefixLengths, @NotNull Cache<ClientKey, Verdict> verdicts) {
+        @NotNull
+        private Verdict judge(@NotNull String userAgent, @NotNull String peerIdPrefix) {
+            if (browsers.matches(userAgent)) return Verdict.BROWSER;
+            boolean matched = userAgents.matches(userAgent) || matchesPeerId(peerIdPrefix);
+            return matched == allowListMode ? Verdict.ALLOWED : Verdict.DENIED;
+        }
+
+        private boolean matchesPeerId(@NotNull String peerIdPrefix) {
+            for (int length : prefixLengths) {
+                if (length > peerIdPrefix.length()) break;
+                List<PeerIdRule> rules = peerIdRules.get(peerIdPrefix.substring(0, length));
+                if (rules == null) continue;
+                for (PeerIdRule rule : rules) {
+                    if (rule.matches(peerIdPrefix)) return true;
+                }
+            }
+            return false;
+        }
     }
 
-    private void checkBrowser(@NotNull String ua) throws BrowserReadableAnnounceException {
-        if (Arrays.stream(BROWSER_BOT_SOFTWARE_KEYWORDS).map(String::toLowerCase).anyMatch(ua::contains)) {
-            throw new BrowserReadableAnnounceException("You must use a Bittorrent Client to connect this tracker.");
+    /**
+     * @param minVersion null to match every version
+     */
+    record PeerIdRule(@NotNull String prefix, @Nullable String minVersion, @Nullable String maxVersion) {
+        @Nullable
+        static PeerIdRule parse(@Nullable String line) {
+            if (line == null || line.isBlank()) return null;
+            String[] parts = line.trim().split("\\s+");
+            String prefix = parts[0];
+            if (prefix.length() > PEER_ID_PREFIX_LENGTH || parts.length > 2) return null;
+            if (parts.length == 1) return new PeerIdRule(prefix, null, null);
+            String[] range = parts[1].split("-");
+            if (range.length != 2 || range[0].length() != VERSION_LENGTH || range[1].length() != VERSION_LENGTH) {
+                return null;
+            }
+            return new PeerIdRule(prefix, range[0], range[1]);
+        }
+
+        boolean matches(@NotNull String peerIdPrefix) {
+            if (minVersion == null) return true;
+            if (peerIdPrefix.length() < VERSION_OFFSET + VERSION_LENGTH) return false;
+            // Version chars are digits, then letters, so their order is the order of the versions
+            String version = peerIdPrefix.substring(VERSION_OFFSET, VERSION_OFFSET + VERSION_LENGTH);
+            return version.compareTo(minVersion) >= 0 && version.compareTo(maxVersion) <= 0;
         }
     }
 }
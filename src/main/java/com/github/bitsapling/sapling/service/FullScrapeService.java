@@ -0,0 +1,153 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.tracker.TrackerResponseWriter;
+import com.github.bitsapling.sapling.util.BencodeWriter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Full scrape (a scrape without info_hash) answered from a snapshot file instead of walking every torrent per request.
+ * Each build writes a new generation of files and publishes it once complete, so readers always get a consistent file.
+ * The previous generation is kept until the next build, in case it is still being sent.
+ */
+@Service
+@Slf4j
+public class FullScrapeService {
+    private static final String SELECT_TORRENTS = "SELECT id, info_hash FROM torrents";
+    private static final String FILE_PREFIX = "full-scrape.";
+    // Bytes buffered in the writer before being handed to the file
+    private static final int CHUNK_SIZE = 32 * 1024;
+    // Not synchronized, a virtual thread blocked on JDBC or file I/O inside a monitor pins its carrier
+    private final ReentrantLock buildLock = new ReentrantLock();
+    private volatile Snapshot plain;
+    private volatile Snapshot gzipped;
+    // Guarded by buildLock
+    private long generation;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private TorrentStatsService torrentStatsService;
+
+    /**
+     * @param acceptGzip whether the client accepts a gzip encoded response
+     * @return the latest snapshot, null if full scrape is disabled or no snapshot was built yet
+     */
+    @Nullable
+    public Snapshot getSnapshot(boolean acceptGzip) {
+        if (!trackerProperties.getFullScrape().isEnabled()) return null;
+        Snapshot snapshot = acceptGzip ? gzipped : null;
+        return snapshot != null ? snapshot : plain;
+    }
+
+    /**
+     * Build and publish a new snapshot of every registered torrent.
+     */
+    public void build() throws IOException {
+        TrackerProperties.FullScrape config = trackerProperties.getFullScrape();
+        if (!config.isEnabled()) return;
+        buildLock.lock();
+        try {
+            buildLocked(config);
+        } finally {
+            buildLock.unlock();
+        }
+    }
+
+    private void buildLocked(@NotNull TrackerProperties.FullScrape config) throws IOException {
+        long start = System.currentTimeMillis();
+        List<ScrapeEntry> entries = jdbcTemplate.query(SELECT_TORRENTS,
+                (rs, rowNum) -> new ScrapeEntry(rs.getLong(1), InfoHash.fromHex(rs.getString(2))));
+        // Dictionary keys must be sorted by raw bytes, don't depend on the collation of the column
+        entries.sort(Comparator.comparing(ScrapeEntry::infoHash));
+        torrentStatsService.loadAllCompletions(entries.stream().map(ScrapeEntry::torrentId).toList());
+
+        Path directory = Path.of(config.getDirectory());
+        Files.createDirectories(directory);
+        // Wall clock generations never collide with the files left by a previous run
+        long current = Math.max(generation + 1, start);
+        Path plainPath = directory.resolve(FILE_PREFIX + current + ".benc");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(plainPath))) {
+            writeSnapshot(out, entries, (int) (config.getInterval() * 60L));
+        }
+        Snapshot newPlain = new Snapshot(plainPath, Files.size(plainPath), false);
+        Snapshot newGzipped = null;
+        if (config.isGzip()) {
+            Path gzipPath = directory.resolve(FILE_PREFIX + current + ".benc.gz");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipPath), CHUNK_SIZE)) {
+                Files.copy(plainPath, out);
+            }
+            newGzipped = new Snapshot(gzipPath, Files.size(gzipPath), true);
+        }
+        plain = newPlain;
+        gzipped = newGzipped;
+        long previous = generation;
+        generation = current;
+        deleteOlderThan(directory, previous);
+        log.info("Full scrape snapshot of {} torrents built in {} ms, {} bytes", entries.size(),
+                System.currentTimeMillis() - start, newPlain.length());
+    }
+
+    private void writeSnapshot(@NotNull OutputStream out, @NotNull List<ScrapeEntry> entries, int minRequestInterval) throws IOException {
+        BencodeWriter writer = new BencodeWriter(CHUNK_SIZE * 2);
+        TrackerResponseWriter.beginScrape(writer);
+        for (ScrapeEntry entry : entries) {
+            TorrentStatsService.PeerStatus peerStatus = torrentStatsService.getPeerStatus(entry.torrentId(), entry.infoHash());
+            TrackerResponseWriter.writeScrapeFile(writer, new TrackerResponseWriter.ScrapeFile(entry.infoHash(), peerStatus));
+            if (writer.size() >= CHUNK_SIZE) {
+                writer.writeTo(out);
+                writer.reset();
+            }
+        }
+        TrackerResponseWriter.endScrape(writer, minRequestInterval);
+        writer.writeTo(out);
+    }
+
+    /**
+     * Delete the snapshot files of generations before the given one.
+     */
+    private void deleteOlderThan(@NotNull Path directory, long keep) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int end = name.indexOf('.', FILE_PREFIX.length());
+                if (end < 0) continue;
+                try {
+                    if (Long.parseLong(name.substring(FILE_PREFIX.length(), end)) < keep) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to clean up old full scrape snapshots", e);
+        }
+    }
+
+    /**
+     * @param gzip whether the file is gzip encoded, to be sent with {@code Content-Encoding: gzip}
+     */
+    public record Snapshot(@NotNull Path path, long length, boolean gzip) {
+    }
+
+    private record ScrapeEntry(long torrentId, @NotNull InfoHash infoHash) {
+    }
+}
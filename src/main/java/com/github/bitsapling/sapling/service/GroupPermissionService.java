@@ -0,0 +1,208 @@
+package com.github.bitsapling.sapling.service;
+
+import cn.dev33.satoken.util.SaFoxUtil;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.entity.Permission;
+import com.github.bitsapling.sapling.entity.User;
+import com.github.bitsapling.sapling.entity.UserGroup;
+import com.github.bitsapling.sapling.repository.UserGroupRepository;
+import com.github.bitsapling.sapling.repository.UserRepository;
+import com.github.bitsapling.sapling.util.HibernateSessionUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Permissions of users resolved in memory, for Sa-Token checks.
+ * Permission slugs get small integer ids on first sight, and the permissions of a group are kept as an immutable
+ * bitset, so a check is a cached user to group lookup and one bit test.
+ * Saving a user or a group drops what was cached for it, on every node through a Redis channel.
+ */
+@Service
+@Slf4j
+public class GroupPermissionService {
+    private static final String INVALIDATE_CHANNEL = "sapling:permission:invalidate";
+    private final Map<String, Integer> permissionIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPermissionId = new AtomicInteger();
+    // Bumped on every invalidation, a load racing with one is not cached
+    private final AtomicLong invalidations = new AtomicLong();
+    private Cache<Long, Long> userGroups;
+    private Cache<Long, GroupPermissions> groups;
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private UserGroupRepository userGroupRepository;
+    @Autowired
+    private HibernateSessionUtil sessionUtil;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @PostConstruct
+    public void init() {
+        TrackerProperties.PermissionCache config = trackerProperties.getPermissionCache();
+        userGroups = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumUsers())
+                .expireAfterWrite(config.getTtl(), TimeUnit.MILLISECONDS)
+                .build();
+        groups = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getTtl(), TimeUnit.MILLISECONDS)
+                .build();
+        listenerContainer.addMessageListener((message, pattern) ->
+                        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * @return false as well if the user does not exist
+     */
+    public boolean hasPermission(long userId, @NotNull String permission) {
+        GroupPermissions group = getGroupPermissions(userId);
+        return group != null && group.has(permissionIds.get(permission), permission);
+    }
+
+    /**
+     * @return the group of the user, null if the user does not exist
+     */
+    @Nullable
+    public GroupPermissions getGroupPermissions(long userId) {
+        Long groupId = userGroups.getIfPresent(userId);
+        if (groupId == null) {
+            long before = invalidations.get();
+            User user = withSession(() -> userRepository.findById(userId).orElse(null));
+            if (user == null) return null;
+            groupId = user.getGroup().getId();
+            if (invalidations.get() == before) {
+                userGroups.put(userId, groupId);
+            }
+        }
+        GroupPermissions group = groups.getIfPresent(groupId);
+        if (group != null) return group;
+        long before = invalidations.get();
+        group = load(groupId);
+        if (invalidations.get() == before) {
+            groups.put(groupId, group);
+        }
+        return group;
+    }
+
+    public void invalidateUser(long userId) {
+        broadcast("user:" + userId);
+    }
+
+    public void invalidateGroup(long groupId) {
+        broadcast("group:" + groupId);
+    }
+
+    private void broadcast(@NotNull String message) {
+        invalidateLocal(message);
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, message);
+        } catch (Exception e) {
+            log.warn("Unable to broadcast the permission invalidation {}, other nodes keep it until it expires", message, e);
+        }
+    }
+
+    private void invalidateLocal(@NotNull String message) {
+        invalidations.incrementAndGet();
+        try {
+            if (message.startsWith("user:")) {
+                userGroups.invalidate(Long.parseLong(message.substring(5)));
+            } else if (message.startsWith("group:")) {
+                groups.invalidate(Long.parseLong(message.substring(6)));
+            } else {
+                log.warn("Ignored an invalid permission invalidation message: {}", message);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Ignored an invalid permission invalidation message: {}", message);
+        }
+    }
+
+    @NotNull
+    private GroupPermissions load(long groupId) {
+        return withSession(() -> {
+            UserGroup group = userGroupRepository.findById(groupId).orElseThrow(() ->
+                    new IllegalStateException("User group " + groupId + " not found"));
+            BitSet bits = new BitSet();
+            List<String> slugs = new ArrayList<>();
+            List<String> patterns = new ArrayList<>();
+            for (Permission permission : group.getPermissionEntities()) {
+                String slug = permission.getSlug();
+                slugs.add(slug);
+                if (slug.contains("*")) {
+                    patterns.add(slug);
+                } else {
+                    bits.set(permissionIds.computeIfAbsent(slug, key -> nextPermissionId.getAndIncrement()));
+                }
+            }
+            return new GroupPermissions(group.getSlug(), bits, List.copyOf(slugs), List.copyOf(patterns));
+        });
+    }
+
+    private <T> T withSession(@NotNull Supplier<T> supplier) {
+        boolean participate = sessionUtil.bindToThread();
+        try {
+            return supplier.get();
+        } finally {
+            sessionUtil.closeFromThread(participate);
+        }
+    }
+
+    /**
+     * Permissions of a group, never modified once built.
+     */
+    public static final class GroupPermissions {
+        private final String slug;
+        private final BitSet bits;
+        private final List<String> slugs;
+        // Sa-Token wildcard permissions like torrent:*, matched the way Sa-Token does
+        private final List<String> patterns;
+
+        private GroupPermissions(@NotNull String slug, @NotNull BitSet bits, @NotNull List<String> slugs, @NotNull List<String> patterns) {
+            this.slug = slug;
+            this.bits = bits;
+            this.slugs = slugs;
+            this.patterns = patterns;
+        }
+
+        private boolean has(@Nullable Integer id, @NotNull String permission) {
+            if (id != null && bits.get(id)) return true;
+            for (String pattern : patterns) {
+                if (SaFoxUtil.vagueMatch(pattern, permission)) return true;
+            }
+            return false;
+        }
+
+        @NotNull
+        public String getSlug() {
+            return slug;
+        }
+
+        @NotNull
+        public List<String> getSlugs() {
+            return slugs;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Failed authentications per IP, counted over a sliding window in memory.
+ * The window is approximated from the counts of the current and the previous fixed window, weighted by how much
+ * of the previous one still overlaps, so an IP costs a few fields whatever its number of failures.
+ * With sharing enabled, failures are also added to Redis in background, and the totals of all nodes read back,
+ * so checks never wait for the network. Resets of an IP with known failures are broadcast, every node forgets its own
+ * window of the IP.
+ */
+@Service
+@Slf4j
+public class LoginAttemptService {
+    private static final String KEY_PREFIX = "sapling:auth_fail:";
+    private static final String RESET_CHANNEL = "sapling:auth_fail:reset";
+    // Resets published by this node come back through the channel, they are skipped
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, Long> pendingFailures = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> pendingResets = new ConcurrentHashMap<>();
+    private Cache<String, Window> windows;
+    private volatile boolean running;
+    private Thread syncThread;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @PostConstruct
+    public void init() {
+        TrackerProperties.LoginAttempts config = trackerProperties.getLoginAttempts();
+        windows = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumTracked())
+                .expireAfterAccess(config.getWindow() * 2, TimeUnit.MILLISECONDS)
+                .build();
+        if (config.isShared()) {
+            listenerContainer.addMessageListener((message, pattern) ->
+                    resetLocal(new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(RESET_CHANNEL));
+        }
+    }
+
+    /**
+     * @return failures of the IP within the window
+     */
+    public long getFailures(@NotNull String ip) {
+        Window window = windows.getIfPresent(ip);
+        return window == null ? 0 : window.estimate(System.currentTimeMillis(), windowLength());
+    }
+
+    /**
+     * @return failures of the IP within the window, this one included
+     */
+    public long markFailure(@NotNull String ip) {
+        long now = System.currentTimeMillis();
+        Window window = windows.asMap().computeIfAbsent(ip, key -> new Window());
+        window.add(now, windowLength());
+        if (isShared()) {
+            pendingResets.remove(ip);
+            pendingFailures.merge(ip, 1L, Long::sum);
+        }
+        return window.estimate(now, windowLength());
+    }
+
+    public void reset(@NotNull String ip) {
+        Window window = windows.asMap().remove(ip);
+        // Called on every successful authentication, only an IP with failures seen here (or merged from the
+        // shared counts) is worth the Redis round trip and the broadcast
+        if (isShared() && (pendingFailures.remove(ip) != null || window != null)) {
+            pendingResets.put(ip, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @param message id of the node which reset, then the IPs, one per line
+     */
+    private void resetLocal(@NotNull String message) {
+        String[] lines = message.split("\n");
+        if (lines[0].equals(nodeId)) return;
+        for (int i = 1; i < lines.length; i++) {
+            windows.invalidate(lines[i]);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (!isShared() || running) return;
+        running = true;
+        syncThread = new Thread(this::syncLoop, "Login Attempt Sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = syncThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    private void syncLoop() {
+        while (running) {
+            try {
+                Thread.sleep(trackerProperties.getLoginAttempts().getSyncInterval());
+                sync();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Unable to share failed authentications through Redis", e);
+            }
+        }
+    }
+
+    /**
+     * Push the local failures and resets to Redis, and take the totals of every node for the IPs pushed.
+     */
+    private void sync() {
+        long now = System.currentTimeMillis();
+        long length = windowLength();
+        long index = now / length;
+        List<String> resets = new ArrayList<>(pendingResets.keySet());
+        resets.forEach(pendingResets::remove);
+        if (!resets.isEmpty()) {
+            List<String> keys = new ArrayList<>(resets.size() * 2);
+            for (String ip : resets) {
+                keys.add(key(index, ip));
+                keys.add(key(index - 1, ip));
+            }
+            stringRedisTemplate.delete(keys);
+            // Other nodes drop their windows too, Window.merge keeps the highest count and would never lower them
+            stringRedisTemplate.convertAndSend(RESET_CHANNEL, nodeId + "\n" + String.join("\n", resets));
+        }
+        for (String ip : new ArrayList<>(pendingFailures.keySet())) {
+            Long delta = pendingFailures.remove(ip);
+            if (delta == null) continue;
+            String key = key(index, ip);
+            Long total = stringRedisTemplate.opsForValue().increment(key, delta);
+            stringRedisTemplate.expire(key, Duration.ofMillis(length * 2));
+            String previous = stringRedisTemplate.opsForValue().get(key(index - 1, ip));
+            Window window = windows.getIfPresent(ip);
+            if (window != null && total != null) {
+                window.merge(index, total, previous == null ? 0 : Long.parseLong(previous));
+            }
+        }
+    }
+
+    private boolean isShared() {
+        return trackerProperties.getLoginAttempts().isShared();
+    }
+
+    private long windowLength() {
+        return trackerProperties.getLoginAttempts().getWindow();
+    }
+
+    @NotNull
+    private static String key(long index, @NotNull String ip) {
+        return KEY_PREFIX + index + ":" + ip;
+    }
+
+    private static final class Window {
+        private long index = -1;
+        private long current;
+        private long previous;
+
+        private synchronized void add(long now, long length) {
+            roll(now / length);
+            current++;
+        }
+
+        private synchronized long estimate(long now, long length) {
+            roll(now / length);
+            double overlap = 1 - (double) (now % length) / length;
+            return current + (long) Math.ceil(previous * overlap);
+        }
+
+        /**
+         * Take the counts of all nodes, they include the ones of this node.
+         */
+        private synchronized void merge(long windowIndex, long sharedCurrent, long sharedPrevious) {
+            if (windowIndex != index) return;
+            current = Math.max(current, sharedCurrent);
+            previous = Math.max(previous, sharedPrevious);
+        }
+
+        private void roll(long windowIndex) {
+            if (windowIndex == index) return;
+            previous = windowIndex == index + 1 ? current : 0;
+            current = 0;
+            index = windowIndex;
+        }
+    }
+}
@@ -1,26 +1,171 @@
 package com.github.bitsapling.sapling.service;
 
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
 import com.github.bitsapling.sapling.entity.LoginHistory;
 import com.github.bitsapling.sapling.entity.User;
 import com.github.bitsapling.sapling.repository.LoginHistoryRepository;
 import com.github.bitsapling.sapling.type.LoginType;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Account logins are recorded right away, one row each.
+ * Passkey logins come with every announce, so only the first one of a (user, ip, user agent) within the configured
+ * window is kept, and those are inserted in background as JDBC batches.
+ */
 @Service
-
+@Slf4j
 public class LoginHistoryService {
+    private static final String INSERT_HISTORY = "INSERT INTO login_history (user_id, time, type, ip_address, user_agent, location) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String UNKNOWN_LOCATION = "Unknown - GeoIP not initialized";
+    private final BlockingQueue<Boolean> flushSignal = new ArrayBlockingQueue<>(1);
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private Cache<PasskeyLogin, Boolean> recentPasskeyLogins;
+    private BlockingQueue<PendingLogin> pending;
+    private volatile boolean running;
+    private Thread flushThread;
     @Autowired
     private LoginHistoryRepository repository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private TrackerProperties trackerProperties;
+
+    @PostConstruct
+    public void init() {
+        TrackerProperties.LoginHistory config = trackerProperties.getLoginHistory();
+        recentPasskeyLogins = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumTracked())
+                .expireAfterWrite(config.getPasskeyWindow(), TimeUnit.MILLISECONDS)
+                .build();
+        pending = new ArrayBlockingQueue<>(config.getQueueCapacity());
+    }
 
     @NotNull
     public LoginHistory log(@NotNull User user, @NotNull LoginType loginType, @NotNull String ip, @NotNull String userAgent) {
         LoginHistory history = new LoginHistory(0, user, Timestamp.from(Instant.now()),
-                loginType, ip, userAgent, "Unknown - GeoIP not initialized");
+                loginType, ip, userAgent, UNKNOWN_LOCATION);
         return repository.save(history);
     }
+
+    /**
+     * Record a passkey login, unless the same one was already recorded within the window.
+     */
+    public void logPasskey(long userId, @NotNull String ip, @NotNull String userAgent) {
+        PasskeyLogin login = new PasskeyLogin(userId, ip, userAgent);
+        if (recentPasskeyLogins.asMap().putIfAbsent(login, Boolean.TRUE) != null) {
+            skipped.increment();
+            return;
+        }
+        if (!pending.offer(new PendingLogin(userId, Timestamp.from(Instant.now()), ip, userAgent))) {
+            // Not recorded, the next login of the same user, ip and user agent must get its chance
+            recentPasskeyLogins.invalidate(login);
+            dropped.increment();
+            return;
+        }
+        if (pending.size() >= trackerProperties.getLoginHistory().getBatchSize()) {
+            flushSignal.offer(Boolean.TRUE);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        flushThread = new Thread(this::flushLoop, "Login History Writer");
+        flushThread.setDaemon(true);
+        flushThread.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = flushThread;
+        }
+        if (thread != null) {
+            flushSignal.offer(Boolean.TRUE);
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        flush();
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                flushSignal.poll(trackerProperties.getLoginHistory().getFlushInterval(), TimeUnit.MILLISECONDS);
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Unexpected error in login history writer loop", e);
+            }
+        }
+    }
+
+    /**
+     * Insert the pending passkey logins, one batch at a time.
+     */
+    public void flush() {
+        int batchSize = trackerProperties.getLoginHistory().getBatchSize();
+        List<PendingLogin> batch = new ArrayList<>(batchSize);
+        while (pending.drainTo(batch, batchSize) > 0) {
+            List<Object[]> args = new ArrayList<>(batch.size());
+            for (PendingLogin login : batch) {
+                args.add(new Object[]{login.userId(), login.time(), LoginType.PASSKEY.ordinal(), login.ip(),
+                        login.userAgent(), UNKNOWN_LOCATION});
+            }
+            try {
+                jdbcTemplate.batchUpdate(INSERT_HISTORY, args);
+            } catch (Exception e) {
+                // Only a trace of the login is lost, don't keep retrying into a failing database
+                dropped.add(batch.size());
+                log.error("Failed to insert {} passkey login histories", batch.size(), e);
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return passkey logins not recorded as they repeat one within the window
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return passkey logins lost to a full queue or a failed insert
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private record PasskeyLogin(long userId, @NotNull String ip, @NotNull String userAgent) {
+    }
+
+    private record PendingLogin(long userId, @NotNull Timestamp time, @NotNull String ip, @NotNull String userAgent) {
+    }
 }
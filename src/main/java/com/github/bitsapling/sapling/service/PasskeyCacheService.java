@@ -0,0 +1,141 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.entity.User;
+import com.github.bitsapling.sapling.repository.UserRepository;
+import com.github.bitsapling.sapling.util.SafeUUID;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded passkey to user cache, so announces don't hit the users table.
+ * Keyed by the 128-bit value of the passkey, which also makes the lookup case-insensitive.
+ * Unknown passkeys are remembered for a short while, so a client with a revoked passkey doesn't query on every announce.
+ * Entries of a user are dropped whenever the user is saved, on every node through a Redis channel.
+ */
+@Service
+@Slf4j
+public class PasskeyCacheService {
+    private static final String INVALIDATE_CHANNEL = "sapling:passkey:invalidate";
+    // Bumped on every invalidation, a load racing with one is not cached
+    private final AtomicLong invalidations = new AtomicLong();
+    // Passkey of each cached user, to invalidate one without scanning the cache
+    private final Map<Long, UUID> userKeys = new ConcurrentHashMap<>();
+    private Cache<UUID, PasskeyIdentity> cache;
+    private Cache<UUID, Boolean> unknown;
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @PostConstruct
+    public void init() {
+        TrackerProperties.PasskeyCache config = trackerProperties.getPasskeyCache();
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getTtl(), TimeUnit.MILLISECONDS)
+                .<UUID, PasskeyIdentity>removalListener(notification -> {
+                    if (notification.getCause() != RemovalCause.REPLACED) {
+                        userKeys.remove(notification.getValue().userId(), notification.getKey());
+                    }
+                })
+                .build();
+        unknown = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getNegativeTtl(), TimeUnit.MILLISECONDS)
+                .build();
+        listenerContainer.addMessageListener((message, pattern) -> {
+            try {
+                invalidateLocal(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8)));
+            } catch (NumberFormatException e) {
+                log.warn("Ignored an invalid passkey invalidation message", e);
+            }
+        }, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * @return the owner of the passkey, null if no user has it
+     */
+    @Nullable
+    public PasskeyIdentity get(@NotNull String passkey) {
+        // Passkeys are generated as UUID strings, anything else can't belong to a user.
+        // Only the canonical form is accepted, UUID.fromString would also accept shortened aliases
+        UUID key = SafeUUID.isUUID(passkey) ? SafeUUID.fromString(passkey) : null;
+        if (key == null) {
+            return null;
+        }
+        PasskeyIdentity identity = cache.getIfPresent(key);
+        if (identity != null) {
+            return identity;
+        }
+        if (unknown.getIfPresent(key) != null) {
+            return null;
+        }
+        long before = invalidations.get();
+        // UUID.toString is the lowercase form they are stored in, an exact match uses the unique index
+        identity = toIdentity(userRepository.findByPasskey(key.toString()).orElse(null));
+        if (invalidations.get() != before) {
+            return identity;
+        }
+        if (identity == null) {
+            unknown.put(key, Boolean.TRUE);
+            return null;
+        }
+        cache.put(key, identity);
+        UUID previous = userKeys.put(identity.userId(), key);
+        if (previous != null && !previous.equals(key)) {
+            cache.invalidate(previous);
+        }
+        return identity;
+    }
+
+    /**
+     * Forget the passkey of a user after its passkey, group or status changed, on this node and the others.
+     */
+    public void invalidateUser(long userId) {
+        invalidateLocal(userId);
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, String.valueOf(userId));
+        } catch (Exception e) {
+            log.warn("Unable to broadcast the passkey invalidation of user {}, other nodes keep it until it expires", userId, e);
+        }
+    }
+
+    private void invalidateLocal(long userId) {
+        invalidations.incrementAndGet();
+        UUID key = userKeys.remove(userId);
+        if (key != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    @Nullable
+    private static PasskeyIdentity toIdentity(@Nullable User user) {
+        if (user == null) return null;
+        return new PasskeyIdentity(user.getId(), user.getGroup().getId());
+    }
+
+    public record PasskeyIdentity(long userId, long groupId) {
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.config.TrackerConfig;
+import com.github.bitsapling.sapling.util.CidrMatcher;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Enforces the ip and port control lists of {@link TrackerConfig} on announced peers.
+ * The lists are compiled once into a {@link CidrMatcher} and a port bitset, and compiled again whenever the settings
+ * snapshot hands out a new {@link TrackerConfig}.
+ */
+@Service
+public class PeerAccessService {
+    private static final int PORT_COUNT = 65536;
+    private volatile Policy policy;
+    @Autowired
+    private SettingService settingService;
+
+    /**
+     * @return false as well if ip isn't an ip literal
+     */
+    public boolean isAddressAllowed(@NotNull String ip) {
+        Policy current = policy();
+        return current.ipWhitelist() == current.ips().matches(ip);
+    }
+
+    public boolean isAddressAllowed(@NotNull InetAddress address) {
+        Policy current = policy();
+        return current.ipWhitelist() == current.ips().matches(address);
+    }
+
+    public boolean isPortAllowed(int port) {
+        if (port <= 0 || port >= PORT_COUNT) return false;
+        Policy current = policy();
+        return current.portWhitelist() == current.ports().get(port);
+    }
+
+    @NotNull
+    private Policy policy() {
+        TrackerConfig config = settingService.get(TrackerConfig.getConfigKey(), TrackerConfig.class);
+        Policy current = policy;
+        if (current == null || current.source() != config) {
+            current = compile(config);
+            policy = current;
+        }
+        return current;
+    }
+
+    @NotNull
+    private static Policy compile(@NotNull TrackerConfig config) {
+        BitSet ports = new BitSet(PORT_COUNT);
+        List<Integer> controlPorts = config.getControlPorts();
+        if (controlPorts != null) {
+            for (Integer port : controlPorts) {
+                if (port != null && port > 0 && port < PORT_COUNT) ports.set(port);
+            }
+        }
+        return new Policy(config, CidrMatcher.compile(config.getControlIps()), config.isIpAddressWhitelistMode(),
+                ports, config.isPortWhiteListMode());
+    }
+
+    /**
+     * @param source the settings it was compiled from, compared by identity
+     */
+    private record Policy(@NotNull TrackerConfig source, @NotNull CidrMatcher ips, boolean ipWhitelist,
+                          @NotNull BitSet ports, boolean portWhitelist) {
+    }
+}
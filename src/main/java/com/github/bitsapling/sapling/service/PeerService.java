@@ -1,63 +1,171 @@
 package com.github.bitsapling.sapling.service;
 
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
 import com.github.bitsapling.sapling.entity.Peer;
+import com.github.bitsapling.sapling.objects.InfoHash;
 import com.github.bitsapling.sapling.repository.PeersRepository;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmPeer;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmRegistry;
+import com.github.bitsapling.sapling.util.BencodeUtil;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Optional mirror of the in-memory swarms in the peers table.
+ * Writes are queued by the announce path, coalesced per peer and persisted asynchronously as JDBC batches,
+ * the table is never read while announcing.
+ */
 @Service
 @Repository
 @Slf4j
 
 public class PeerService {
+    private static final String DELETE_PEER = "DELETE FROM peers WHERE ip = ? AND port = ? AND info_hash = ?";
+    private static final String DELETE_EXPIRED_PEERS = "DELETE FROM peers WHERE update_at < ?";
+    private static final String UPDATE_PEER = "UPDATE peers SET peer_id = ?, user_agent = ?, uploaded = ?, downloaded = ?, " +
+            "to_go = ?, seeder = ?, partial_seeder = ?, update_at = ?, seeding_time = ?, upload_speed = ?, download_speed = ? " +
+            "WHERE ip = ? AND port = ? AND info_hash = ?";
+    private static final String INSERT_PEER = "INSERT INTO peers (ip, port, info_hash, peer_id, user_agent, uploaded, " +
+            "downloaded, to_go, seeder, partial_seeder, passkey, update_at, seeding_time, upload_speed, download_speed, user_id) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private final Map<MirrorKey, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
     @Autowired
     private PeersRepository repository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private SwarmRegistry swarmRegistry;
+    @Autowired
+    private TrackerProperties trackerProperties;
 
     @Nullable
-    public Peer getPeer(@NotNull String ip, int port, @NotNull String infoHash) {
-        infoHash = infoHash.toLowerCase(Locale.ROOT);
-        return repository.findByIpAndPortAndInfoHashIgnoreCase(ip, port, infoHash).orElse(null);
+    public Peer getPeer(@NotNull String ip, int port, @NotNull InfoHash infoHash) {
+        return repository.findByIpAndPortAndInfoHash(ip, port, infoHash).orElse(null);
     }
 
-    @NotNull
-    public List<Peer> getPeers(@NotNull String infoHash, int numWant) {
-        infoHash = infoHash.toLowerCase(Locale.ROOT);
-        Pageable top = PageRequest.of(0, numWant);
-        List<Peer> entities = repository.findPeersByInfoHashIgnoreCaseOrderByUpdateAtDesc(infoHash, top);
-        return entities.stream().toList();
+    public void mirror(@NotNull SwarmPeer peer) {
+        if (!trackerProperties.getPeerMirror().isEnabled()) return;
+        pendingWrites.put(new MirrorKey(peer.infoHash(), peer.ip(), peer.port()), new PendingWrite(peer, false));
     }
 
-    @NotNull
-    public Peer save(@NotNull Peer peer) {
-        peer.setInfoHash(peer.getInfoHash().toLowerCase(Locale.ROOT));
-        return repository.save(peer);
+    public void mirrorRemoval(@NotNull SwarmPeer peer) {
+        if (!trackerProperties.getPeerMirror().isEnabled()) return;
+        pendingWrites.put(new MirrorKey(peer.infoHash(), peer.ip(), peer.port()), new PendingWrite(peer, true));
+    }
+
+    @Scheduled(fixedDelayString = "${sapling.tracker.peer-mirror.flush-interval:30000}")
+    public void flushMirror() {
+        if (pendingWrites.isEmpty()) return;
+        List<PendingWrite> writes = new ArrayList<>(pendingWrites.size());
+        for (Map.Entry<MirrorKey, PendingWrite> entry : pendingWrites.entrySet()) {
+            // Only drop the entry we are going to write, a newer one may arrive meanwhile
+            if (pendingWrites.remove(entry.getKey(), entry.getValue())) {
+                writes.add(entry.getValue());
+            }
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> writeMirror(writes));
+            log.debug("Mirrored {} peers changes into database", writes.size());
+        } catch (Exception e) {
+            // The mirror is best effort, the next announce of each peer queues it again
+            log.warn("Failed to mirror {} peers changes into database", writes.size(), e);
+        }
     }
 
-    public void delete(@NotNull Peer peer) {
-        //repository.delete(convert(peer));
-        repository.deleteById(peer.getId());
+    /**
+     * Write the changes still pending, announce workers are already stopped at this point.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (trackerProperties.getPeerMirror().isEnabled()) {
+            flushMirror();
+        }
+    }
+
+    private void writeMirror(@NotNull List<PendingWrite> writes) {
+        List<Object[]> deletes = new ArrayList<>();
+        List<SwarmPeer> upserts = new ArrayList<>();
+        List<Object[]> updates = new ArrayList<>();
+        for (PendingWrite write : writes) {
+            SwarmPeer peer = write.peer();
+            if (write.delete()) {
+                deletes.add(new Object[]{peer.ip(), peer.port(), peer.infoHash().toHex()});
+                continue;
+            }
+            upserts.add(peer);
+            updates.add(new Object[]{peer.peerId(), peer.userAgent(), peer.uploaded(), peer.downloaded(), peer.left(),
+                    peer.seeder(), peer.partialSeeder(), new Timestamp(peer.updateAt()), peer.seedingTime(),
+                    peer.uploadSpeed(), peer.downloadSpeed(), peer.ip(), peer.port(), peer.infoHash().toHex()});
+        }
+        if (!deletes.isEmpty()) {
+            jdbcTemplate.batchUpdate(DELETE_PEER, deletes);
+        }
+        if (upserts.isEmpty()) return;
+        int[] counts = jdbcTemplate.batchUpdate(UPDATE_PEER, updates);
+        List<Object[]> inserts = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) continue;
+            SwarmPeer peer = upserts.get(i);
+            inserts.add(new Object[]{peer.ip(), peer.port(), peer.infoHash().toHex(), peer.peerId(), peer.userAgent(),
+                    peer.uploaded(), peer.downloaded(), peer.left(), peer.seeder(), peer.partialSeeder(), peer.passKey(),
+                    new Timestamp(peer.updateAt()), peer.seedingTime(), peer.uploadSpeed(), peer.downloadSpeed(), peer.userId()});
+        }
+        if (!inserts.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_PEER, inserts);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void restoreFromMirror() {
+        if (!trackerProperties.getPeerMirror().isEnabled()) return;
+        List<Peer> peers = repository.findAllByUpdateAtIsGreaterThanEqual(peerExpireTime());
+        for (Peer peer : peers) {
+            byte[] compactEndpoint = BencodeUtil.compactEndpoint(peer.getIp(), peer.getPort());
+            if (compactEndpoint == null) continue;
+            swarmRegistry.putPeer(new SwarmPeer(peer.getInfoHash(), peer.getIp(), peer.getPort(),
+                    compactEndpoint, peer.getPeerId(), peer.getUserAgent(), peer.getPassKey(), peer.getUser().getId(),
+                    peer.getUploaded(), peer.getDownloaded(), peer.getLeft(), peer.isSeeder(), peer.isPartialSeeder(),
+                    peer.getUpdateAt().getTime(), peer.getSeedingTime(), peer.getUploadSpeed(), peer.getDownloadSpeed()));
+        }
+        log.info("Restored {} peers from the peers table", peers.size());
     }
 
     public int cleanup() {
-        List<Peer> entities = repository.findAllByUpdateAtIsLessThan(
-                Timestamp.from(Instant.now().minus(90, ChronoUnit.MINUTES))
-        );
-        int count = entities.size();
-        repository.deleteAll(entities);
-        return count;
+        List<SwarmPeer> purged = swarmRegistry.purgeExpired(peerExpireTime().getTime());
+        if (trackerProperties.getPeerMirror().isEnabled()) {
+            jdbcTemplate.update(DELETE_EXPIRED_PEERS, peerExpireTime());
+        }
+        return purged.size();
+    }
+
+    @NotNull
+    private Timestamp peerExpireTime() {
+        return Timestamp.from(Instant.now().minus(90, ChronoUnit.MINUTES));
     }
 
+    private record MirrorKey(@NotNull InfoHash infoHash, @NotNull String ip, int port) {
+    }
 
+    private record PendingWrite(@NotNull SwarmPeer peer, boolean delete) {
+    }
 }
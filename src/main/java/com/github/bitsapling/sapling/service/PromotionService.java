@@ -1,7 +1,11 @@
 package com.github.bitsapling.sapling.service;
 
 import com.github.bitsapling.sapling.entity.PromotionPolicy;
+import com.github.bitsapling.sapling.entity.UserGroup;
 import com.github.bitsapling.sapling.repository.PromotionPolicyRepository;
+import com.github.bitsapling.sapling.repository.UserGroupRepository;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,12 +14,23 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @Service
 
 public class PromotionService {
     @Autowired
     private PromotionPolicyRepository repository;
+    @Autowired
+    private UserGroupRepository userGroupRepository;
+    // There are only a few policies and groups, announces apply them without querying each time
+    private final Cache<Long, Optional<PromotionPolicy>> cache = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+    private final Cache<Long, Optional<Long>> groupPolicies = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
 
     @Nullable
     public PromotionPolicy getPromotionPolicy(long id) {
@@ -23,6 +38,37 @@ public class PromotionService {
         return entity.orElse(null);
     }
 
+    /**
+     * Like {@link #getPromotionPolicy(long)}, but may be up to a minute old. The policy is shared and must not be modified.
+     */
+    @Nullable
+    public PromotionPolicy getCachedPromotionPolicy(long id) {
+        try {
+            return cache.get(id, () -> repository.findById(id)).orElse(null);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load promotion policy " + id, e.getCause());
+        }
+    }
+
+    /**
+     * Promotion policy of a user group, like {@link #getCachedPromotionPolicy(long)} it may be up to a minute old.
+     */
+    @Nullable
+    public PromotionPolicy getCachedGroupPromotionPolicy(long groupId) {
+        try {
+            Optional<Long> policyId = groupPolicies.get(groupId, () -> userGroupRepository.findById(groupId)
+                    .map(UserGroup::getPromotionPolicy)
+                    .map(PromotionPolicy::getId));
+            return policyId.map(this::getCachedPromotionPolicy).orElse(null);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load the promotion policy of user group " + groupId, e.getCause());
+        }
+    }
+
+    public void invalidateGroup(long groupId) {
+        groupPolicies.invalidate(groupId);
+    }
+
     @Nullable
     public PromotionPolicy getPromotionPolicy(@NotNull String name) {
         Optional<PromotionPolicy> entity = repository.findPromotionPolicyBySlug(name);
@@ -43,6 +89,8 @@ public class PromotionService {
 
     @NotNull
     public PromotionPolicy save(@NotNull PromotionPolicy promotionPolicy) {
-        return repository.save(promotionPolicy);
+        PromotionPolicy saved = repository.save(promotionPolicy);
+        cache.invalidate(saved.getId());
+        return saved;
     }
 }
@@ -2,10 +2,8 @@ package com.github.bitsapling.sapling.service;
 
 import cn.dev33.satoken.exception.NotLoginException;
 import cn.dev33.satoken.stp.StpInterface;
-import com.github.bitsapling.sapling.entity.Permission;
-import com.github.bitsapling.sapling.entity.User;
-import com.github.bitsapling.sapling.util.HibernateSessionUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -16,35 +14,24 @@ import java.util.List;
 
 public class SaTokenPermImpl implements StpInterface {
     @Autowired
-    private UserService userService;
-    @Autowired
-    private HibernateSessionUtil sessionUtil;
+    private GroupPermissionService groupPermissionService;
 
     @Override
     public List<String> getPermissionList(Object loginId, String loginType) {
-        boolean participate = sessionUtil.bindToThread();
-        try {
-            User user = userService.getUser(Long.parseLong(String.valueOf(loginId)));
-            if (user == null) {
-                throw new NotLoginException("You hadn't logged in yet!", loginType, "Not logged in");
-            }
-            return user.getGroup().getPermissionEntities().stream().map(Permission::getSlug).toList();
-        }finally {
-            sessionUtil.closeFromThread(participate);
-        }
+        return getGroup(loginId, loginType).getSlugs();
     }
 
     @Override
     public List<String> getRoleList(Object loginId, String loginType) {
-        boolean participate = sessionUtil.bindToThread();
-        try {
-            User user = userService.getUser(Long.parseLong(String.valueOf(loginId)));
-            if (user == null) {
-                throw new NotLoginException("You hadn't logged in yet!", loginType, "Not logged in");
-            }
-            return List.of(user.getGroup().getSlug());
-        }finally {
-            sessionUtil.closeFromThread(participate);
+        return List.of(getGroup(loginId, loginType).getSlug());
+    }
+
+    @NotNull
+    private GroupPermissionService.GroupPermissions getGroup(Object loginId, String loginType) {
+        GroupPermissionService.GroupPermissions group = groupPermissionService.getGroupPermissions(Long.parseLong(String.valueOf(loginId)));
+        if (group == null) {
+            throw new NotLoginException("You hadn't logged in yet!", loginType, "Not logged in");
         }
+        return group;
     }
 }
@@ -2,49 +2,114 @@ package com.github.bitsapling.sapling.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
 import com.github.bitsapling.sapling.entity.SettingEntity;
 import com.github.bitsapling.sapling.exception.BadConfigException;
 import com.github.bitsapling.sapling.repository.SettingRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Settings are read from an in-memory snapshot of the deserialized objects, so a read is a volatile load.
+ * The snapshot is replaced as a whole whenever a setting is loaded or changed, changes made through {@link #set}
+ * reach the other nodes through a Redis channel, and changes made in the database directly are picked up by a
+ * periodic refresh.
+ */
 @Service
 @Slf4j
 public class SettingService {
+    private static final String CHANGE_CHANNEL = "sapling:setting:changed";
+    // Bumped on every change, a load racing with one is not kept
+    private final AtomicLong changes = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Map.of());
+    private volatile boolean running;
+    private Thread refreshThread;
     @Autowired
     private SettingRepository repository;
     @Autowired
     private ObjectMapper objectMapper;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
 
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener((message, pattern) ->
+                        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CHANGE_CHANNEL));
+    }
+
+    /**
+     * @return the setting, shared with every other reader of the snapshot so it must not be modified
+     */
     @NotNull
     public <T> T get(@NotNull String configKey, @NotNull Class<T> clazz) throws BadConfigException {
+        Entry entry = snapshot.entries().get(configKey);
+        if (entry != null && entry.type() == clazz) {
+            return clazz.cast(entry.value());
+        }
+        long before = changes.get();
+        Entry loaded = load(configKey, clazz);
+        publish(configKey, loaded, before);
+        return clazz.cast(loaded.value());
+    }
+
+    /**
+     * @return version of the snapshot, increased every time it is replaced
+     */
+    public long getVersion() {
+        return snapshot.version();
+    }
+
+    @NotNull
+    private Entry load(@NotNull String configKey, @NotNull Class<?> clazz) throws BadConfigException {
         Optional<SettingEntity> configData = repository.findByKey(configKey);
         if (configData.isPresent()) {
             String data = configData.get().getValue();
-            try {
-                return objectMapper.readValue(data, clazz);
-            } catch (JsonProcessingException e) {
-                log.error("Unable to deserialize setting object: {} -> {}", configKey, data, e);
-                throw new RuntimeException(e);
-            }
+            return new Entry(clazz, data, deserialize(configKey, data, clazz));
         } else {
             log.error("The configuration key {} doesn't exists in database!", configKey);
-            T entity = resolve(clazz);
+            Object entity = resolve(clazz);
             if (entity == null) throw new BadConfigException();
             try {
-                set(configKey, entity);
+                String data = write(configKey, entity);
                 log.info("Resolved missing configuration key via #spawnDefault static method.");
+                return new Entry(clazz, data, entity);
             } catch (JsonProcessingException e) {
                 log.error("Unable to serialize setting object: {} -> {}", configKey, entity, e);
                 throw new RuntimeException(e);
             }
-            return entity;
+        }
+    }
+
+    @NotNull
+    private Object deserialize(@NotNull String configKey, @NotNull String data, @NotNull Class<?> clazz) {
+        try {
+            return objectMapper.readValue(data, clazz);
+        } catch (JsonProcessingException e) {
+            log.error("Unable to deserialize setting object: {} -> {}", configKey, data, e);
+            throw new RuntimeException(e);
         }
     }
 
@@ -63,16 +128,112 @@ public class SettingService {
     public <T> void set(@NotNull String configKey, @Nullable T value) throws JsonProcessingException {
         if (value == null) {
             repository.deleteByKey(configKey);
-            return;
-        }
-        SettingEntity entity;
-        Optional<SettingEntity> inDatabase = repository.findByKey(configKey);
-        if (inDatabase.isPresent()) {
-            entity = inDatabase.get();
         } else {
-            entity = new SettingEntity(0, configKey, objectMapper.writeValueAsString(value));
+            write(configKey, value);
+        }
+        invalidateLocal(configKey);
+        try {
+            stringRedisTemplate.convertAndSend(CHANGE_CHANNEL, configKey);
+        } catch (Exception e) {
+            log.warn("Unable to broadcast the change of setting {}, other nodes see it on their next refresh", configKey, e);
         }
-        entity = repository.save(entity);
     }
 
+    @NotNull
+    private String write(@NotNull String configKey, @NotNull Object value) throws JsonProcessingException {
+        String data = objectMapper.writeValueAsString(value);
+        SettingEntity entity = repository.findByKey(configKey)
+                .orElseGet(() -> new SettingEntity(0, configKey, data));
+        entity.setValue(data);
+        repository.save(entity);
+        return data;
+    }
+
+    private synchronized void publish(@NotNull String configKey, @NotNull Entry entry, long before) {
+        if (changes.get() != before) return;
+        Map<String, Entry> entries = new HashMap<>(snapshot.entries());
+        entries.put(configKey, entry);
+        snapshot = new Snapshot(snapshot.version() + 1, Map.copyOf(entries));
+    }
+
+    private synchronized void invalidateLocal(@NotNull String configKey) {
+        changes.incrementAndGet();
+        if (!snapshot.entries().containsKey(configKey)) return;
+        Map<String, Entry> entries = new HashMap<>(snapshot.entries());
+        entries.remove(configKey);
+        snapshot = new Snapshot(snapshot.version() + 1, Map.copyOf(entries));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        refreshThread = new Thread(this::refreshLoop, "Setting Refresher");
+        refreshThread.setDaemon(true);
+        refreshThread.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = refreshThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    private void refreshLoop() {
+        while (running) {
+            try {
+                Thread.sleep(trackerProperties.getSettingCache().getRefreshInterval());
+                refresh();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Unable to refresh the settings snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Reload the settings in the snapshot from the database, replacing the ones whose stored value changed.
+     */
+    private void refresh() {
+        long before = changes.get();
+        Map<String, Entry> current = snapshot.entries();
+        Map<String, Entry> updated = new HashMap<>();
+        for (SettingEntity entity : repository.findAll()) {
+            Entry entry = current.get(entity.getKey());
+            if (entry == null || entry.data().equals(entity.getValue())) continue;
+            try {
+                Object value = objectMapper.readValue(entity.getValue(), entry.type());
+                updated.put(entity.getKey(), new Entry(entry.type(), entity.getValue(), value));
+            } catch (JsonProcessingException e) {
+                log.error("Unable to deserialize setting object: {} -> {}, keeping the previous value",
+                        entity.getKey(), entity.getValue(), e);
+            }
+        }
+        if (updated.isEmpty()) return;
+        synchronized (this) {
+            if (changes.get() != before) return;
+            Map<String, Entry> entries = new HashMap<>(snapshot.entries());
+            entries.putAll(updated);
+            snapshot = new Snapshot(snapshot.version() + 1, Map.copyOf(entries));
+        }
+        log.info("Reloaded settings changed in the database: {}", updated.keySet());
+    }
+
+    private record Snapshot(long version, @NotNull Map<String, Entry> entries) {
+    }
+
+    /**
+     * @param data the stored JSON, to tell whether the value changed
+     */
+    private record Entry(@NotNull Class<?> type, @NotNull String data, @NotNull Object value) {
+    }
 }
@@ -0,0 +1,162 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.entity.Torrent;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded info_hash to torrent summary cache, so announces and scrapes don't load torrents (and their description).
+ * Filled with the latest torrents at startup, read-through afterwards, and updated whenever a torrent is saved,
+ * on every node through a Redis channel.
+ */
+@Service
+@Slf4j
+public class TorrentCacheService {
+    private static final String INVALIDATE_CHANNEL = "sapling:torrent:invalidate";
+    private static final String SELECT_SUMMARIES = "SELECT id, info_hash, promotion_policy_id, under_review, size FROM torrents";
+    private static final String SELECT_LATEST_SUMMARIES = SELECT_SUMMARIES + " ORDER BY id DESC";
+    private static final String SELECT_SOME_SUMMARIES = SELECT_SUMMARIES + " WHERE info_hash IN (%s)";
+    private static final RowMapper<TorrentSummary> SUMMARY_MAPPER = (rs, rowNum) -> new TorrentSummary(rs.getLong(1),
+            InfoHash.fromHex(rs.getString(2)), rs.getLong(3), rs.getBoolean(4), rs.getLong(5));
+    // Bumped on every invalidation, a load racing with one is not cached
+    private final AtomicLong invalidations = new AtomicLong();
+    private Cache<InfoHash, TorrentSummary> cache;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @PostConstruct
+    public void init() {
+        TrackerProperties.TorrentCache config = trackerProperties.getTorrentCache();
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getTtl(), TimeUnit.MILLISECONDS)
+                .build();
+        listenerContainer.addMessageListener((message, pattern) -> {
+            InfoHash infoHash = InfoHash.tryParse(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (infoHash == null) {
+                log.warn("Ignored an invalid torrent invalidation message");
+                return;
+            }
+            invalidateLocal(infoHash);
+        }, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * Load the latest torrents, up to the size of the cache.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        long start = System.currentTimeMillis();
+        int limit = (int) Math.min(Integer.MAX_VALUE, trackerProperties.getTorrentCache().getMaximumSize());
+        long before = invalidations.get();
+        List<TorrentSummary> summaries = jdbcTemplate.query(con -> {
+            PreparedStatement statement = con.prepareStatement(SELECT_LATEST_SUMMARIES);
+            statement.setMaxRows(limit);
+            return statement;
+        }, SUMMARY_MAPPER);
+        if (invalidations.get() != before) return;
+        for (TorrentSummary summary : summaries) {
+            cache.asMap().putIfAbsent(summary.infoHash(), summary);
+        }
+        log.info("Torrent cache filled with {} torrents in {} ms", summaries.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the registered torrent, null if no torrent has this info_hash
+     */
+    @Nullable
+    public TorrentSummary get(@NotNull InfoHash infoHash) {
+        return getAll(List.of(infoHash)).get(infoHash);
+    }
+
+    /**
+     * Look up many torrents, the ones not cached are loaded with a single query. Unknown info_hashes are left out.
+     */
+    @NotNull
+    public Map<InfoHash, TorrentSummary> getAll(@NotNull Collection<InfoHash> infoHashes) {
+        if (infoHashes.isEmpty()) return Map.of();
+        Map<InfoHash, TorrentSummary> summaries = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (InfoHash infoHash : infoHashes) {
+            TorrentSummary summary = cache.getIfPresent(infoHash);
+            if (summary != null) {
+                summaries.put(infoHash, summary);
+            } else {
+                missing.add(infoHash.toHex());
+            }
+        }
+        if (missing.isEmpty()) return summaries;
+        long before = invalidations.get();
+        String sql = SELECT_SOME_SUMMARIES.formatted(String.join(", ", Collections.nCopies(missing.size(), "?")));
+        for (TorrentSummary summary : jdbcTemplate.query(sql, SUMMARY_MAPPER, missing.toArray())) {
+            summaries.put(summary.infoHash(), summary);
+            if (invalidations.get() == before) {
+                cache.put(summary.infoHash(), summary);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Take the saved state of a torrent, on this node and the others.
+     */
+    public void update(@NotNull Torrent torrent) {
+        invalidateLocal(torrent.getInfoHash());
+        cache.put(torrent.getInfoHash(), TorrentSummary.of(torrent));
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, torrent.getInfoHash().toHex());
+        } catch (Exception e) {
+            log.warn("Unable to broadcast the invalidation of torrent {}, other nodes keep it until it expires", torrent.getInfoHash(), e);
+        }
+    }
+
+    private void invalidateLocal(@NotNull InfoHash infoHash) {
+        invalidations.incrementAndGet();
+        cache.invalidate(infoHash);
+    }
+
+    /**
+     * What the tracker needs to know about a torrent.
+     *
+     * @param promotionPolicyId 0 if the torrent has no promotion policy
+     */
+    public record TorrentSummary(long id, @NotNull InfoHash infoHash, long promotionPolicyId, boolean underReview, long size) {
+        @NotNull
+        public static TorrentSummary of(@NotNull Torrent torrent) {
+            long promotionPolicyId = torrent.getPromotionPolicy() == null ? 0 : torrent.getPromotionPolicy().getId();
+            return new TorrentSummary(torrent.getId(), torrent.getInfoHash(), promotionPolicyId, torrent.isUnderReview(), torrent.getSize());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.github.bitsapling.sapling.entity.Category;
 import com.github.bitsapling.sapling.entity.PromotionPolicy;
 import com.github.bitsapling.sapling.entity.Tag;
 import com.github.bitsapling.sapling.entity.Torrent;
+import com.github.bitsapling.sapling.objects.InfoHash;
 import com.github.bitsapling.sapling.repository.TorrentRepository;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.criteria.Predicate;
@@ -16,7 +17,10 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @Service
@@ -32,6 +36,8 @@ public class TorrentService {
     private TagService tagService;
     @Autowired
     private EntityManager entityManager;
+    @Autowired
+    private TorrentCacheService torrentCacheService;
 
     @Nullable
     public Torrent getTorrent(long id) {
@@ -39,12 +45,24 @@ public class TorrentService {
     }
 
     @Nullable
-    public Torrent getTorrent(@NotNull String infoHash) {
-        infoHash = infoHash.toLowerCase();
-        Optional<Torrent> entity = torrentRepository.findByInfoHashIgnoreCase(infoHash);
+    public Torrent getTorrent(@NotNull InfoHash infoHash) {
+        Optional<Torrent> entity = torrentRepository.findByInfoHash(infoHash);
         return entity.orElse(null);
     }
 
+    /**
+     * Look up many torrents with a single query, unknown info_hashes are left out.
+     */
+    @NotNull
+    public Map<InfoHash, Torrent> getTorrents(@NotNull Collection<InfoHash> infoHashes) {
+        if (infoHashes.isEmpty()) return Map.of();
+        Map<InfoHash, Torrent> torrents = new HashMap<>();
+        for (Torrent torrent : torrentRepository.findAllByInfoHashIn(infoHashes)) {
+            torrents.put(torrent.getInfoHash(), torrent);
+        }
+        return torrents;
+    }
+
     public List<Torrent> getAllTorrents() {
         return new ArrayList<>(torrentRepository.findAll());
     }
@@ -65,8 +83,9 @@ public class TorrentService {
 
     @NotNull
     public Torrent save(@NotNull Torrent torrent) {
-        torrent.setInfoHash(torrent.getInfoHash());
-        return torrentRepository.save(torrent);
+        Torrent saved = torrentRepository.save(torrent);
+        torrentCacheService.update(saved);
+        return saved;
     }
 
     @NotNull
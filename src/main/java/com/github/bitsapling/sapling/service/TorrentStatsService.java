@@ -0,0 +1,153 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.entity.Torrent;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmRegistry;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmStats;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-torrent counters served to announce, scrape and the torrent pages in O(1).
+ * Seeders, leechers and partial seeders come from the swarm, completions are counted once from transfer_history
+ * and then incremented as the write-behind stage marks histories complete. {@link #reconcile()} corrects any drift of both.
+ */
+@Service
+@Slf4j
+public class TorrentStatsService {
+    private static final String COUNT_COMPLETIONS = "SELECT COUNT(*) FROM transfer_history WHERE torrent_id = ? AND have_complete_history = ?";
+    private static final String COUNT_SOME_COMPLETIONS = "SELECT torrent_id, COUNT(*) FROM transfer_history WHERE have_complete_history = ? AND torrent_id IN (%s) GROUP BY torrent_id";
+    private static final String COUNT_ALL_COMPLETIONS = "SELECT torrent_id, COUNT(*) FROM transfer_history WHERE have_complete_history = ? GROUP BY torrent_id";
+    private final Map<Long, AtomicInteger> completions = new ConcurrentHashMap<>();
+    @Autowired
+    private SwarmRegistry swarmRegistry;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private AnnounceWriteBehindService writeBehindService;
+
+    @PostConstruct
+    public void init() {
+        writeBehindService.setCompletionListener(this::recordCompletion);
+    }
+
+    @NotNull
+    public PeerStatus getPeerStatus(@NotNull Torrent torrent) {
+        return getPeerStatus(torrent.getId(), torrent.getInfoHash());
+    }
+
+    @NotNull
+    public PeerStatus getPeerStatus(long torrentId, @NotNull InfoHash infoHash) {
+        SwarmStats stats = swarmRegistry.getStats(infoHash);
+        return new PeerStatus(stats.seeders(), stats.leechers(), getCompletions(torrentId), stats.partialSeeders());
+    }
+
+    public int getCompletions(long torrentId) {
+        AtomicInteger counter = completions.get(torrentId);
+        if (counter == null) {
+            Integer counted = jdbcTemplate.queryForObject(COUNT_COMPLETIONS, Integer.class, torrentId, true);
+            counter = completions.computeIfAbsent(torrentId, id -> new AtomicInteger(counted == null ? 0 : counted));
+        }
+        return counter.get();
+    }
+
+    /**
+     * Peer status of many torrents, the completions not loaded yet are counted with a single query.
+     *
+     * @return peer status by torrent id
+     */
+    @NotNull
+    public Map<Long, PeerStatus> getPeerStatuses(@NotNull Collection<TorrentCacheService.TorrentSummary> torrents) {
+        List<Long> missing = new ArrayList<>();
+        for (TorrentCacheService.TorrentSummary torrent : torrents) {
+            if (!completions.containsKey(torrent.id())) missing.add(torrent.id());
+        }
+        if (!missing.isEmpty()) {
+            Map<Long, Integer> counted = new HashMap<>();
+            String sql = COUNT_SOME_COMPLETIONS.formatted(String.join(", ", Collections.nCopies(missing.size(), "?")));
+            List<Object> args = new ArrayList<>(missing.size() + 1);
+            args.add(true);
+            args.addAll(missing);
+            jdbcTemplate.query(sql, rs -> {
+                counted.put(rs.getLong(1), rs.getInt(2));
+            }, args.toArray());
+            for (Long torrentId : missing) {
+                completions.computeIfAbsent(torrentId, id -> new AtomicInteger(counted.getOrDefault(id, 0)));
+            }
+        }
+        Map<Long, PeerStatus> statuses = new HashMap<>();
+        for (TorrentCacheService.TorrentSummary torrent : torrents) {
+            statuses.put(torrent.id(), getPeerStatus(torrent.id(), torrent.infoHash()));
+        }
+        return statuses;
+    }
+
+    /**
+     * Load the completions of the given torrents not loaded yet, with a single query over the whole table.
+     * Cheaper than {@link #getPeerStatuses} when asking for (almost) every torrent.
+     */
+    public void loadAllCompletions(@NotNull Collection<Long> torrentIds) {
+        if (completions.keySet().containsAll(torrentIds)) return;
+        Map<Long, Integer> counted = countAllCompletions();
+        for (Long torrentId : torrentIds) {
+            completions.computeIfAbsent(torrentId, id -> new AtomicInteger(counted.getOrDefault(id, 0)));
+        }
+    }
+
+    /**
+     * Count a transfer history which just became complete. Torrents not loaded yet are skipped, they will be read
+     * from the database.
+     */
+    public void recordCompletion(long torrentId) {
+        AtomicInteger counter = completions.get(torrentId);
+        if (counter != null) counter.incrementAndGet();
+    }
+
+    /**
+     * Recount the swarms and reload the completions of every loaded torrent from the database.
+     *
+     * @return the number of counters corrected
+     */
+    public int reconcile() {
+        int corrected = swarmRegistry.reconcileStats();
+        // Pending transfer histories must be in the database before counting them, and no flush may count
+        // a completion between the query and the reset
+        return corrected + writeBehindService.flushThen(() -> {
+            Map<Long, Integer> counted = countAllCompletions();
+            int reset = 0;
+            for (Map.Entry<Long, AtomicInteger> entry : completions.entrySet()) {
+                int expected = counted.getOrDefault(entry.getKey(), 0);
+                if (entry.getValue().getAndSet(expected) != expected) {
+                    reset++;
+                }
+            }
+            return reset;
+        });
+    }
+
+    @NotNull
+    private Map<Long, Integer> countAllCompletions() {
+        Map<Long, Integer> counted = new HashMap<>();
+        jdbcTemplate.query(COUNT_ALL_COMPLETIONS, rs -> {
+            counted.put(rs.getLong(1), rs.getInt(2));
+        }, true);
+        return counted;
+    }
+
+    public record PeerStatus(int complete, int incomplete, int downloaded, int downloaders) {
+
+    }
+}
@@ -16,6 +16,8 @@ public class UserGroupService {
     private PermissionService permissionService;
     @Autowired
     private PromotionService promotionService;
+    @Autowired
+    private GroupPermissionService groupPermissionService;
 
     @Nullable
     public UserGroup getUserGroup(long id) {
@@ -36,7 +38,11 @@ public class UserGroupService {
 
     @NotNull
     public UserGroup save(@NotNull UserGroup userGroup) {
-        return repository.save(userGroup);
+        UserGroup saved = repository.save(userGroup);
+        // Permissions of the group may have changed
+        groupPermissionService.invalidateGroup(saved.getId());
+        promotionService.invalidateGroup(saved.getId());
+        return saved;
     }
 
 }
@@ -14,6 +14,10 @@ import java.util.Optional;
 public class UserService {
     @Autowired
     private UserRepository repository;
+    @Autowired
+    private PasskeyCacheService passkeyCacheService;
+    @Autowired
+    private GroupPermissionService groupPermissionService;
 
     // getUser
     @Nullable
@@ -47,7 +51,11 @@ public class UserService {
 
     @NotNull
     public User save(User user) {
-        return repository.save(user);
+        User saved = repository.save(user);
+        // Passkey or group may have changed
+        passkeyCacheService.invalidateUser(saved.getId());
+        groupPermissionService.invalidateUser(saved.getId());
+        return saved;
     }
 
 }
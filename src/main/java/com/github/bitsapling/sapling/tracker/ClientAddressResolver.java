@@ -0,0 +1,37 @@
+package com.github.bitsapling.sapling.tracker;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.util.CidrMatcher;
+import com.github.bitsapling.sapling.util.IPUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Finds the address announces and scrapes are accounted and checked against,
+ * honoring forwarding headers only from the proxies listed in sapling.tracker.proxy.trusted.
+ */
+@Component
+public class ClientAddressResolver {
+    @Autowired
+    private TrackerProperties trackerProperties;
+    private CidrMatcher trustedProxies;
+
+    @PostConstruct
+    public void init() {
+        trustedProxies = CidrMatcher.compile(trackerProperties.getProxy().getTrusted());
+    }
+
+    @NotNull
+    public String resolve(@NotNull HttpServletRequest request) {
+        return resolve(request.getRemoteAddr(), request.getHeader("X-Real-IP"), request.getHeader("X-Forwarded-For"));
+    }
+
+    @NotNull
+    public String resolve(@NotNull String remoteAddr, @Nullable String realIp, @Nullable String forwardedFor) {
+        return IPUtil.getClientIp(remoteAddr, realIp, forwardedFor, trustedProxies);
+    }
+}
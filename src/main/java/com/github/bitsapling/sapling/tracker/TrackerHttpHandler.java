@@ -0,0 +1,236 @@
+package com.github.bitsapling.sapling.tracker;
+
+import cn.dev33.satoken.stp.StpUtil;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.config.TrackerConfig;
+import com.github.bitsapling.sapling.exception.APIGenericException;
+import com.github.bitsapling.sapling.exception.FixedAnnounceException;
+import com.github.bitsapling.sapling.exception.InvalidAnnounceException;
+import com.github.bitsapling.sapling.exception.RetryableAnnounceException;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.service.AnnouncePerformanceMonitorService;
+import com.github.bitsapling.sapling.service.AnnounceService;
+import com.github.bitsapling.sapling.service.AuthenticationService;
+import com.github.bitsapling.sapling.service.BlacklistClientService;
+import com.github.bitsapling.sapling.service.FullScrapeService;
+import com.github.bitsapling.sapling.service.PasskeyCacheService;
+import com.github.bitsapling.sapling.service.PeerAccessService;
+import com.github.bitsapling.sapling.service.SettingService;
+import com.github.bitsapling.sapling.service.TorrentCacheService;
+import com.github.bitsapling.sapling.service.TorrentStatsService;
+import com.github.bitsapling.sapling.tracker.swarm.PeerSelection;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmRegistry;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import com.github.bitsapling.sapling.util.BencodeWriter;
+import com.github.bitsapling.sapling.util.IPUtil;
+import com.github.bitsapling.sapling.util.SafeUUID;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HTTP announce and scrape, shared by the Spring MVC {@code AnnounceController} and the standalone
+ * {@link com.github.bitsapling.sapling.tracker.http.TrackerHttpServer}.
+ * Responses are written into the given {@link BencodeWriter}, failures are thrown as announce exceptions.
+ */
+@Component
+@Slf4j
+public class TrackerHttpHandler {
+    @Autowired
+    private SwarmRegistry swarmRegistry;
+    @Autowired
+    private AnnounceService announceService;
+    @Autowired
+    private TorrentCacheService torrentCacheService;
+    @Autowired
+    private AnnouncePerformanceMonitorService performanceMonitorService;
+    @Autowired
+    private SettingService settingService;
+    @Autowired
+    private BlacklistClientService blacklistClientService;
+    @Autowired
+    private PeerAccessService peerAccessService;
+    @Autowired
+    private AuthenticationService authenticationService;
+    @Autowired
+    private TorrentStatsService torrentStatsService;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private FullScrapeService fullScrapeService;
+
+    /**
+     * @return the full scrape snapshot to send instead of the writer content when no info_hash was given,
+     * null if the response was written into the writer
+     */
+    @Nullable
+    public FullScrapeService.Snapshot scrape(@NotNull TrackerHttpRequest request, @NotNull BencodeWriter writer) throws FixedAnnounceException {
+        // https://wiki.vuze.com/w/Scrape
+        long ns = System.nanoTime();
+        TrackerRequest scrapeRequest = TrackerRequestDecoder.local();
+        String error = TrackerRequestDecoder.decodeScrape(request.queryString(), scrapeRequest);
+        if (error != null) {
+            throw new InvalidAnnounceException(error);
+        }
+        String passkey = scrapeRequest.getPasskey();
+        if (passkey == null || !SafeUUID.isUUID(passkey)) {
+            throw new InvalidAnnounceException("Invalid passkey.");
+        }
+        String userAgent = checkClient(request, null);
+        FullScrapeService.Snapshot snapshot = null;
+        if (scrapeRequest.getInfoHashes().isEmpty()) {
+            snapshot = fullScrapeService.getSnapshot(request.acceptGzip());
+            if (snapshot == null) {
+                throw new InvalidAnnounceException("Missing param: info_hash");
+            }
+        }
+        PasskeyCacheService.PasskeyIdentity user = safeParseUser(passkey, request.remoteIp(), userAgent);
+        // Only counted once authenticated, anonymous spam must not inflate the metric
+        int maxInfoHashes = trackerProperties.getScrape().getMaxInfoHashes();
+        if (scrapeRequest.getInfoHashes().size() > maxInfoHashes) {
+            performanceMonitorService.recordRejectedScrape();
+            throw new InvalidAnnounceException("Too many info_hash, at most " + maxInfoHashes + " per scrape");
+        }
+        if (!StpUtil.hasPermission(user.userId(), "torrent:scrape")) {
+            throw new InvalidAnnounceException("Permission Denied");
+        }
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // One query for the torrents and at most one for their completions, whatever the number of info_hashes
+        Map<InfoHash, TorrentCacheService.TorrentSummary> torrents = torrentCacheService.getAll(scrapeRequest.getInfoHashes());
+        Map<Long, TorrentStatsService.PeerStatus> statuses = torrentStatsService.getPeerStatuses(torrents.values());
+        List<TrackerResponseWriter.ScrapeFile> files = new ArrayList<>(torrents.size());
+        for (TorrentCacheService.TorrentSummary torrent : torrents.values()) {
+            files.add(new TrackerResponseWriter.ScrapeFile(torrent.infoHash(), statuses.get(torrent.id())));
+        }
+        TrackerResponseWriter.writeScrape(writer, randomInterval(), files);
+        performanceMonitorService.recordScrape(scrapeRequest.getInfoHashes().size(), System.nanoTime() - ns);
+        return null;
+    }
+
+    public void announce(@NotNull TrackerHttpRequest request, @NotNull BencodeWriter writer) throws FixedAnnounceException, RetryableAnnounceException {
+        long ns = System.nanoTime();
+        TrackerRequest announceRequest = TrackerRequestDecoder.local();
+        String error = TrackerRequestDecoder.decodeAnnounce(request.queryString(), announceRequest);
+        if (error != null) {
+            throw new InvalidAnnounceException(error);
+        }
+        String passkey = announceRequest.getPasskey();
+        if (passkey == null || !SafeUUID.isUUID(passkey)) {
+            throw new InvalidAnnounceException("Invalid passkey.");
+        }
+        String peerId = announceRequest.getPeerIdString();
+        String userAgent = checkClient(request, peerId);
+        long left = announceRequest.getLeft();
+        int port = announceRequest.getPort();
+        AnnounceEventType event = announceRequest.getEvent();
+        int numWant = announceRequest.getNumWant() < 0 ? 150 : Math.min(announceRequest.getNumWant(), 300);
+        boolean noPeerId = announceRequest.isNoPeerId();
+        boolean supportCrypto = announceRequest.isSupportCrypto();
+        boolean compact = announceRequest.isCompact();
+        List<String> peerIp = cutIps(Optional.ofNullable(announceRequest.getIp()).orElse(request.remoteIp()));
+        InfoHash infoHash = announceRequest.getInfoHash();
+        long downloaded = announceRequest.getDownloaded();
+        long uploaded = announceRequest.getUploaded();
+        int redundant = Math.max(0, announceRequest.getRedundant());
+        if (!peerAccessService.isPortAllowed(port)) {
+            throw new InvalidAnnounceException("Port " + port + " is not allowed on this tracker");
+        }
+        // The announced ips may be chosen freely, the control list must also hold for the address the request came from
+        if (!peerAccessService.isAddressAllowed(request.remoteIp())) {
+            throw new InvalidAnnounceException("IP address not allowed on this tracker");
+        }
+        // User permission checks
+        PasskeyCacheService.PasskeyIdentity user = safeParseUser(passkey, request.remoteIp(), userAgent);
+        if (!StpUtil.hasPermission(user.userId(), "torrent:announce")) {
+            throw new InvalidAnnounceException("Permission Denied");
+        }
+        TorrentCacheService.TorrentSummary torrent = torrentCacheService.get(infoHash);
+        if (torrent == null) {
+            throw new InvalidAnnounceException("Torrent not registered on this tracker");
+        }
+        // User had permission to announce torrents
+        // Create an announce tasks and drop into background, end this request as fast as possible
+        Set<String> peerIps = new HashSet<>(peerIp);
+        peerIps.addAll(announceRequest.getIpv4());
+        peerIps.addAll(announceRequest.getIpv6());
+        List<String> publicIps = peerIps.stream().filter(IPUtil::isPublicAddress).toList();
+        if (publicIps.isEmpty()) {
+            log.info("Client of user {} announced invalid ips.", user.userId());
+            throw new InvalidAnnounceException("Invalid IP address");
+        }
+        List<String> filteredIps = publicIps.stream().filter(peerAccessService::isAddressAllowed).toList();
+        if (filteredIps.isEmpty()) {
+            throw new InvalidAnnounceException("IP address not allowed on this tracker");
+        }
+        for (String filteredIp : filteredIps) {
+            announceService.schedule(new AnnounceService.AnnounceTask(filteredIp, port, infoHash, peerId, uploaded, downloaded, left, event, numWant, user.userId(), user.groupId(), compact, noPeerId, supportCrypto, redundant, userAgent, passkey, torrent.id()));
+        }
+        writePeersResponse(writer, torrent, numWant, left == 0, peerId, compact, noPeerId);
+        performanceMonitorService.recordStats(System.nanoTime() - ns);
+    }
+
+    @NotNull
+    private PasskeyCacheService.PasskeyIdentity safeParseUser(@NotNull String passkey, @NotNull String ip, @NotNull String userAgent) throws InvalidAnnounceException {
+        PasskeyCacheService.PasskeyIdentity user;
+        try {
+            user = authenticationService.authenticatePasskey(passkey, ip, userAgent);
+            if (user == null) {
+                throw new InvalidAnnounceException("Unauthorized");
+            }
+        } catch (APIGenericException e) {
+            throw new InvalidAnnounceException("APIError: " + e.getErrorText() + " -> " + e.getMessage());
+        }
+        return user;
+    }
+
+    private List<String> cutIps(String str) {
+        List<String> ips = new ArrayList<>();
+        if (str.contains(",")) {
+            ips.addAll(Arrays.stream(str.split(",")).map(String::trim).toList());
+        } else {
+            ips.add(str);
+        }
+        return ips;
+    }
+
+    /**
+     * @param peerId null for requests carrying none
+     * @return the User-Agent of the client
+     */
+    @NotNull
+    private String checkClient(@NotNull TrackerHttpRequest request, @Nullable String peerId) throws FixedAnnounceException {
+        if (!request.method().equals("GET")) {
+            throw new InvalidAnnounceException("Invalid request method: " + request.method());
+        }
+        if (request.userAgent() == null) {
+            throw new InvalidAnnounceException("Bad client: User-Agent cannot be empty");
+        }
+        blacklistClientService.checkClient(request.userAgent(), peerId);
+        return request.userAgent();
+    }
+
+    private void writePeersResponse(@NotNull BencodeWriter writer, @NotNull TorrentCacheService.TorrentSummary torrent, int numWant, boolean seeder,
+                                    @NotNull String peerId, boolean compact, boolean noPeerId) {
+        PeerSelection peers = swarmRegistry.selectPeers(torrent.infoHash(), numWant, seeder, peerId);
+        TorrentStatsService.PeerStatus peerStatus = torrentStatsService.getPeerStatus(torrent.id(), torrent.infoHash());
+        TrackerResponseWriter.writeAnnounce(writer, randomInterval(), peerStatus, peers, compact, noPeerId);
+    }
+
+    private int randomInterval() {
+        TrackerConfig trackerConfig = settingService.get(TrackerConfig.getConfigKey(), TrackerConfig.class);
+        return ThreadLocalRandom.current().nextInt(trackerConfig.getTorrentIntervalMin(), trackerConfig.getTorrentIntervalMax());
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.bitsapling.sapling.tracker;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+
+/**
+ * The parts of an HTTP announce or scrape the tracker looks at, independent of the server serving it.
+ *
+ * @param remoteIp       the client address, forwarding headers only applied for trusted proxies, see {@link ClientAddressResolver}
+ * @param acceptEncoding the Accept-Encoding header
+ */
+public record TrackerHttpRequest(@NotNull String method, @Nullable String queryString, @Nullable String userAgent,
+                                 @NotNull String remoteIp, @Nullable String acceptEncoding) {
+    public boolean acceptGzip() {
+        return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.bitsapling.sapling.tracker;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flat, reusable result of {@link TrackerRequestDecoder}.
+ * Numeric fields are -1 when absent. One instance is kept per thread, never retain it after the request.
+ */
+public class TrackerRequest {
+    public static final int HASH_LENGTH = 20;
+    final byte[] peerId = new byte[HASH_LENGTH];
+    final List<InfoHash> infoHashes = new ArrayList<>();
+    final List<String> ipv4 = new ArrayList<>(2);
+    final List<String> ipv6 = new ArrayList<>(2);
+    // Decoding scratch space
+    byte[] scratch = new byte[256];
+    InfoHash infoHash;
+    boolean hasPeerId;
+    String passkey;
+    int port;
+    long uploaded;
+    long downloaded;
+    long left;
+    long corrupt;
+    AnnounceEventType event;
+    int numWant;
+    boolean compact;
+    boolean noPeerId;
+    boolean supportCrypto;
+    int redundant;
+    String ip;
+    String key;
+
+    public TrackerRequest() {
+        reset();
+    }
+
+    void reset() {
+        infoHash = null;
+        hasPeerId = false;
+        infoHashes.clear();
+        ipv4.clear();
+        ipv6.clear();
+        passkey = null;
+        port = -1;
+        uploaded = -1;
+        downloaded = -1;
+        left = -1;
+        corrupt = -1;
+        event = AnnounceEventType.UNKNOWN;
+        numWant = -1;
+        compact = false;
+        noPeerId = false;
+        supportCrypto = false;
+        redundant = -1;
+        ip = null;
+        key = null;
+    }
+
+    /**
+     * @return the first info_hash, or null if absent
+     */
+    @Nullable
+    public InfoHash getInfoHash() {
+        return infoHash;
+    }
+
+    public boolean hasInfoHash() {
+        return infoHash != null;
+    }
+
+    /**
+     * @return every info_hash of the query (used by scrape)
+     */
+    @NotNull
+    public List<InfoHash> getInfoHashes() {
+        return infoHashes;
+    }
+
+    public byte @NotNull [] getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * @return the peer_id, byte-for-byte as an ISO-8859-1 string
+     */
+    @NotNull
+    public String getPeerIdString() {
+        return new String(peerId, StandardCharsets.ISO_8859_1);
+    }
+
+    @Nullable
+    public String getPasskey() {
+        return passkey;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getUploaded() {
+        return uploaded;
+    }
+
+    public long getDownloaded() {
+        return downloaded;
+    }
+
+    public long getLeft() {
+        return left;
+    }
+
+    public long getCorrupt() {
+        return corrupt;
+    }
+
+    @NotNull
+    public AnnounceEventType getEvent() {
+        return event;
+    }
+
+    public int getNumWant() {
+        return numWant;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public boolean isNoPeerId() {
+        return noPeerId;
+    }
+
+    public boolean isSupportCrypto() {
+        return supportCrypto;
+    }
+
+    public int getRedundant() {
+        return redundant;
+    }
+
+    @Nullable
+    public String getIp() {
+        return ip;
+    }
+
+    @NotNull
+    public List<String> getIpv4() {
+        return ipv4;
+    }
+
+    @NotNull
+    public List<String> getIpv6() {
+        return ipv6;
+    }
+
+    @Nullable
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,280 @@
+package com.github.bitsapling.sapling.tracker;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single pass decoder for announce and scrape query strings.
+ * The raw query is walked once, info_hash is percent-decoded straight into an {@link InfoHash}, peer_id into
+ * a 20 byte array and numbers are parsed in place. Validation problems are returned as a failure reason, never thrown.
+ */
+public class TrackerRequestDecoder {
+    private static final ThreadLocal<TrackerRequest> LOCAL = ThreadLocal.withInitial(TrackerRequest::new);
+    private static final int MAX_KEY_LENGTH = 32;
+    private static final int UNKNOWN = 0;
+    private static final int INFO_HASH = 1;
+    private static final int PEER_ID = 2;
+    private static final int PORT = 3;
+    private static final int UPLOADED = 4;
+    private static final int DOWNLOADED = 5;
+    private static final int LEFT = 6;
+    private static final int CORRUPT = 7;
+    private static final int EVENT = 8;
+    private static final int NUM_WANT = 9;
+    private static final int COMPACT = 10;
+    private static final int NO_PEER_ID = 11;
+    private static final int SUPPORT_CRYPTO = 12;
+    private static final int IP = 13;
+    private static final int IPV4 = 14;
+    private static final int IPV6 = 15;
+    private static final int REDUNDANT = 16;
+    private static final int PASSKEY = 17;
+    private static final int KEY = 18;
+    // Known parameter names bucketed by length, the aliases are the ones accepted by other trackers
+    private static final byte[][][] NAMES = new byte[MAX_KEY_LENGTH + 1][][];
+    private static final int[][] NAME_FIELDS = new int[MAX_KEY_LENGTH + 1][];
+
+    static {
+        List<List<byte[]>> names = new ArrayList<>();
+        List<List<Integer>> fields = new ArrayList<>();
+        for (int i = 0; i <= MAX_KEY_LENGTH; i++) {
+            names.add(new ArrayList<>());
+            fields.add(new ArrayList<>());
+        }
+        Object[][] table = {
+                {"info_hash", INFO_HASH}, {"peer_id", PEER_ID}, {"port", PORT},
+                {"uploaded", UPLOADED}, {"downloaded", DOWNLOADED}, {"left", LEFT}, {"corrupt", CORRUPT},
+                {"event", EVENT}, {"numwant", NUM_WANT}, {"num want", NUM_WANT}, {"num_want", NUM_WANT},
+                {"compact", COMPACT}, {"nopeerid", NO_PEER_ID}, {"no_peerid", NO_PEER_ID}, {"no_peer_id", NO_PEER_ID},
+                {"supportcrypto", SUPPORT_CRYPTO}, {"support crypto", SUPPORT_CRYPTO}, {"support_crypto", SUPPORT_CRYPTO},
+                {"ip", IP}, {"address", IP}, {"ipaddress", IP}, {"ip_address", IP}, {"ip address", IP},
+                {"ipv4", IPV4}, {"ipv6", IPV6},
+                {"redundant", REDUNDANT}, {"redundant_peers", REDUNDANT}, {"redundant peers", REDUNDANT},
+                {"passkey", PASSKEY}, {"key", KEY}
+        };
+        for (Object[] row : table) {
+            byte[] name = ((String) row[0]).getBytes(StandardCharsets.US_ASCII);
+            names.get(name.length).add(name);
+            fields.get(name.length).add((Integer) row[1]);
+        }
+        for (int i = 0; i <= MAX_KEY_LENGTH; i++) {
+            NAMES[i] = names.get(i).toArray(new byte[0][]);
+            NAME_FIELDS[i] = fields.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /**
+     * @return the reset request object of the current thread
+     */
+    @NotNull
+    public static TrackerRequest local() {
+        TrackerRequest request = LOCAL.get();
+        request.reset();
+        return request;
+    }
+
+    /**
+     * Decode an announce query and validate the mandatory fields.
+     *
+     * @return failure reason, or null if the request is valid
+     */
+    @Nullable
+    public static String decodeAnnounce(@Nullable String query, @NotNull TrackerRequest request) {
+        String error = decode(query, request);
+        if (error != null) return error;
+        if (request.passkey == null || request.passkey.isEmpty())
+            return "You must re-download the torrent from tracker for seeding.";
+        if (request.infoHash == null) return "Missing param: info_hash";
+        if (!request.hasPeerId) return "Missing param: peer_id";
+        if (request.port < 0 || request.port > 65535) return "Missing/Invalid param: port";
+        if (request.uploaded < 0) return "Missing/Invalid param: uploaded";
+        if (request.downloaded < 0) return "Missing/Invalid param: downloaded";
+        if (request.left < 0) return "Missing/Invalid param: left";
+        return null;
+    }
+
+    /**
+     * Decode a scrape query, every info_hash is collected into {@link TrackerRequest#getInfoHashes()}.
+     *
+     * @return failure reason, or null if the request is valid
+     */
+    @Nullable
+    public static String decodeScrape(@Nullable String query, @NotNull TrackerRequest request) {
+        String error = decode(query, request);
+        if (error != null) return error;
+        if (request.passkey == null || request.passkey.isEmpty())
+            return "You must re-download the torrent from tracker for seeding.";
+        return null;
+    }
+
+    @Nullable
+    private static String decode(@Nullable String query, @NotNull TrackerRequest request) {
+        if (query == null) return "Missing query string";
+        int length = query.length();
+        int pos = 0;
+        while (pos < length) {
+            int pairEnd = query.indexOf('&', pos);
+            if (pairEnd < 0) pairEnd = length;
+            int separator = pos;
+            while (separator < pairEnd && query.charAt(separator) != '=') separator++;
+            if (separator < pairEnd) {
+                int field = lookupField(query, pos, separator, request);
+                if (field != UNKNOWN) {
+                    String error = decodeValue(field, query, separator + 1, pairEnd, request);
+                    if (error != null) return error;
+                }
+            }
+            pos = pairEnd + 1;
+        }
+        return null;
+    }
+
+    private static int lookupField(@NotNull String query, int start, int end, @NotNull TrackerRequest request) {
+        int keyLength = percentDecode(query, start, end, request, MAX_KEY_LENGTH);
+        if (keyLength <= 0) return UNKNOWN;
+        byte[][] candidates = NAMES[keyLength];
+        for (int i = 0; i < candidates.length; i++) {
+            if (Arrays.equals(candidates[i], 0, keyLength, request.scratch, 0, keyLength)) {
+                return NAME_FIELDS[keyLength][i];
+            }
+        }
+        return UNKNOWN;
+    }
+
+    @Nullable
+    private static String decodeValue(int field, @NotNull String query, int start, int end, @NotNull TrackerRequest request) {
+        switch (field) {
+            case INFO_HASH -> {
+                if (percentDecode(query, start, end, request, TrackerRequest.HASH_LENGTH) != TrackerRequest.HASH_LENGTH)
+                    return "Invalid param: info_hash";
+                InfoHash infoHash = InfoHash.of(request.scratch, 0);
+                if (request.infoHash == null) {
+                    request.infoHash = infoHash;
+                }
+                request.infoHashes.add(infoHash);
+            }
+            case PEER_ID -> {
+                if (percentDecode(query, start, end, request, TrackerRequest.HASH_LENGTH) != TrackerRequest.HASH_LENGTH)
+                    return "Invalid param: peer_id";
+                System.arraycopy(request.scratch, 0, request.peerId, 0, TrackerRequest.HASH_LENGTH);
+                request.hasPeerId = true;
+            }
+            case PORT -> {
+                long port = parseNumber(query, start, end);
+                if (port < 0 || port > 65535) return "Missing/Invalid param: port";
+                request.port = (int) port;
+            }
+            case UPLOADED -> {
+                if ((request.uploaded = parseNumber(query, start, end)) < 0) return "Missing/Invalid param: uploaded";
+            }
+            case DOWNLOADED -> {
+                if ((request.downloaded = parseNumber(query, start, end)) < 0)
+                    return "Missing/Invalid param: downloaded";
+            }
+            case LEFT -> {
+                if ((request.left = parseNumber(query, start, end)) < 0) return "Missing/Invalid param: left";
+            }
+            case CORRUPT -> {
+                if ((request.corrupt = parseNumber(query, start, end)) < 0) return "Invalid optional param: corrupt";
+            }
+            case NUM_WANT -> {
+                long numWant = parseNumber(query, start, end);
+                if (numWant < 0) return "Invalid optional param: numwant";
+                request.numWant = (int) Math.min(numWant, Integer.MAX_VALUE);
+            }
+            case REDUNDANT -> {
+                long redundant = parseNumber(query, start, end);
+                if (redundant < 0) return "Invalid optional param: redundant";
+                request.redundant = (int) Math.min(redundant, Integer.MAX_VALUE);
+            }
+            case COMPACT -> request.compact = parseBoolean(query, start, end, request);
+            case NO_PEER_ID -> request.noPeerId = parseBoolean(query, start, end, request);
+            case SUPPORT_CRYPTO -> request.supportCrypto = parseBoolean(query, start, end, request);
+            case EVENT -> request.event = AnnounceEventType.fromName(decodeString(query, start, end, request));
+            case PASSKEY -> request.passkey = decodeString(query, start, end, request);
+            case KEY -> request.key = decodeString(query, start, end, request);
+            case IP -> request.ip = decodeString(query, start, end, request);
+            case IPV4 -> request.ipv4.add(decodeString(query, start, end, request));
+            case IPV6 -> request.ipv6.add(decodeString(query, start, end, request));
+            default -> {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a non-negative decimal number in place.
+     *
+     * @return the number, or -1 if empty, malformed or overflowing
+     */
+    private static long parseNumber(@NotNull String query, int start, int end) {
+        if (start >= end || end - start > 18) return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = query.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean parseBoolean(@NotNull String query, int start, int end, @NotNull TrackerRequest request) {
+        int length = percentDecode(query, start, end, request, 8);
+        if (length <= 0) return false;
+        byte[] s = request.scratch;
+        if (length == 1) return s[0] == '1' || s[0] == 'y' || s[0] == 'Y';
+        return equalsIgnoreCase(s, length, "true") || equalsIgnoreCase(s, length, "yes") || equalsIgnoreCase(s, length, "on");
+    }
+
+    private static boolean equalsIgnoreCase(byte @NotNull [] bytes, int length, @NotNull String expected) {
+        if (length != expected.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase((char) bytes[i]) != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    private static String decodeString(@NotNull String query, int start, int end, @NotNull TrackerRequest request) {
+        if (request.scratch.length < end - start) {
+            request.scratch = new byte[end - start];
+        }
+        int length = percentDecode(query, start, end, request, request.scratch.length);
+        if (length < 0) return null;
+        return new String(request.scratch, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Percent-decode query[start, end) into the scratch buffer of the request.
+     *
+     * @return decoded length, or -1 if malformed or longer than limit
+     */
+    private static int percentDecode(@NotNull String query, int start, int end, @NotNull TrackerRequest request, int limit) {
+        byte[] out = request.scratch;
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            if (length >= limit) return -1;
+            char c = query.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end) return -1;
+                int high = Character.digit(query.charAt(i + 1), 16);
+                int low = Character.digit(query.charAt(i + 2), 16);
+                if (high < 0 || low < 0) return -1;
+                out[length++] = (byte) ((high << 4) | low);
+                i += 2;
+            } else if (c == '+') {
+                out[length++] = ' ';
+            } else {
+                out[length++] = (byte) c;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.bitsapling.sapling.tracker;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.service.TorrentStatsService;
+import com.github.bitsapling.sapling.tracker.swarm.PeerListSnapshot;
+import com.github.bitsapling.sapling.tracker.swarm.PeerSelection;
+import com.github.bitsapling.sapling.tracker.swarm.PeerWindow;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmPeer;
+import com.github.bitsapling.sapling.util.BencodeWriter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Encodes tracker responses straight into a {@link BencodeWriter}.
+ * Every dictionary below lists its keys in raw byte order, as required by bencode.
+ */
+public class TrackerResponseWriter {
+
+    public static void writeAnnounce(@NotNull BencodeWriter writer, int interval,
+                                     @NotNull TorrentStatsService.PeerStatus peerStatus,
+                                     @NotNull PeerSelection selection, boolean compact, boolean noPeerId) {
+        PeerListSnapshot snapshot = selection.snapshot();
+        writer.beginDict();
+        writer.key("complete").writeInt(peerStatus.complete());
+        writer.key("downloaded").writeInt(peerStatus.downloaded());
+        writer.key("downloaders").writeInt(peerStatus.downloaders());
+        writer.key("incomplete").writeInt(peerStatus.incomplete());
+        writer.key("interval").writeInt(interval);
+        writer.key("peers");
+        if (compact) {
+            writeCompactPeers(writer, snapshot.getCompactPeers(), selection.peers(), 6);
+            if (!selection.peers6().isEmpty()) {
+                writer.key("peers6");
+                writeCompactPeers(writer, snapshot.getCompactPeers6(), selection.peers6(), 18);
+            }
+        } else {
+            writer.beginList();
+            writeDictionaryPeers(writer, snapshot.getPeers(), selection.peers(), noPeerId);
+            writeDictionaryPeers(writer, snapshot.getPeers6(), selection.peers6(), noPeerId);
+            writer.end();
+        }
+        writer.end();
+    }
+
+    /**
+     * @param files info_hash to status entries, in any order
+     */
+    public static void writeScrape(@NotNull BencodeWriter writer, int minRequestInterval, @NotNull List<ScrapeFile> files) {
+        ScrapeFile[] sorted = files.toArray(new ScrapeFile[0]);
+        Arrays.sort(sorted, Comparator.comparing(ScrapeFile::infoHash));
+        beginScrape(writer);
+        for (ScrapeFile file : sorted) {
+            writeScrapeFile(writer, file);
+        }
+        endScrape(writer, minRequestInterval);
+    }
+
+    /**
+     * Open a scrape response, followed by {@link #writeScrapeFile} calls in info_hash order and {@link #endScrape}.
+     * Lets big responses be streamed out in chunks.
+     */
+    public static void beginScrape(@NotNull BencodeWriter writer) {
+        writer.beginDict();
+        writer.key("files").beginDict();
+    }
+
+    public static void writeScrapeFile(@NotNull BencodeWriter writer, @NotNull ScrapeFile file) {
+        writer.writeBytes(file.infoHash().toByteArray());
+        writer.beginDict();
+        writer.key("complete").writeInt(file.peerStatus().complete());
+        writer.key("downloaded").writeInt(file.peerStatus().downloaded());
+        writer.key("downloaders").writeInt(file.peerStatus().downloaders());
+        writer.key("incomplete").writeInt(file.peerStatus().incomplete());
+        writer.end();
+    }
+
+    public static void endScrape(@NotNull BencodeWriter writer, int minRequestInterval) {
+        writer.end();
+        writer.key("flags").beginDict();
+        writer.key("min_request_interval").writeInt(minRequestInterval);
+        writer.end();
+        writer.end();
+    }
+
+    public static void writeFailure(@NotNull BencodeWriter writer, @NotNull String reason, @NotNull String retryIn) {
+        writer.beginDict();
+        writer.key("failure reason").writeString(reason);
+        writer.key("retry in").writeString(retryIn);
+        writer.end();
+    }
+
+    private static void writeCompactPeers(@NotNull BencodeWriter writer, byte @NotNull [] block,
+                                          @NotNull PeerWindow window, int endpointLength) {
+        writer.writeLength(endpointLength * window.size());
+        window.forEachRange((from, to) ->
+                writer.writeRawBytes(block, from * endpointLength, (to - from) * endpointLength));
+    }
+
+    private static void writeDictionaryPeers(@NotNull BencodeWriter writer, SwarmPeer @NotNull [] peers,
+                                             @NotNull PeerWindow window, boolean noPeerId) {
+        window.forEachRange((from, to) -> {
+            for (int i = from; i < to; i++) {
+                SwarmPeer peer = peers[i];
+                writer.beginDict();
+                writer.key("ip").writeString(peer.ip());
+                if (!noPeerId) {
+                    writer.key("peer id").writeString(peer.peerId());
+                }
+                writer.key("port").writeInt(peer.port());
+                writer.end();
+            }
+        });
+    }
+
+    public record ScrapeFile(@NotNull InfoHash infoHash, @NotNull TorrentStatsService.PeerStatus peerStatus) {
+    }
+}
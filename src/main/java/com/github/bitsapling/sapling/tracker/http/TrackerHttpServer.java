@@ -0,0 +1,541 @@
+package com.github.bitsapling.sapling.tracker.http;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.exception.FixedAnnounceException;
+import com.github.bitsapling.sapling.exception.RetryableAnnounceException;
+import com.github.bitsapling.sapling.service.FullScrapeService;
+import com.github.bitsapling.sapling.tracker.ClientAddressResolver;
+import com.github.bitsapling.sapling.tracker.TrackerHttpHandler;
+import com.github.bitsapling.sapling.tracker.TrackerHttpRequest;
+import com.github.bitsapling.sapling.tracker.TrackerResponseWriter;
+import com.github.bitsapling.sapling.util.BencodeWriter;
+import com.github.bitsapling.sapling.util.ClassUtil;
+import com.github.bitsapling.sapling.util.HibernateSessionUtil;
+import com.github.bitsapling.sapling.util.VirtualThreadUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional HTTP/1.1 listener serving only {@code /announce} and {@code /scrape}, next to the Spring MVC server.
+ * Requests are parsed and answered on a few selector event loops with keep-alive and pipelining, calling
+ * {@link TrackerHttpHandler} directly, without the servlet stack, interceptors and controller advice in between.
+ * The handler may block on the database, so it runs on a bounded worker pool (or a virtual thread per request) and
+ * the loops only parse and write. A connection has one request in flight at a time, pipelined ones wait in its
+ * buffer, which keeps the responses in order.
+ */
+@Component
+@Slf4j
+public class TrackerHttpServer {
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final String CONTENT_TYPE = "text/plain; charset=iso-8859-1";
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops = new EventLoop[0];
+    private Executor workers;
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private TrackerHttpHandler trackerHttpHandler;
+    @Autowired
+    private HibernateSessionUtil sessionUtil;
+    @Autowired
+    private ClassUtil classUtil;
+    @Autowired
+    private ClientAddressResolver clientAddressResolver;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() throws IOException {
+        TrackerProperties.Http config = trackerProperties.getHttp();
+        if (!config.isEnabled() || running) return;
+        InetSocketAddress address = new InetSocketAddress(config.getHost(), config.getPort());
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        int count = config.getEventLoops() > 0 ? config.getEventLoops() : Runtime.getRuntime().availableProcessors();
+        workers = createWorkers(config);
+        loops = new EventLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new EventLoop(i, Selector.open());
+        }
+        // The first loop also accepts, then hands connections out round-robin
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        log.info("Tracker HTTP server listening on {} with {} event loops", address, count);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() throws IOException, InterruptedException {
+        if (!running) return;
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        serverChannel.close();
+        if (workers instanceof ExecutorService executor) {
+            executor.shutdown();
+        }
+    }
+
+    @NotNull
+    private Executor createWorkers(@NotNull TrackerProperties.Http config) {
+        if (trackerProperties.getVirtualThreads().isEnabled()) {
+            Executor executor = VirtualThreadUtil.perTaskExecutor("tracker-http-worker-");
+            if (executor != null) return executor;
+        }
+        int count = config.getWorkers() > 0 ? config.getWorkers() : Runtime.getRuntime().availableProcessors() * 4;
+        return new ThreadPoolExecutor(count, count, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getWorkerQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("Tracker HTTP Worker #%d").setDaemon(true).build());
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<Completion> completed = new ConcurrentLinkedQueue<>();
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        private EventLoop(int index, @NotNull Selector selector) {
+            this.selector = selector;
+            this.thread = new Thread(this, "Tracker HTTP #" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(1000);
+                    registerAccepted();
+                    handleCompleted();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                    closeIdle();
+                } catch (Exception e) {
+                    log.error("Unexpected error in tracker HTTP event loop", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            handleCompleted();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void handleKey(@NotNull SelectionKey key) {
+            try {
+                if (!key.isValid()) return;
+                if (key.isAcceptable()) {
+                    accept();
+                    return;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    read(key, connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(key, connection);
+                }
+            } catch (IOException e) {
+                // Client went away
+                closeQuietly(key);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                loop.accepted.add(channel);
+                if (loop != this) loop.selector.wakeup();
+            }
+        }
+
+        private void registerAccepted() throws IOException {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                if (remote == null) {
+                    channel.close();
+                    continue;
+                }
+                Connection connection = new Connection(remote.getAddress().getHostAddress(),
+                        trackerProperties.getHttp().getMaxRequestSize());
+                channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+
+        private void read(@NotNull SelectionKey key, @NotNull Connection connection) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (channel.read(connection.in) < 0) {
+                closeQuietly(key);
+                return;
+            }
+            connection.lastActive = System.currentTimeMillis();
+            process(key, connection);
+        }
+
+        /**
+         * Parse the buffered request heads until one goes to a worker, then write what is ready.
+         */
+        private void process(@NotNull SelectionKey key, @NotNull Connection connection) throws IOException {
+            connection.in.flip();
+            while (!connection.closeAfterWrite && !connection.busy) {
+                int end = indexOf(connection.in, HEADER_END);
+                if (end < 0) break;
+                byte[] head = new byte[end - connection.in.position()];
+                connection.in.get(head);
+                connection.in.position(connection.in.position() + HEADER_END.length);
+                respond(new String(head, StandardCharsets.ISO_8859_1), key, connection, this);
+            }
+            if (!connection.closeAfterWrite && !connection.in.hasRemaining()) {
+                connection.in.clear();
+            } else if (!connection.closeAfterWrite) {
+                connection.in.compact();
+                if (!connection.busy && !connection.in.hasRemaining()) {
+                    // A request head bigger than the buffer
+                    connection.pending.add(new BufferOutgoing(response(431, "Request Header Fields Too Large", null, true)));
+                    connection.closeAfterWrite = true;
+                }
+            }
+            flush(key, connection);
+        }
+
+        private void complete(@NotNull Completion completion) {
+            completed.add(completion);
+            selector.wakeup();
+        }
+
+        private void handleCompleted() {
+            Completion completion;
+            while ((completion = completed.poll()) != null) {
+                SelectionKey key = completion.key();
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    completion.outgoing().forEach(Outgoing::close);
+                    continue;
+                }
+                connection.pending.addAll(completion.outgoing());
+                connection.busy = false;
+                connection.lastActive = System.currentTimeMillis();
+                try {
+                    process(key, connection);
+                } catch (IOException e) {
+                    closeQuietly(key);
+                }
+            }
+        }
+
+        private void flush(@NotNull SelectionKey key, @NotNull Connection connection) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            // A client slowly reading a big response is not idle
+            connection.lastActive = System.currentTimeMillis();
+            while (!connection.pending.isEmpty()) {
+                if (!connection.pending.peek().write(channel)) {
+                    // Socket buffer full, stop reading until the client catches up
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.pending.poll().close();
+            }
+            if (connection.busy) {
+                // Nothing more is read until the worker is done, pipelined requests wait in the buffer
+                key.interestOps(0);
+                return;
+            }
+            if (connection.closeAfterWrite) {
+                closeQuietly(key);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < 1000) return;
+            lastIdleCheck = now;
+            long idleTimeout = trackerProperties.getHttp().getIdleTimeout();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection && !connection.busy
+                        && now - connection.lastActive > idleTimeout) {
+                    closeQuietly(key);
+                }
+            }
+        }
+    }
+
+    private void respond(@NotNull String head, @NotNull SelectionKey key, @NotNull Connection connection, @NotNull EventLoop loop) {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            connection.closeAfterWrite = true;
+            connection.pending.add(new BufferOutgoing(response(400, "Bad Request", null, true)));
+            return;
+        }
+        String userAgent = null;
+        String acceptEncoding = null;
+        String realIp = null;
+        String forwardedFor = null;
+        String connectionHeader = null;
+        boolean hasBody = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            switch (name) {
+                case "user-agent" -> userAgent = value;
+                case "accept-encoding" -> acceptEncoding = value;
+                case "x-real-ip" -> realIp = value;
+                case "x-forwarded-for" -> forwardedFor = value;
+                case "connection" -> connectionHeader = value.toLowerCase(Locale.ROOT);
+                case "content-length" -> hasBody = !value.equals("0");
+                case "transfer-encoding" -> hasBody = true;
+                default -> {
+                }
+            }
+        }
+        boolean http10 = requestLine[2].equals("HTTP/1.0");
+        boolean keepAlive = http10 ? "keep-alive".equals(connectionHeader) : !"close".equals(connectionHeader);
+        if (hasBody) {
+            // Tracker requests never have one, don't try to skip it
+            keepAlive = false;
+        }
+        connection.closeAfterWrite = !keepAlive;
+        String target = requestLine[1];
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        String queryString = query < 0 ? null : target.substring(query + 1);
+        boolean announce = path.equals("/announce");
+        if (!announce && !path.equals("/scrape")) {
+            connection.pending.add(new BufferOutgoing(response(404, "Not Found", null, !keepAlive)));
+            return;
+        }
+        // No proxy strips forged headers on this port, they only count when a trusted proxy is the peer
+        TrackerHttpRequest request = new TrackerHttpRequest(requestLine[0], queryString, userAgent,
+                clientAddressResolver.resolve(connection.remoteAddress, realIp, forwardedFor), acceptEncoding);
+        boolean close = !keepAlive;
+        connection.busy = true;
+        try {
+            workers.execute(() -> loop.complete(new Completion(key, handle(request, announce, target, close))));
+        } catch (RejectedExecutionException e) {
+            connection.busy = false;
+            connection.pending.add(new BufferOutgoing(response(503, "Service Unavailable", null, !keepAlive)));
+        }
+    }
+
+    /**
+     * Run the handler, on a worker thread.
+     *
+     * @return the parts of the response
+     */
+    @NotNull
+    private List<Outgoing> handle(@NotNull TrackerHttpRequest request, boolean announce, @NotNull String target, boolean close) {
+        BencodeWriter writer = BencodeWriter.local();
+        FullScrapeService.Snapshot snapshot = null;
+        boolean participate = sessionUtil.bindToThread();
+        try {
+            if (announce) {
+                trackerHttpHandler.announce(request, writer);
+            } else {
+                snapshot = trackerHttpHandler.scrape(request, writer);
+            }
+        } catch (RetryableAnnounceException e) {
+            writer.reset();
+            TrackerResponseWriter.writeFailure(writer, classUtil.getClassSimpleName(e.getClass()) + ": " + e.getMessage(), String.valueOf(e.getRetryIn()));
+        } catch (FixedAnnounceException e) {
+            writer.reset();
+            TrackerResponseWriter.writeFailure(writer, classUtil.getClassSimpleName(e.getClass()) + ": " + e.getMessage(), "never");
+        } catch (Exception e) {
+            log.error("Error handling tracker request: {}", target, e);
+            return List.of(new BufferOutgoing(response(500, "Internal Server Error", null, close)));
+        } finally {
+            sessionUtil.closeFromThread(participate);
+        }
+        if (snapshot != null) {
+            try {
+                FileChannel file = FileChannel.open(snapshot.path(), StandardOpenOption.READ);
+                return List.of(new BufferOutgoing(head(200, "OK", snapshot.length(), snapshot.gzip(), close)),
+                        new FileOutgoing(file, snapshot.length()));
+            } catch (IOException e) {
+                log.error("Unable to open the full scrape snapshot {}", snapshot.path(), e);
+                return List.of(new BufferOutgoing(response(500, "Internal Server Error", null, close)));
+            }
+        }
+        return List.of(new BufferOutgoing(response(200, "OK", writer, close)));
+    }
+
+    @NotNull
+    private static ByteBuffer response(int status, @NotNull String reason, @Nullable BencodeWriter body, boolean close) {
+        int length = body == null ? 0 : body.size();
+        byte[] headBytes = headBytes(status, reason, length, false, close);
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + length);
+        buffer.put(headBytes);
+        if (body != null) body.writeTo(buffer);
+        return buffer.flip();
+    }
+
+    @NotNull
+    private static ByteBuffer head(int status, @NotNull String reason, long length, boolean gzip, boolean close) {
+        return ByteBuffer.wrap(headBytes(status, reason, length, gzip, close));
+    }
+
+    private static byte @NotNull [] headBytes(int status, @NotNull String reason, long length, boolean gzip, boolean close) {
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n" +
+                "Content-Type: " + CONTENT_TYPE + "\r\n" +
+                "Content-Length: " + length + "\r\n" +
+                (gzip ? "Content-Encoding: gzip\r\n" : "") +
+                (close ? "Connection: close\r\n" : "Connection: keep-alive\r\n") +
+                "\r\n";
+        return head.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(@NotNull ByteBuffer buffer, byte @NotNull [] pattern) {
+        int limit = buffer.limit() - pattern.length;
+        outer:
+        for (int i = buffer.position(); i <= limit; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(@NotNull SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof Connection connection) {
+            Outgoing outgoing;
+            while ((outgoing = connection.pending.poll()) != null) {
+                outgoing.close();
+            }
+        }
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Connection {
+        private final String remoteAddress;
+        private final ByteBuffer in;
+        private final Queue<Outgoing> pending = new ArrayDeque<>();
+        private long lastActive = System.currentTimeMillis();
+        private boolean closeAfterWrite;
+        // A request of this connection is on a worker
+        private boolean busy;
+
+        private Connection(@NotNull String remoteAddress, int maxRequestSize) {
+            this.remoteAddress = remoteAddress;
+            this.in = ByteBuffer.allocate(maxRequestSize);
+        }
+    }
+
+    /**
+     * A response built by a worker, handed back to the event loop of its connection.
+     */
+    private record Completion(@NotNull SelectionKey key, @NotNull List<Outgoing> outgoing) {
+    }
+
+    /**
+     * A part of a response waiting to be written to the socket.
+     */
+    private interface Outgoing {
+        /**
+         * @return true once fully written
+         */
+        boolean write(@NotNull SocketChannel channel) throws IOException;
+
+        default void close() {
+        }
+    }
+
+    private record BufferOutgoing(@NotNull ByteBuffer buffer) implements Outgoing {
+        @Override
+        public boolean write(@NotNull SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+    }
+
+    /**
+     * A file sent with {@link FileChannel#transferTo}, the kernel copies it straight to the socket.
+     */
+    private static final class FileOutgoing implements Outgoing {
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        private FileOutgoing(@NotNull FileChannel file, long end) {
+            this.file = file;
+            this.end = end;
+        }
+
+        @Override
+        public boolean write(@NotNull SocketChannel channel) throws IOException {
+            while (position < end) {
+                long written = file.transferTo(position, end - position, channel);
+                if (written <= 0) return false;
+                position += written;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps every swarm in the process, sharded by info_hash.
+ * Mutations of one swarm run inside {@link ConcurrentHashMap#compute}, so they are striped by
+ * the info_hash bin and never block announces of other torrents; reads never lock.
+ */
+@Component
+public class InMemorySwarmRegistry implements SwarmRegistry {
+    private final Map<InfoHash, Swarm> swarms = new ConcurrentHashMap<>();
+    @Autowired
+    private TrackerProperties trackerProperties;
+
+    @Override
+    @Nullable
+    public SwarmPeer getPeer(@NotNull InfoHash infoHash, @NotNull String ip, int port) {
+        Swarm swarm = swarms.get(infoHash);
+        if (swarm == null) return null;
+        return swarm.get(new PeerKey(ip, port));
+    }
+
+    @Override
+    @NotNull
+    public PeerSelection selectPeers(@NotNull InfoHash infoHash, int numWant, boolean seeder, @Nullable String requester) {
+        Swarm swarm = swarms.get(infoHash);
+        if (swarm == null || numWant <= 0) return PeerSelection.EMPTY;
+        return swarm.getSnapshot(trackerProperties.getPeerList().getCacheTtl()).select(numWant, seeder, requester);
+    }
+
+    @Override
+    @NotNull
+    public SwarmStats getStats(@NotNull InfoHash infoHash) {
+        Swarm swarm = swarms.get(infoHash);
+        return swarm == null ? SwarmStats.EMPTY : swarm.getStats();
+    }
+
+    @Override
+    public void putPeer(@NotNull SwarmPeer peer) {
+        swarms.compute(peer.infoHash(), (key, swarm) -> {
+            if (swarm == null) swarm = new Swarm();
+            swarm.put(peer);
+            return swarm;
+        });
+    }
+
+    @Override
+    @Nullable
+    public SwarmPeer removePeer(@NotNull InfoHash infoHash, @NotNull String ip, int port) {
+        SwarmPeer[] removed = new SwarmPeer[1];
+        swarms.computeIfPresent(infoHash, (key, swarm) -> {
+            removed[0] = swarm.remove(new PeerKey(ip, port));
+            return swarm.isEmpty() ? null : swarm;
+        });
+        return removed[0];
+    }
+
+    @Override
+    @NotNull
+    public List<SwarmPeer> purgeExpired(long updatedBefore) {
+        List<SwarmPeer> removed = new ArrayList<>();
+        for (InfoHash infoHash : swarms.keySet()) {
+            swarms.computeIfPresent(infoHash, (key, swarm) -> {
+                removed.addAll(swarm.removeUpdatedBefore(updatedBefore));
+                return swarm.isEmpty() ? null : swarm;
+            });
+        }
+        return removed;
+    }
+
+    @Override
+    public int reconcileStats() {
+        int[] corrected = new int[1];
+        for (InfoHash infoHash : swarms.keySet()) {
+            swarms.computeIfPresent(infoHash, (key, swarm) -> {
+                if (swarm.recount()) corrected[0]++;
+                return swarm;
+            });
+        }
+        return corrected[0];
+    }
+
+    @Override
+    @NotNull
+    public Collection<SwarmPeer> getAllPeers() {
+        List<SwarmPeer> peers = new ArrayList<>();
+        for (Swarm swarm : swarms.values()) {
+            peers.addAll(swarm.getAllPeers());
+        }
+        return peers;
+    }
+
+    @Override
+    public int getSwarmCount() {
+        return swarms.size();
+    }
+
+    @Override
+    public int getPeerCount() {
+        int count = 0;
+        for (Swarm swarm : swarms.values()) {
+            count += swarm.size();
+        }
+        return count;
+    }
+}
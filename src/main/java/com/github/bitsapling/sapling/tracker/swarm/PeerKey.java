@@ -0,0 +1,9 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Identity of a peer within a single swarm, same as the (ip, port, info_hash) unique key of the peers table.
+ */
+public record PeerKey(@NotNull String ip, int port) {
+}
@@ -0,0 +1,136 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ready-to-send peer list of a swarm: the BEP 23 {@code peers} and BEP 7 {@code peers6} blocks are
+ * concatenated compact endpoints, and the peer arrays hold the same peers in the same order for the
+ * dictionary model. Built at most once per version/TTL by {@link Swarm} and shared by every announcer.
+ * Leechers are placed before seeders in each family, so "leechers only" is just a prefix of the block.
+ */
+public final class PeerListSnapshot {
+    static final PeerListSnapshot EMPTY = new PeerListSnapshot(new SwarmPeer[0], 0, new SwarmPeer[0], 0, -1, 0);
+    private final SwarmPeer[] peers;
+    private final byte[] compactPeers;
+    private final int leechers;
+    private final SwarmPeer[] peers6;
+    private final byte[] compactPeers6;
+    private final int leechers6;
+    private final long version;
+    private final long builtAt;
+
+    private PeerListSnapshot(SwarmPeer @NotNull [] peers, int leechers, SwarmPeer @NotNull [] peers6, int leechers6,
+                             long version, long builtAt) {
+        this.peers = peers;
+        this.compactPeers = concat(peers, 6);
+        this.leechers = leechers;
+        this.peers6 = peers6;
+        this.compactPeers6 = concat(peers6, 18);
+        this.leechers6 = leechers6;
+        this.version = version;
+        this.builtAt = builtAt;
+    }
+
+    @NotNull
+    static PeerListSnapshot build(@NotNull Collection<SwarmPeer> source, long version, long builtAt) {
+        List<SwarmPeer> v4 = new ArrayList<>(source.size());
+        List<SwarmPeer> v4Seeders = new ArrayList<>(source.size());
+        List<SwarmPeer> v6 = new ArrayList<>();
+        List<SwarmPeer> v6Seeders = new ArrayList<>();
+        for (SwarmPeer peer : source) {
+            if (peer.isIpv6()) {
+                (peer.seeder() ? v6Seeders : v6).add(peer);
+            } else {
+                (peer.seeder() ? v4Seeders : v4).add(peer);
+            }
+        }
+        int leechers = v4.size();
+        int leechers6 = v6.size();
+        v4.addAll(v4Seeders);
+        v6.addAll(v6Seeders);
+        return new PeerListSnapshot(v4.toArray(new SwarmPeer[0]), leechers, v6.toArray(new SwarmPeer[0]), leechers6,
+                version, builtAt);
+    }
+
+    private static byte @NotNull [] concat(SwarmPeer @NotNull [] peers, int endpointLength) {
+        byte[] block = new byte[peers.length * endpointLength];
+        for (int i = 0; i < peers.length; i++) {
+            System.arraycopy(peers[i].compactEndpoint(), 0, block, i * endpointLength, endpointLength);
+        }
+        return block;
+    }
+
+    /**
+     * Pick up to numWant peers as random windows into the blocks, split between both families
+     * in proportion to their sizes. Every peer has the same chance to be picked, and the work is
+     * O(numWant): the blocks are never copied.
+     *
+     * @param seeder    the requester is a seeder, only leechers are useful to it
+     * @param requester peer_id of the requester, its own entries are left out of the selection
+     */
+    @NotNull
+    public PeerSelection select(int numWant, boolean seeder, @Nullable String requester) {
+        int available = seeder ? leechers : peers.length;
+        int available6 = seeder ? leechers6 : peers6.length;
+        int total = available + available6;
+        int want = Math.max(0, Math.min(numWant, total));
+        int count = total == 0 ? 0 : (int) (((long) want * available + total / 2) / total);
+        int count6 = Math.min(available6, want - count);
+        count = Math.min(available, want - count6);
+        return new PeerSelection(this,
+                window(peers, available, count, requester),
+                window(peers6, available6, count6, requester));
+    }
+
+    @NotNull
+    private static PeerWindow window(SwarmPeer @NotNull [] peers, int total, int count, @Nullable String requester) {
+        if (count <= 0) return PeerWindow.EMPTY;
+        int start = count >= total ? 0 : ThreadLocalRandom.current().nextInt(total);
+        if (requester != null) {
+            for (int i = 0; i < count; i++) {
+                int index = (start + i) % total;
+                if (requester.equals(peers[index].peerId())) {
+                    // Take one more peer to keep the count, if the swarm has any left
+                    return new PeerWindow(start, Math.min(count + 1, total), total, index);
+                }
+            }
+        }
+        return new PeerWindow(start, count, total, -1);
+    }
+
+    public SwarmPeer @NotNull [] getPeers() {
+        return peers;
+    }
+
+    /**
+     * @return 6 bytes per peer of {@link #getPeers()}, must never be modified
+     */
+    public byte @NotNull [] getCompactPeers() {
+        return compactPeers;
+    }
+
+    public SwarmPeer @NotNull [] getPeers6() {
+        return peers6;
+    }
+
+    /**
+     * @return 18 bytes per peer of {@link #getPeers6()}, must never be modified
+     */
+    public byte @NotNull [] getCompactPeers6() {
+        return compactPeers6;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getBuiltAt() {
+        return builtAt;
+    }
+}
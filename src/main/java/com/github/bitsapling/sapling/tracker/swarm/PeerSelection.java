@@ -0,0 +1,14 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Peers picked for one announce response, as windows into a shared {@link PeerListSnapshot}.
+ */
+public record PeerSelection(@NotNull PeerListSnapshot snapshot, @NotNull PeerWindow peers, @NotNull PeerWindow peers6) {
+    public static final PeerSelection EMPTY = new PeerSelection(PeerListSnapshot.EMPTY, PeerWindow.EMPTY, PeerWindow.EMPTY);
+
+    public int size() {
+        return peers.size() + peers6.size();
+    }
+}
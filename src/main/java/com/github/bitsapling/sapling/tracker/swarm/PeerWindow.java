@@ -0,0 +1,49 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A circular window of {@code count} entries starting at {@code start} over the first {@code total} entries
+ * of an array, optionally skipping the single entry at {@code excluded} (-1 for none).
+ * It covers at most three contiguous ranges, so compact blocks are copied with a few array copies.
+ */
+public record PeerWindow(int start, int count, int total, int excluded) {
+    public static final PeerWindow EMPTY = new PeerWindow(0, 0, 0, -1);
+
+    /**
+     * @return the number of peers in the window, the excluded entry not counted
+     */
+    public int size() {
+        return excluded < 0 ? count : count - 1;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Visit the contiguous ranges [from, to) of the window in order.
+     */
+    public void forEachRange(@NotNull RangeConsumer consumer) {
+        if (count == 0) return;
+        int end = start + count;
+        emit(consumer, start, Math.min(end, total));
+        if (end > total) {
+            emit(consumer, 0, end - total);
+        }
+    }
+
+    private void emit(@NotNull RangeConsumer consumer, int from, int to) {
+        if (excluded >= from && excluded < to) {
+            if (excluded > from) consumer.accept(from, excluded);
+            if (excluded + 1 < to) consumer.accept(excluded + 1, to);
+        } else if (from < to) {
+            consumer.accept(from, to);
+        }
+    }
+
+    @FunctionalInterface
+    public interface RangeConsumer {
+        void accept(int from, int to);
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Peers of a single torrent. Reads are lock-free, writes are serialized by {@link InMemorySwarmRegistry}.
+ * The version is bumped whenever the peer list as seen by other announcers changes (join, leave, seeder flip),
+ * plain stats updates keep the cached {@link PeerListSnapshot} valid.
+ * Seeders, leechers and partial seeders are counted as peers come and go, so reading them never walks the peers.
+ */
+public class Swarm {
+    private final Map<PeerKey, SwarmPeer> peers = new ConcurrentHashMap<>();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    // Counters below are only written under the registry's compute lock of this swarm
+    private volatile long version;
+    private volatile int seeders;
+    private volatile int leechers;
+    private volatile int partialSeeders;
+    private volatile PeerListSnapshot snapshot = PeerListSnapshot.EMPTY;
+
+    @Nullable
+    public SwarmPeer get(@NotNull PeerKey key) {
+        return peers.get(key);
+    }
+
+    void put(@NotNull SwarmPeer peer) {
+        SwarmPeer previous = peers.put(peer.key(), peer);
+        if (previous == null || previous.seeder() != peer.seeder()) {
+            version++;
+        }
+        if (previous != null) count(previous, -1);
+        count(peer, 1);
+    }
+
+    @Nullable
+    SwarmPeer remove(@NotNull PeerKey key) {
+        SwarmPeer removed = peers.remove(key);
+        if (removed != null) {
+            version++;
+            count(removed, -1);
+        }
+        return removed;
+    }
+
+    @NotNull
+    List<SwarmPeer> removeUpdatedBefore(long updatedBefore) {
+        List<SwarmPeer> removed = new ArrayList<>();
+        peers.values().removeIf(peer -> {
+            if (peer.updateAt() < updatedBefore) {
+                removed.add(peer);
+                count(peer, -1);
+                return true;
+            }
+            return false;
+        });
+        if (!removed.isEmpty()) {
+            version++;
+        }
+        return removed;
+    }
+
+    private void count(@NotNull SwarmPeer peer, int delta) {
+        if (peer.partialSeeder()) {
+            partialSeeders += delta;
+        } else if (peer.seeder()) {
+            seeders += delta;
+        } else {
+            leechers += delta;
+        }
+    }
+
+    /**
+     * Count the peers again, in case the counters drifted.
+     *
+     * @return true if a counter was wrong
+     */
+    boolean recount() {
+        int countedSeeders = 0;
+        int countedLeechers = 0;
+        int countedPartialSeeders = 0;
+        for (SwarmPeer peer : peers.values()) {
+            if (peer.partialSeeder()) {
+                countedPartialSeeders++;
+            } else if (peer.seeder()) {
+                countedSeeders++;
+            } else {
+                countedLeechers++;
+            }
+        }
+        boolean drifted = countedSeeders != seeders || countedLeechers != leechers || countedPartialSeeders != partialSeeders;
+        seeders = countedSeeders;
+        leechers = countedLeechers;
+        partialSeeders = countedPartialSeeders;
+        return drifted;
+    }
+
+    @NotNull
+    public SwarmStats getStats() {
+        return new SwarmStats(seeders, leechers, partialSeeders);
+    }
+
+    /**
+     * Get the cached peer list, rebuilt only when it is both outdated and older than ttl millis.
+     * A single caller rebuilds at a time, concurrent ones keep getting the previous snapshot.
+     */
+    @NotNull
+    public PeerListSnapshot getSnapshot(long ttl) {
+        PeerListSnapshot current = snapshot;
+        long currentVersion = version;
+        if (current.getVersion() == currentVersion) return current;
+        long now = System.currentTimeMillis();
+        if (now - current.getBuiltAt() < ttl && current != PeerListSnapshot.EMPTY) return current;
+        if (!rebuilding.compareAndSet(false, true)) return current;
+        try {
+            // Version is read before the peers, a change during the build only causes one more rebuild
+            current = PeerListSnapshot.build(peers.values(), currentVersion, now);
+            snapshot = current;
+            return current;
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    @NotNull
+    public Collection<SwarmPeer> getAllPeers() {
+        return peers.values();
+    }
+
+    public int size() {
+        return peers.size();
+    }
+
+    public boolean isEmpty() {
+        return peers.isEmpty();
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable snapshot of a peer inside a swarm, replaced as a whole on every announce.
+ * {@code compactEndpoint} is the BEP 23 / BEP 7 form of ip and port (6 bytes for IPv4, 18 bytes for IPv6),
+ * encoded once on registration so responses are built by plain byte copies. It must never be modified.
+ */
+public record SwarmPeer(
+        @NotNull InfoHash infoHash, @NotNull String ip, int port, byte @NotNull [] compactEndpoint, @NotNull String peerId,
+        @NotNull String userAgent, @NotNull String passKey, long userId,
+        long uploaded, long downloaded, long left, boolean seeder, boolean partialSeeder,
+        long updateAt, long seedingTime, long uploadSpeed, long downloadSpeed
+) {
+    @NotNull
+    public PeerKey key() {
+        return new PeerKey(ip, port);
+    }
+
+    public boolean isIpv6() {
+        return compactEndpoint.length == 18;
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The source of truth for swarm membership on the announce path.
+ */
+public interface SwarmRegistry {
+    @Nullable
+    SwarmPeer getPeer(@NotNull InfoHash infoHash, @NotNull String ip, int port);
+
+    /**
+     * Pick up to numWant random peers of the swarm for an announce response.
+     *
+     * @param seeder    the requester is a seeder, only leechers are returned
+     * @param requester peer_id of the requester, never returned to itself
+     */
+    @NotNull
+    PeerSelection selectPeers(@NotNull InfoHash infoHash, int numWant, boolean seeder, @Nullable String requester);
+
+    /**
+     * @return the peer counters of the swarm, all zero if nobody is in it
+     */
+    @NotNull
+    SwarmStats getStats(@NotNull InfoHash infoHash);
+
+    void putPeer(@NotNull SwarmPeer peer);
+
+    @Nullable
+    SwarmPeer removePeer(@NotNull InfoHash infoHash, @NotNull String ip, int port);
+
+    /**
+     * Remove all peers which haven't announced since the given time.
+     *
+     * @param updatedBefore epoch millis
+     * @return the removed peers
+     */
+    @NotNull
+    List<SwarmPeer> purgeExpired(long updatedBefore);
+
+    /**
+     * Count the peers of every swarm again and fix the counters which drifted.
+     *
+     * @return the number of swarms corrected
+     */
+    int reconcileStats();
+
+    @NotNull
+    Collection<SwarmPeer> getAllPeers();
+
+    int getSwarmCount();
+
+    int getPeerCount();
+}
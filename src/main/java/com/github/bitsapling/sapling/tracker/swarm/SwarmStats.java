@@ -0,0 +1,8 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+/**
+ * Peer counters of a swarm. A partial seeder (BEP 21 "paused") is counted neither as seeder nor as leecher.
+ */
+public record SwarmStats(int seeders, int leechers, int partialSeeders) {
+    public static final SwarmStats EMPTY = new SwarmStats(0, 0, 0);
+}
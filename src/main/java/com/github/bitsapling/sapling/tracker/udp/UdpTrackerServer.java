@@ -0,0 +1,389 @@
+package com.github.bitsapling.sapling.tracker.udp;
+
+import cn.dev33.satoken.stp.StpUtil;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.config.TrackerConfig;
+import com.github.bitsapling.sapling.exception.APIGenericException;
+import com.github.bitsapling.sapling.exception.AnnounceException;
+import com.github.bitsapling.sapling.exception.InvalidAnnounceException;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.service.AnnouncePerformanceMonitorService;
+import com.github.bitsapling.sapling.service.AnnounceService;
+import com.github.bitsapling.sapling.service.AuthenticationService;
+import com.github.bitsapling.sapling.service.BlacklistClientService;
+import com.github.bitsapling.sapling.service.PasskeyCacheService;
+import com.github.bitsapling.sapling.service.PeerAccessService;
+import com.github.bitsapling.sapling.service.SettingService;
+import com.github.bitsapling.sapling.service.TorrentCacheService;
+import com.github.bitsapling.sapling.service.TorrentStatsService;
+import com.github.bitsapling.sapling.tracker.swarm.PeerSelection;
+import com.github.bitsapling.sapling.tracker.swarm.PeerWindow;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmRegistry;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import com.github.bitsapling.sapling.util.HibernateSessionUtil;
+import com.github.bitsapling.sapling.util.IPUtil;
+import com.github.bitsapling.sapling.util.SafeUUID;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BEP 15 UDP tracker, served next to the HTTP {@code /announce} and {@code /scrape} endpoints.
+ * The passkey travels in the BEP 41 URL data of the announce, e.g. {@code udp://tracker:6969/announce?passkey=...},
+ * and goes through the same authentication, torrent lookup and {@link AnnounceService} accounting as HTTP.
+ * Scrape packets carry no URL data, so they are only answered for addresses which recently announced with a passkey.
+ * Connection ids are a keyed hash of the client address and the current minute, so no handshake state is kept.
+ */
+@Component
+@Slf4j
+public class UdpTrackerServer {
+    private static final long PROTOCOL_ID = 0x41727101980L;
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_ANNOUNCE = 1;
+    private static final int ACTION_SCRAPE = 2;
+    private static final int ACTION_ERROR = 3;
+    private static final int ANNOUNCE_LENGTH = 98;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_NOP = 1;
+    private static final int OPTION_URL_DATA = 2;
+    // 74 info_hashes fill the usual 1500 bytes MTU, as suggested by BEP 15
+    private static final int MAX_SCRAPE_HASHES = 74;
+    private static final long CONNECTION_ID_PERIOD = TimeUnit.MINUTES.toMillis(1);
+    // UDP announces carry no User-Agent
+    private static final String USER_AGENT = "";
+    private final HashFunction connectionIdHash;
+    private final Cache<InetAddress, Long> scrapeUsers = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .maximumSize(200000)
+            .build();
+    private volatile DatagramChannel channel;
+    private final List<Thread> workers = new ArrayList<>();
+    @Autowired
+    private TrackerProperties trackerProperties;
+    @Autowired
+    private AuthenticationService authenticationService;
+    @Autowired
+    private TorrentCacheService torrentCacheService;
+    @Autowired
+    private AnnounceService announceService;
+    @Autowired
+    private SwarmRegistry swarmRegistry;
+    @Autowired
+    private TorrentStatsService torrentStatsService;
+    @Autowired
+    private SettingService settingService;
+    @Autowired
+    private BlacklistClientService blacklistClientService;
+    @Autowired
+    private PeerAccessService peerAccessService;
+    @Autowired
+    private AnnouncePerformanceMonitorService performanceMonitorService;
+    @Autowired
+    private HibernateSessionUtil sessionUtil;
+
+    public UdpTrackerServer() {
+        SecureRandom random = new SecureRandom();
+        this.connectionIdHash = Hashing.sipHash24(random.nextLong(), random.nextLong());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() throws IOException {
+        TrackerProperties.Udp config = trackerProperties.getUdp();
+        if (!config.isEnabled() || channel != null) return;
+        InetSocketAddress address = new InetSocketAddress(config.getHost(), config.getPort());
+        DatagramChannel opened = address.getAddress() instanceof Inet6Address
+                ? DatagramChannel.open(StandardProtocolFamily.INET6) : DatagramChannel.open(StandardProtocolFamily.INET);
+        opened.bind(address);
+        channel = opened;
+        for (int i = 0; i < Math.max(1, config.getWorkers()); i++) {
+            Thread thread = new Thread(() -> receiveLoop(opened), "UDP Tracker #" + workers.size());
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+        log.info("UDP tracker listening on {} with {} workers", address, workers.size());
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() throws IOException, InterruptedException {
+        if (channel == null) return;
+        channel.close();
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        workers.clear();
+        channel = null;
+    }
+
+    private void receiveLoop(@NotNull DatagramChannel channel) {
+        ByteBuffer in = ByteBuffer.allocateDirect(2048);
+        ByteBuffer out = ByteBuffer.allocateDirect(8192);
+        while (channel.isOpen()) {
+            try {
+                in.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(in);
+                if (from == null) continue;
+                in.flip();
+                out.clear();
+                if (handle(in, out, from)) {
+                    out.flip();
+                    channel.send(out, from);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (Exception e) {
+                log.error("Unexpected error in UDP tracker loop", e);
+            }
+        }
+    }
+
+    /**
+     * @return true if out holds a response to send back
+     */
+    private boolean handle(@NotNull ByteBuffer in, @NotNull ByteBuffer out, @NotNull InetSocketAddress from) {
+        // Too short to even carry a transaction id, can't be answered
+        if (in.remaining() < 16) return false;
+        long connectionId = in.getLong();
+        int action = in.getInt();
+        int transactionId = in.getInt();
+        if (action == ACTION_CONNECT) {
+            if (connectionId != PROTOCOL_ID) return false;
+            out.putInt(ACTION_CONNECT).putInt(transactionId).putLong(connectionId(from, System.currentTimeMillis()));
+            return true;
+        }
+        if (!isValidConnectionId(connectionId, from)) {
+            writeError(out, transactionId, "Connection id expired");
+            return true;
+        }
+        boolean participate = sessionUtil.bindToThread();
+        try {
+            switch (action) {
+                case ACTION_ANNOUNCE -> announce(in, out, from, transactionId);
+                case ACTION_SCRAPE -> scrape(in, out, from, transactionId);
+                default -> throw new InvalidAnnounceException("Unknown action: " + action);
+            }
+        } catch (AnnounceException e) {
+            out.clear();
+            writeError(out, transactionId, e.getMessage());
+        } finally {
+            sessionUtil.closeFromThread(participate);
+        }
+        return true;
+    }
+
+    private void announce(@NotNull ByteBuffer in, @NotNull ByteBuffer out, @NotNull InetSocketAddress from,
+                          int transactionId) throws AnnounceException {
+        long ns = System.nanoTime();
+        if (in.remaining() < ANNOUNCE_LENGTH - 16) {
+            throw new InvalidAnnounceException("Malformed announce packet");
+        }
+        byte[] hash = new byte[InfoHash.LENGTH];
+        in.get(hash);
+        InfoHash infoHash = InfoHash.of(hash);
+        byte[] peerIdBytes = new byte[20];
+        in.get(peerIdBytes);
+        String peerId = new String(peerIdBytes, StandardCharsets.ISO_8859_1);
+        long downloaded = in.getLong();
+        long left = in.getLong();
+        long uploaded = in.getLong();
+        AnnounceEventType event = switch (in.getInt()) {
+            case 1 -> AnnounceEventType.COMPLETED;
+            case 2 -> AnnounceEventType.STARTED;
+            case 3 -> AnnounceEventType.STOPPED;
+            default -> AnnounceEventType.UNKNOWN;
+        };
+        // The ip field is ignored, a UDP source address is all we can check
+        in.getInt();
+        in.getInt(); // key
+        int requestedNumWant = in.getInt();
+        int port = Short.toUnsignedInt(in.getShort());
+        String passkey = readPasskey(in);
+        if (passkey == null || !SafeUUID.isUUID(passkey)) {
+            throw new InvalidAnnounceException("Invalid passkey.");
+        }
+        blacklistClientService.checkClient(USER_AGENT, peerId);
+        String ip = from.getAddress().getHostAddress();
+        if (!isReachable(ip)) {
+            throw new InvalidAnnounceException("Invalid IP address");
+        }
+        if (!peerAccessService.isAddressAllowed(from.getAddress())) {
+            throw new InvalidAnnounceException("IP address not allowed on this tracker");
+        }
+        if (!peerAccessService.isPortAllowed(port)) {
+            throw new InvalidAnnounceException("Port " + port + " is not allowed on this tracker");
+        }
+        int numWant = requestedNumWant < 0 ? 150 : Math.min(requestedNumWant, 300);
+        PasskeyCacheService.PasskeyIdentity user = authenticate(passkey, ip);
+        if (!StpUtil.hasPermission(user.userId(), "torrent:announce")) {
+            throw new InvalidAnnounceException("Permission Denied");
+        }
+        TorrentCacheService.TorrentSummary torrent = torrentCacheService.get(infoHash);
+        if (torrent == null) {
+            throw new InvalidAnnounceException("Torrent not registered on this tracker");
+        }
+        scrapeUsers.put(from.getAddress(), user.userId());
+        announceService.schedule(new AnnounceService.AnnounceTask(ip, port, infoHash, peerId, uploaded, downloaded, left,
+                event, numWant, user.userId(), user.groupId(), true, true, false, 0, USER_AGENT, passkey, torrent.id()));
+        PeerSelection selection = swarmRegistry.selectPeers(infoHash, numWant, left == 0, peerId);
+        TorrentStatsService.PeerStatus peerStatus = torrentStatsService.getPeerStatus(torrent.id(), infoHash);
+        out.putInt(ACTION_ANNOUNCE).putInt(transactionId).putInt(randomInterval())
+                .putInt(peerStatus.incomplete()).putInt(peerStatus.complete());
+        // Peers of the address family the request came in with, 6 or 18 bytes each
+        if (from.getAddress() instanceof Inet6Address) {
+            writePeers(out, selection.snapshot().getCompactPeers6(), selection.peers6(), 18);
+        } else {
+            writePeers(out, selection.snapshot().getCompactPeers(), selection.peers(), 6);
+        }
+        performanceMonitorService.recordStats(System.nanoTime() - ns);
+    }
+
+    private void scrape(@NotNull ByteBuffer in, @NotNull ByteBuffer out, @NotNull InetSocketAddress from,
+                        int transactionId) throws AnnounceException {
+        Long userId = scrapeUsers.getIfPresent(from.getAddress());
+        if (userId == null) {
+            throw new InvalidAnnounceException("Unauthorized, announce with your passkey first");
+        }
+        if (!StpUtil.hasPermission(userId, "torrent:scrape")) {
+            throw new InvalidAnnounceException("Permission Denied");
+        }
+        long ns = System.nanoTime();
+        int count = Math.min(in.remaining() / InfoHash.LENGTH,
+                Math.min(MAX_SCRAPE_HASHES, trackerProperties.getScrape().getMaxInfoHashes()));
+        if (count == 0) {
+            throw new InvalidAnnounceException("Missing param: info_hash");
+        }
+        List<InfoHash> infoHashes = new ArrayList<>(count);
+        byte[] hash = new byte[InfoHash.LENGTH];
+        for (int i = 0; i < count; i++) {
+            in.get(hash);
+            infoHashes.add(InfoHash.of(hash));
+        }
+        Map<InfoHash, TorrentCacheService.TorrentSummary> torrents = torrentCacheService.getAll(infoHashes);
+        Map<Long, TorrentStatsService.PeerStatus> statuses = torrentStatsService.getPeerStatuses(torrents.values());
+        out.putInt(ACTION_SCRAPE).putInt(transactionId);
+        for (InfoHash infoHash : infoHashes) {
+            // Unknown torrents are answered with zeros, the response is matched by position
+            TorrentCacheService.TorrentSummary torrent = torrents.get(infoHash);
+            if (torrent == null) {
+                out.putInt(0).putInt(0).putInt(0);
+                continue;
+            }
+            TorrentStatsService.PeerStatus peerStatus = statuses.get(torrent.id());
+            out.putInt(peerStatus.complete()).putInt(peerStatus.downloaded()).putInt(peerStatus.incomplete());
+        }
+        performanceMonitorService.recordScrape(count, System.nanoTime() - ns);
+    }
+
+    @NotNull
+    private PasskeyCacheService.PasskeyIdentity authenticate(@NotNull String passkey, @NotNull String ip) throws InvalidAnnounceException {
+        PasskeyCacheService.PasskeyIdentity user;
+        try {
+            user = authenticationService.authenticatePasskey(passkey, ip, USER_AGENT);
+        } catch (APIGenericException e) {
+            throw new InvalidAnnounceException("APIError: " + e.getErrorText() + " -> " + e.getMessage());
+        }
+        if (user == null) {
+            throw new InvalidAnnounceException("Unauthorized");
+        }
+        return user;
+    }
+
+    /**
+     * Read the BEP 41 options after the announce and look for the passkey in the concatenated URL data,
+     * either as {@code ?passkey=} parameter or as a path segment.
+     */
+    @Nullable
+    private static String readPasskey(@NotNull ByteBuffer in) {
+        StringBuilder url = new StringBuilder();
+        while (in.hasRemaining()) {
+            int type = in.get() & 0xFF;
+            if (type == OPTION_END) break;
+            if (type == OPTION_NOP) continue;
+            if (!in.hasRemaining()) break;
+            int length = in.get() & 0xFF;
+            if (length > in.remaining()) break;
+            if (type == OPTION_URL_DATA) {
+                byte[] data = new byte[length];
+                in.get(data);
+                url.append(new String(data, StandardCharsets.ISO_8859_1));
+            } else {
+                in.position(in.position() + length);
+            }
+        }
+        String path = url.toString();
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            for (String param : path.substring(query + 1).split("&")) {
+                if (param.startsWith("passkey=")) {
+                    return URLDecoder.decode(param.substring("passkey=".length()), StandardCharsets.ISO_8859_1);
+                }
+            }
+            path = path.substring(0, query);
+        }
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty() && SafeUUID.isUUID(segment)) return segment;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if other peers can reach the ip, tests on the loopback interface relax it
+     */
+    boolean isReachable(@NotNull String ip) {
+        return IPUtil.isPublicAddress(ip);
+    }
+
+    private static void writePeers(@NotNull ByteBuffer out, byte @NotNull [] block, @NotNull PeerWindow window, int endpointLength) {
+        window.forEachRange((from, to) -> out.put(block, from * endpointLength, (to - from) * endpointLength));
+    }
+
+    private static void writeError(@NotNull ByteBuffer out, int transactionId, @Nullable String message) {
+        byte[] text = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        out.putInt(ACTION_ERROR).putInt(transactionId).put(text, 0, Math.min(text.length, out.remaining()));
+    }
+
+    private long connectionId(@NotNull InetSocketAddress from, long now) {
+        return connectionIdHash.newHasher()
+                .putBytes(from.getAddress().getAddress())
+                .putInt(from.getPort())
+                .putLong(now / CONNECTION_ID_PERIOD)
+                .hash().asLong();
+    }
+
+    private boolean isValidConnectionId(long connectionId, @NotNull InetSocketAddress from) {
+        // Ids are accepted for up to two minutes, as BEP 15 asks
+        long now = System.currentTimeMillis();
+        return connectionId == connectionId(from, now) || connectionId == connectionId(from, now - CONNECTION_ID_PERIOD);
+    }
+
+    private int randomInterval() {
+        TrackerConfig trackerConfig = settingService.get(TrackerConfig.getConfigKey(), TrackerConfig.class);
+        return ThreadLocalRandom.current().nextInt(trackerConfig.getTorrentIntervalMin(), trackerConfig.getTorrentIntervalMax());
+    }
+}
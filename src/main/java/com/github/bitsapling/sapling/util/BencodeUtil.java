@@ -1,14 +1,12 @@
 package com.github.bitsapling.sapling.util;
 
 import com.dampcake.bencode.Bencode;
-import com.github.bitsapling.sapling.entity.Peer;
-import com.github.bitsapling.sapling.exception.RetryableAnnounceException;
+import com.google.common.net.InetAddresses;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Collection;
 
 public class BencodeUtil {
     private static final Bencode BITTORRENT_STANDARD = new Bencode(StandardCharsets.ISO_8859_1);
@@ -26,21 +24,22 @@ public class BencodeUtil {
         return UTF8_STANDARD;
     }
 
-    public static String compactPeers(Collection<Peer> peers, boolean isV6) throws RetryableAnnounceException {
-        ByteBuffer buffer = ByteBuffer.allocate((isV6 ? 18 : 6) * peers.size());
-        for (Peer peer : peers) {
-            String ip = peer.getIp();
-            try {
-                for (byte address : InetAddress.getByName(ip).getAddress()) {
-                    buffer.put(address);
-                }
-                int in = peer.getPort();
-                buffer.put((byte) ((in >>> 8) & 0xFF));
-                buffer.put((byte) (in & 0xFF));
-            } catch (UnknownHostException e) {
-                throw new RetryableAnnounceException("incorrect ip format encountered when compact peer ip", 0);
-            }
+    /**
+     * Encode an ip literal and port into compact form, 6 bytes for IPv4 and 18 bytes for IPv6.
+     * Only ip literals are accepted, this never triggers a DNS lookup.
+     *
+     * @return compact endpoint, or null if ip isn't an ip literal
+     */
+    public static byte @Nullable [] compactEndpoint(@NotNull String ip, int port) {
+        if (!InetAddresses.isInetAddress(ip)) {
+            return null;
         }
-        return convertToString(buffer.array());
+        InetAddress address = InetAddresses.forString(ip);
+        byte[] addressBytes = address.getAddress();
+        byte[] endpoint = new byte[addressBytes.length + 2];
+        System.arraycopy(addressBytes, 0, endpoint, 0, addressBytes.length);
+        endpoint[addressBytes.length] = (byte) ((port >>> 8) & 0xFF);
+        endpoint[addressBytes.length + 1] = (byte) (port & 0xFF);
+        return endpoint;
     }
 }
@@ -0,0 +1,177 @@
+package com.github.bitsapling.sapling.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming bencode writer backed by a growable byte array.
+ * Dictionary keys are written in call order, callers are responsible to emit them sorted by raw bytes.
+ * Instances are not thread-safe, use {@link #local()} to borrow a per-thread one.
+ */
+public final class BencodeWriter {
+    private static final int INITIAL_CAPACITY = 1024;
+    // Don't let a single huge response pin a big buffer to the thread forever
+    private static final int RETAIN_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<BencodeWriter> LOCAL = ThreadLocal.withInitial(BencodeWriter::new);
+    private final byte[] digits = new byte[20];
+    private byte[] buffer;
+    private int size;
+
+    public BencodeWriter() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public BencodeWriter(int capacity) {
+        this.buffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * @return the reset writer of the current thread
+     */
+    @NotNull
+    public static BencodeWriter local() {
+        BencodeWriter writer = LOCAL.get();
+        writer.reset();
+        return writer;
+    }
+
+    @NotNull
+    public BencodeWriter reset() {
+        if (buffer.length > RETAIN_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+        size = 0;
+        return this;
+    }
+
+    @NotNull
+    public BencodeWriter beginDict() {
+        return writeRaw((byte) 'd');
+    }
+
+    @NotNull
+    public BencodeWriter beginList() {
+        return writeRaw((byte) 'l');
+    }
+
+    @NotNull
+    public BencodeWriter end() {
+        return writeRaw((byte) 'e');
+    }
+
+    /**
+     * Write a dictionary key, keys are always ASCII in tracker responses.
+     */
+    @NotNull
+    public BencodeWriter key(@NotNull String key) {
+        return writeString(key);
+    }
+
+    @NotNull
+    public BencodeWriter writeInt(long value) {
+        writeRaw((byte) 'i');
+        writeDecimal(value);
+        return writeRaw((byte) 'e');
+    }
+
+    /**
+     * Write a string as ISO-8859-1 bytes, the same charset used by {@link BencodeUtil#bittorrent()}.
+     */
+    @NotNull
+    public BencodeWriter writeString(@NotNull String value) {
+        int length = value.length();
+        writeLength(length);
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    @NotNull
+    public BencodeWriter writeBytes(byte @NotNull [] value) {
+        return writeBytes(value, 0, value.length);
+    }
+
+    @NotNull
+    public BencodeWriter writeBytes(byte @NotNull [] value, int offset, int length) {
+        writeLength(length);
+        return writeRawBytes(value, offset, length);
+    }
+
+    /**
+     * Write only the length prefix of a byte string, the content must follow with {@link #writeRawBytes}.
+     */
+    @NotNull
+    public BencodeWriter writeLength(int length) {
+        writeDecimal(length);
+        return writeRaw((byte) ':');
+    }
+
+    @NotNull
+    public BencodeWriter writeRawBytes(byte @NotNull [] value, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(value, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the backing array, only the first {@link #size()} bytes are valid
+     */
+    public byte @NotNull [] array() {
+        return buffer;
+    }
+
+    public byte @NotNull [] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void writeTo(@NotNull OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, 0, size);
+    }
+
+    public void writeTo(@NotNull ByteBuffer byteBuffer) {
+        byteBuffer.put(buffer, 0, size);
+    }
+
+    @NotNull
+    private BencodeWriter writeRaw(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+        return this;
+    }
+
+    private void writeDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            // Can't be negated, never used by tracker responses anyway
+            writeRawBytes(Long.toString(value).getBytes(), 0, 20);
+            return;
+        }
+        if (value < 0) {
+            writeRaw((byte) '-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        writeRawBytes(digits, pos, digits.length - pos);
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = size + extra;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length << 1));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.bitsapling.sapling.util;
+
+import com.google.common.net.InetAddresses;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of CIDR ranges, compiled into a binary prefix trie per address family.
+ * A lookup walks at most one node per address bit, whatever the number of ranges.
+ * Only ip literals are accepted, host names are never resolved.
+ */
+@Slf4j
+public final class CidrMatcher {
+    private static final CidrMatcher EMPTY = new CidrMatcher(new Trie(), new Trie());
+    private final Trie ipv4;
+    private final Trie ipv6;
+
+    private CidrMatcher(@NotNull Trie ipv4, @NotNull Trie ipv6) {
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+    }
+
+    /**
+     * @param ranges entries like {@code 10.0.0.0/8}, {@code 2001:db8::/32} or a single address, invalid ones are skipped
+     */
+    @NotNull
+    public static CidrMatcher compile(@Nullable Collection<String> ranges) {
+        if (ranges == null || ranges.isEmpty()) return EMPTY;
+        Trie ipv4 = new Trie();
+        Trie ipv6 = new Trie();
+        for (String range : ranges) {
+            if (range == null) continue;
+            String trimmed = range.trim();
+            int slash = trimmed.indexOf('/');
+            String addressPart = slash < 0 ? trimmed : trimmed.substring(0, slash);
+            if (!InetAddresses.isInetAddress(addressPart)) {
+                log.warn("Ignored invalid CIDR range: {}", range);
+                continue;
+            }
+            byte[] address = InetAddresses.forString(addressPart).getAddress();
+            int prefixLength = address.length * 8;
+            if (slash >= 0) {
+                try {
+                    prefixLength = Integer.parseInt(trimmed.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    prefixLength = -1;
+                }
+                if (prefixLength < 0 || prefixLength > address.length * 8) {
+                    log.warn("Ignored invalid CIDR range: {}", range);
+                    continue;
+                }
+            }
+            (address.length == 4 ? ipv4 : ipv6).insert(address, prefixLength);
+        }
+        ipv4.trim();
+        ipv6.trim();
+        return new CidrMatcher(ipv4, ipv6);
+    }
+
+    /**
+     * @return false as well if ip isn't an ip literal
+     */
+    public boolean matches(@NotNull String ip) {
+        if (!InetAddresses.isInetAddress(ip)) return false;
+        return matches(InetAddresses.forString(ip));
+    }
+
+    public boolean matches(@NotNull InetAddress address) {
+        return matches(address.getAddress());
+    }
+
+    /**
+     * @param address raw address, 4 or 16 bytes
+     */
+    public boolean matches(byte @NotNull [] address) {
+        return (address.length == 4 ? ipv4 : ipv6).matches(address);
+    }
+
+    public boolean isEmpty() {
+        return ipv4.isEmpty() && ipv6.isEmpty();
+    }
+
+    /**
+     * Nodes are held in parallel arrays, node 0 being the root. A child index of 0 means no child.
+     */
+    private static final class Trie {
+        private int[] zero = new int[16];
+        private int[] one = new int[16];
+        // Whether a range ends on the node, every address below it matches
+        private boolean[] terminal = new boolean[16];
+        private int size = 1;
+
+        private void insert(byte @NotNull [] address, int prefixLength) {
+            int node = 0;
+            for (int bit = 0; bit < prefixLength; bit++) {
+                // A shorter range already covers this one
+                if (terminal[node]) return;
+                boolean set = bitAt(address, bit);
+                int child = set ? one[node] : zero[node];
+                if (child == 0) {
+                    // Allocate first, growing replaces the arrays
+                    child = newNode();
+                    (set ? one : zero)[node] = child;
+                }
+                node = child;
+            }
+            terminal[node] = true;
+        }
+
+        private boolean matches(byte @NotNull [] address) {
+            int node = 0;
+            int bits = address.length * 8;
+            for (int bit = 0; bit < bits; bit++) {
+                if (terminal[node]) return true;
+                node = bitAt(address, bit) ? one[node] : zero[node];
+                if (node == 0) return false;
+            }
+            return terminal[node];
+        }
+
+        private boolean isEmpty() {
+            return size == 1 && !terminal[0];
+        }
+
+        private int newNode() {
+            if (size == terminal.length) {
+                int capacity = size * 2;
+                zero = Arrays.copyOf(zero, capacity);
+                one = Arrays.copyOf(one, capacity);
+                terminal = Arrays.copyOf(terminal, capacity);
+            }
+            return size++;
+        }
+
+        private void trim() {
+            zero = Arrays.copyOf(zero, size);
+            one = Arrays.copyOf(one, size);
+            terminal = Arrays.copyOf(terminal, size);
+        }
+
+        private static boolean bitAt(byte @NotNull [] address, int bit) {
+            return (address[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+        }
+    }
+}
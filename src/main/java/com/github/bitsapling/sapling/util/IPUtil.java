@@ -1,18 +1,73 @@
 package com.github.bitsapling.sapling.util;
 
+import com.google.common.net.InetAddresses;
 import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.util.List;
 
 @Slf4j
 public class IPUtil {
     @NotNull
     public static String getRequestIp(@NotNull HttpServletRequest request) {
-        String realIp = request.getHeader("X-REAL-IP");
+        return getRequestIp(request.getHeader("X-REAL-IP"), request.getHeader("X-FORWARDED-FOR"), request.getRemoteAddr());
+    }
+
+    @NotNull
+    public static String getRequestIp(@Nullable String realIp, @Nullable String forwardedFor, @NotNull String remoteAddr) {
         if (realIp == null)
-            realIp = request.getHeader("X-FORWARDED-FOR");
+            realIp = forwardedFor;
         if (realIp == null)
-            realIp = request.getRemoteAddr();
+            realIp = remoteAddr;
         return realIp;
     }
+
+    /**
+     * Forwarding headers are only believed when the socket peer is a trusted proxy, X-Forwarded-For is then walked
+     * from the right, the hops appended by trusted proxies skipped, as everything left of them is up to the client.
+     *
+     * @param remoteAddr     the socket peer address
+     * @param trustedProxies the proxies whose forwarding headers are honored
+     * @return the client address
+     */
+    @NotNull
+    public static String getClientIp(@NotNull String remoteAddr, @Nullable String realIp, @Nullable String forwardedFor,
+                                     @NotNull CidrMatcher trustedProxies) {
+        if (!trustedProxies.matches(remoteAddr)) {
+            return remoteAddr;
+        }
+        if (forwardedFor != null) {
+            String client = remoteAddr;
+            List<String> hops = List.of(forwardedFor.split(","));
+            for (int i = hops.size() - 1; i >= 0; i--) {
+                String hop = hops.get(i).trim();
+                if (!InetAddresses.isInetAddress(hop)) break;
+                client = hop;
+                if (!trustedProxies.matches(hop)) break;
+            }
+            return client;
+        }
+        if (realIp != null && InetAddresses.isInetAddress(realIp.trim())) {
+            return realIp.trim();
+        }
+        return remoteAddr;
+    }
+
+    /**
+     * @return true if ip is an ip literal which other peers may reach
+     */
+    public static boolean isPublicAddress(@NotNull String ip) {
+        // Only accept ip literals, peers are registered with their pre-encoded compact endpoint
+        if (!InetAddresses.isInetAddress(ip)) {
+            return false;
+        }
+        InetAddress address = InetAddresses.forString(ip);
+        return !address.isAnyLocalAddress()
+                && !address.isLinkLocalAddress()
+                && !address.isLoopbackAddress()
+                && !address.isSiteLocalAddress();
+    }
 }
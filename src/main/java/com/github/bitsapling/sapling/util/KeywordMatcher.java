@@ -0,0 +1,88 @@
+package com.github.bitsapling.sapling.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Immutable case-insensitive multi-keyword matcher, an Aho-Corasick automaton built once.
+ * Tells whether a text contains any of the keywords in a single pass over the text, whatever the number of keywords.
+ */
+public final class KeywordMatcher {
+    private final Node root;
+    private final boolean empty;
+
+    private KeywordMatcher(@NotNull Node root, boolean empty) {
+        this.root = root;
+        this.empty = empty;
+    }
+
+    /**
+     * @param keywords blank ones are skipped
+     */
+    @NotNull
+    public static KeywordMatcher compile(@Nullable Collection<String> keywords) {
+        Node root = new Node();
+        boolean empty = true;
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                if (keyword == null || keyword.isBlank()) continue;
+                Node node = root;
+                for (char c : keyword.toCharArray()) {
+                    node = node.next.computeIfAbsent(Character.toLowerCase(c), key -> new Node());
+                }
+                node.output = true;
+                empty = false;
+            }
+        }
+        // Breadth-first, so the failure link of a node's parent is always known
+        Queue<Node> queue = new ArrayDeque<>();
+        for (Node child : root.next.values()) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (Map.Entry<Character, Node> entry : node.next.entrySet()) {
+                Node child = entry.getValue();
+                Node fail = node.fail;
+                while (fail != root && !fail.next.containsKey(entry.getKey())) {
+                    fail = fail.fail;
+                }
+                Node target = fail.next.get(entry.getKey());
+                child.fail = target != null && target != child ? target : root;
+                // A keyword ending on the failure path ends here as well
+                child.output |= child.fail.output;
+                queue.add(child);
+            }
+        }
+        return new KeywordMatcher(root, empty);
+    }
+
+    public boolean matches(@Nullable String text) {
+        if (empty || text == null) return false;
+        Node node = root;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            Node next = node.next.get(c);
+            while (next == null && node != root) {
+                node = node.fail;
+                next = node.next.get(c);
+            }
+            node = next == null ? root : next;
+            if (node.output) return true;
+        }
+        return false;
+    }
+
+    private static final class Node {
+        private final Map<Character, Node> next = new HashMap<>();
+        private Node fail;
+        private boolean output;
+    }
+}
@@ -3,22 +3,34 @@ package com.github.bitsapling.sapling.util;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class RandomUtil {
-    private static final Random rand = new Random();
-
+    /**
+     * Pick want distinct random elements of the list, in random order.
+     * Uses Floyd's sampling, O(want) for random access lists; the whole list is returned (copied) if it isn't larger than want.
+     */
     @NotNull
-    public static <T> List<T> getRandomElements(List<T> list, int want) {
-        List<T> listCopy = new ArrayList<>(list);
-        List<T> result = new ArrayList<>(list);
-        if (list.size() <= want) return listCopy;
-        for (int i = 0; i < want; i++) {
-            T obj = listCopy.get(rand.nextInt(listCopy.size()));
-            result.add(obj);
-            listCopy.remove(obj);
+    public static <T> List<T> getRandomElements(@NotNull List<T> list, int want) {
+        int size = list.size();
+        if (size <= want) return new ArrayList<>(list);
+        if (want <= 0) return new ArrayList<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Set<Integer> picked = new HashSet<>(want * 2);
+        List<T> result = new ArrayList<>(want);
+        for (int i = size - want; i < size; i++) {
+            int index = random.nextInt(i + 1);
+            if (!picked.add(index)) {
+                picked.add(i);
+                index = i;
+            }
+            result.add(list.get(index));
         }
+        Collections.shuffle(result, random);
         return result;
     }
 }
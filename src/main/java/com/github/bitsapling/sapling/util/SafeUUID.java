@@ -41,15 +41,19 @@ public class SafeUUID {
     }
 
     public static boolean isUUID(@NotNull String str) {
-        try {
-            UUID.fromString(str);
-            return true;
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-            System.err.println("Failed to check " + str);
+        // 8-4-4-4-12 hex digits, checked by hand since it runs on every announce
+        if (str.length() != 36) {
             return false;
         }
-        // return str.matches("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+        for (int i = 0; i < 36; i++) {
+            char c = str.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public static boolean isDashesStrippedUUID(@NotNull String str) {
@@ -8,6 +8,7 @@ import com.github.bitsapling.sapling.exception.InvalidTorrentFileException;
 import com.github.bitsapling.sapling.exception.InvalidTorrentVerifyException;
 import com.github.bitsapling.sapling.exception.InvalidTorrentVersionException;
 import com.github.bitsapling.sapling.exception.TorrentException;
+import com.github.bitsapling.sapling.objects.InfoHash;
 import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
@@ -21,7 +22,6 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.StringJoiner;
 
@@ -176,9 +176,9 @@ public class TorrentParser {
     }
 
     @NotNull
-    public String getInfoHash() {
+    public InfoHash getInfoHash() {
         //noinspection deprecation
-        return Hashing.sha1().hashBytes(BencodeUtil.bittorrent().encode((Map<?, ?>) this.dict.get("info"))).toString().toLowerCase(Locale.ROOT);
+        return InfoHash.of(Hashing.sha1().hashBytes(BencodeUtil.bittorrent().encode((Map<?, ?>) this.dict.get("info"))).asBytes());
     }
 
     public byte @NotNull [] rewriteForTracker(@Nullable String siteName, @Nullable String publisher, @Nullable String publisherUrl) {
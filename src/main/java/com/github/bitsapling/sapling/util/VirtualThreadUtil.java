@@ -0,0 +1,78 @@
+package com.github.bitsapling.sapling.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads (JDK 21+) looked up reflectively, the project is still compiled for JDK 17.
+ * On an older runtime every method here falls back to platform threads.
+ */
+@Slf4j
+public class VirtualThreadUtil {
+    private static final Method OF_VIRTUAL = lookupOfVirtual();
+
+    @Nullable
+    private static Method lookupOfVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            // Preview on JDK 19/20 without --enable-preview throws here
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param prefix thread names are the prefix followed by a counter
+     * @return a factory of virtual threads, null if the runtime has none
+     */
+    @Nullable
+    public static ThreadFactory factory(@NotNull String prefix) {
+        if (OF_VIRTUAL == null) return null;
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Unable to create a virtual thread factory", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return an executor starting a new virtual thread per task, null if the runtime has none
+     */
+    @Nullable
+    public static Executor perTaskExecutor(@NotNull String prefix) {
+        ThreadFactory factory = factory(prefix);
+        if (factory == null) return null;
+        return task -> factory.newThread(task).start();
+    }
+
+    /**
+     * Create an unstarted thread, virtual if asked and supported, a platform daemon thread otherwise.
+     */
+    @NotNull
+    public static Thread newThread(boolean virtual, @NotNull String name, @NotNull Runnable task) {
+        ThreadFactory factory = virtual ? factory(name) : null;
+        if (factory != null) {
+            Thread thread = factory.newThread(task);
+            thread.setName(name);
+            return thread;
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
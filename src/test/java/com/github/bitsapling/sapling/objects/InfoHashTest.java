@@ -0,0 +1,96 @@
+package com.github.bitsapling.sapling.objects;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InfoHashTest {
+    private static final String HEX = "00112233445566778899aabbccddeeff01234567";
+
+    @Test
+    void roundTripsHexAndBytes() {
+        InfoHash infoHash = InfoHash.fromHex(HEX);
+        assertEquals(HEX, infoHash.toHex());
+        assertEquals(HEX, infoHash.toString());
+        byte[] bytes = infoHash.toByteArray();
+        assertEquals(0x00, bytes[0] & 0xFF);
+        assertEquals(0xFF, bytes[15] & 0xFF);
+        assertEquals(0x67, bytes[19] & 0xFF);
+        assertEquals(infoHash, InfoHash.of(bytes));
+        assertEquals(infoHash.hashCode(), InfoHash.of(bytes).hashCode());
+    }
+
+    @Test
+    void parsesHexInAnyCase() {
+        assertEquals(InfoHash.fromHex(HEX), InfoHash.fromHex(HEX.toUpperCase()));
+        assertEquals(HEX, InfoHash.fromHex(HEX.toUpperCase()).toHex());
+    }
+
+    @Test
+    void rejectsInvalidHex() {
+        assertNull(InfoHash.tryParse(null));
+        assertNull(InfoHash.tryParse(HEX.substring(1)));
+        assertNull(InfoHash.tryParse(HEX + "0"));
+        assertNull(InfoHash.tryParse("xyz" + HEX.substring(3)));
+        assertNull(InfoHash.tryParse(HEX.substring(0, 39) + "g"));
+        assertThrows(IllegalArgumentException.class, () -> InfoHash.fromHex("not a hash"));
+    }
+
+    @Test
+    void readsAtOffset() {
+        byte[] buffer = new byte[30];
+        byte[] bytes = InfoHash.fromHex(HEX).toByteArray();
+        System.arraycopy(bytes, 0, buffer, 7, bytes.length);
+        assertEquals(InfoHash.fromHex(HEX), InfoHash.of(buffer, 7));
+        byte[] written = new byte[30];
+        InfoHash.fromHex(HEX).writeTo(written, 7);
+        assertArrayEquals(buffer, written);
+        assertThrows(IllegalArgumentException.class, () -> InfoHash.of(buffer, 11));
+        assertThrows(IllegalArgumentException.class, () -> InfoHash.of(buffer, -1));
+        assertThrows(IllegalArgumentException.class, () -> InfoHash.of(new byte[19]));
+    }
+
+    @Test
+    void ordersLikeUnsignedBytes() {
+        // Differences in each of the three fields, with the sign bit set on one side
+        List<String> sorted = List.of(
+                "0000000000000000000000000000000000000000",
+                "0000000000000000000000000000000000000001",
+                "00000000000000000000000000000000ffffffff",
+                "0000000000000000000000000000000100000000",
+                "00000000000000007fffffffffffffffffffffff",
+                "0000000000000000800000000000000000000000",
+                "7fffffffffffffffffffffffffffffffffffffff",
+                "8000000000000000000000000000000000000000",
+                "ffffffffffffffffffffffffffffffffffffffff");
+        List<InfoHash> hashes = new ArrayList<>();
+        for (int i = sorted.size() - 1; i >= 0; i--) {
+            hashes.add(InfoHash.fromHex(sorted.get(i)));
+        }
+        hashes.sort(null);
+        assertEquals(sorted, hashes.stream().map(InfoHash::toHex).toList());
+        for (int i = 1; i < hashes.size(); i++) {
+            byte[] previous = hashes.get(i - 1).toByteArray();
+            byte[] current = hashes.get(i).toByteArray();
+            assertTrue(Arrays.compareUnsigned(previous, current) < 0);
+        }
+    }
+
+    @Test
+    void comparesEveryField() {
+        InfoHash base = InfoHash.fromHex(HEX);
+        assertEquals(0, base.compareTo(InfoHash.fromHex(HEX)));
+        assertNotEquals(base, InfoHash.fromHex("10112233445566778899aabbccddeeff01234567"));
+        assertNotEquals(base, InfoHash.fromHex("00112233445566778899aabbccddeeff01234568"));
+        assertNotEquals(base, InfoHash.fromHex("00112233445566779899aabbccddeeff01234567"));
+    }
+}
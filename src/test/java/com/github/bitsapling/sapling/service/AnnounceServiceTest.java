@@ -0,0 +1,137 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.tracker.swarm.InMemorySwarmRegistry;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmPeer;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import com.github.bitsapling.sapling.util.BencodeUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AnnounceServiceTest {
+    private static final String PASSKEY = "9b2f1a3c-5d4e-4f60-8a71-b2c3d4e5f607";
+    private static final String PEER_ID = "-qB4650-123456789012";
+    private static final InfoHash INFO_HASH = InfoHash.fromHex("00112233445566778899aabbccddeeff01234567");
+    private static final String IPV4 = "198.51.100.7";
+    private static final String IPV6 = "2001:db8::7";
+    private final Map<AnnounceService.TrafficKey, AnnounceService.Traffic> ledger = new HashMap<>();
+    private AnnounceService announceService;
+    private InMemorySwarmRegistry swarmRegistry;
+    private AnnounceWriteBehindService writeBehindService;
+
+    @BeforeEach
+    void setUp() {
+        announceService = new AnnounceService();
+        swarmRegistry = new InMemorySwarmRegistry();
+        writeBehindService = mock(AnnounceWriteBehindService.class);
+        TorrentCacheService torrentCacheService = mock(TorrentCacheService.class);
+        when(torrentCacheService.get(INFO_HASH)).thenReturn(new TorrentCacheService.TorrentSummary(10, INFO_HASH, 1, false, 1024));
+        ReflectionTestUtils.setField(announceService, "swarmRegistry", swarmRegistry);
+        ReflectionTestUtils.setField(announceService, "torrentCacheService", torrentCacheService);
+        ReflectionTestUtils.setField(announceService, "promotionService", mock(PromotionService.class));
+        ReflectionTestUtils.setField(announceService, "peerService", mock(PeerService.class));
+        ReflectionTestUtils.setField(announceService, "writeBehindService", writeBehindService);
+    }
+
+    @Test
+    void countsDualStackTrafficOnce() {
+        long before = System.currentTimeMillis() - 60000;
+        ledger.put(new AnnounceService.TrafficKey(PASSKEY, INFO_HASH, PEER_ID), new AnnounceService.Traffic(100, 50, before, true));
+        announceService.handleTask(ledger, task(IPV4, 300, 80, 0, AnnounceEventType.UNKNOWN));
+        announceService.handleTask(ledger, task(IPV6, 300, 80, 0, AnnounceEventType.UNKNOWN));
+        List<AnnounceWriteBehindService.AnnounceAccounting> records = recorded(2);
+        assertEquals(200, records.get(0).realUploaded());
+        assertEquals(30, records.get(0).realDownloaded());
+        assertTrue(records.get(0).seedingTime() >= 60000);
+        assertEquals(0, records.get(1).realUploaded());
+        assertEquals(0, records.get(1).realDownloaded());
+        assertEquals(0, records.get(1).seedingTime());
+        // Both addresses still end up in the peer lists
+        assertNotNull(swarmRegistry.getPeer(INFO_HASH, IPV4, 6881));
+        assertNotNull(swarmRegistry.getPeer(INFO_HASH, IPV6, 6881));
+    }
+
+    @Test
+    void countsEachAnnounceOfADualStackClient() {
+        announceService.handleTask(ledger, task(IPV4, 100, 0, 10, AnnounceEventType.STARTED));
+        announceService.handleTask(ledger, task(IPV6, 100, 0, 10, AnnounceEventType.STARTED));
+        announceService.handleTask(ledger, task(IPV6, 250, 40, 10, AnnounceEventType.UNKNOWN));
+        announceService.handleTask(ledger, task(IPV4, 250, 40, 10, AnnounceEventType.UNKNOWN));
+        announceService.handleTask(ledger, task(IPV4, 400, 40, 10, AnnounceEventType.UNKNOWN));
+        long uploaded = 0;
+        long downloaded = 0;
+        for (AnnounceWriteBehindService.AnnounceAccounting record : recorded(5)) {
+            uploaded += record.realUploaded();
+            downloaded += record.realDownloaded();
+        }
+        // The first sighting is the baseline
+        assertEquals(300, uploaded);
+        assertEquals(40, downloaded);
+    }
+
+    @Test
+    void fallsBackToTheSwarmEntry() {
+        // A restart reloads the swarm from the peers table, the ledger starts empty
+        byte[] endpoint = BencodeUtil.compactEndpoint(IPV4, 6881);
+        assertNotNull(endpoint);
+        swarmRegistry.putPeer(new SwarmPeer(INFO_HASH, IPV4, 6881, endpoint, PEER_ID, "qBittorrent/4.6.5", PASSKEY, 1,
+                100, 50, 10, false, false, System.currentTimeMillis() - 1000, 0, 0, 0));
+        announceService.handleTask(ledger, task(IPV4, 150, 70, 10, AnnounceEventType.UNKNOWN));
+        announceService.handleTask(ledger, task(IPV6, 150, 70, 10, AnnounceEventType.UNKNOWN));
+        List<AnnounceWriteBehindService.AnnounceAccounting> records = recorded(2);
+        assertEquals(50, records.get(0).realUploaded());
+        assertEquals(20, records.get(0).realDownloaded());
+        assertEquals(0, records.get(1).realUploaded());
+        assertEquals(0, records.get(1).realDownloaded());
+    }
+
+    @Test
+    void marksTheCompletionOnce() {
+        ledger.put(new AnnounceService.TrafficKey(PASSKEY, INFO_HASH, PEER_ID),
+                new AnnounceService.Traffic(0, 0, System.currentTimeMillis(), false));
+        announceService.handleTask(ledger, task(IPV4, 0, 1024, 0, AnnounceEventType.UNKNOWN));
+        announceService.handleTask(ledger, task(IPV6, 0, 1024, 0, AnnounceEventType.UNKNOWN));
+        List<AnnounceWriteBehindService.AnnounceAccounting> records = recorded(2);
+        assertTrue(records.get(0).completed());
+        assertFalse(records.get(1).completed());
+    }
+
+    @Test
+    void keepsClientsOfTheSameUserApart() {
+        announceService.handleTask(ledger, task(IPV4, 100, 0, 10, AnnounceEventType.STARTED));
+        // Another client of the same passkey, its totals have nothing to do with the first one
+        announceService.handleTask(ledger, new AnnounceService.AnnounceTask(IPV6, 51413, INFO_HASH, "-TR4050-000000000000",
+                500, 0, 10, AnnounceEventType.STARTED, 50, 1, 2, true, false, false, 0, "Transmission/4.0.5", PASSKEY, 10));
+        List<AnnounceWriteBehindService.AnnounceAccounting> records = recorded(2);
+        assertEquals(0, records.get(0).realUploaded());
+        assertEquals(0, records.get(1).realUploaded());
+        assertEquals(2, ledger.size());
+    }
+
+    private static AnnounceService.AnnounceTask task(String ip, long uploaded, long downloaded, long left, AnnounceEventType event) {
+        return new AnnounceService.AnnounceTask(ip, 6881, INFO_HASH, PEER_ID, uploaded, downloaded, left, event, 50,
+                1, 2, true, false, false, 0, "qBittorrent/4.6.5", PASSKEY, 10);
+    }
+
+    private List<AnnounceWriteBehindService.AnnounceAccounting> recorded(int count) {
+        ArgumentCaptor<AnnounceWriteBehindService.AnnounceAccounting> records =
+                ArgumentCaptor.forClass(AnnounceWriteBehindService.AnnounceAccounting.class);
+        verify(writeBehindService, times(count)).record(records.capture());
+        return records.getAllValues();
+    }
+}
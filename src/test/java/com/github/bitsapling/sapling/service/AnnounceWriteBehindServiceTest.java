@@ -0,0 +1,293 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AnnounceWriteBehindServiceTest {
+    private static final long TORRENT = 10;
+    private FakeDatabase database;
+    private AnnounceWriteBehindService service;
+
+    @BeforeEach
+    void setUp() {
+        TrackerProperties properties = new TrackerProperties();
+        properties.getWriteBehind().setMaxAttempts(2);
+        database = new FakeDatabase();
+        database.users.put(1L, 0L);
+        database.users.put(2L, 0L);
+        service = new AnnounceWriteBehindService();
+        ReflectionTestUtils.setField(service, "jdbcTemplate", database);
+        ReflectionTestUtils.setField(service, "transactionTemplate", new FakeTransactions(database));
+        ReflectionTestUtils.setField(service, "trackerProperties", properties);
+    }
+
+    @Test
+    void writesUsersAndHistoriesTogether() {
+        service.record(accounting(1, 100, 40, false));
+        service.record(accounting(1, 50, 0, false));
+        service.flush();
+        assertEquals(150, uploaded(1));
+        assertEquals(150, database.histories.get(new Key(1, TORRENT)).uploaded());
+        assertEquals(0, service.getPendingRows());
+        assertEquals(1, service.getFlushes());
+    }
+
+    @Test
+    void mergesBackABatchFailedByAnOutage() {
+        service.record(accounting(1, 100, 40, false));
+        // The users are updated, then the connection drops, the transaction is rolled back
+        database.failNext("UPDATE transfer_history SET to_go", new DataAccessResourceFailureException("Connection refused"));
+        service.flush();
+        assertEquals(0, uploaded(1));
+        assertTrue(database.histories.isEmpty());
+        assertEquals(1, service.getPendingRows());
+        assertEquals(1, service.getFailures());
+        service.record(accounting(1, 20, 0, false));
+        service.flush();
+        assertEquals(120, uploaded(1));
+        assertEquals(120, database.histories.get(new Key(1, TORRENT)).uploaded());
+        assertEquals(0, service.getPendingRows());
+    }
+
+    @Test
+    void retriesRowsOneByOneAfterABatchFailure() {
+        database.badUsers.add(2L);
+        service.record(accounting(1, 100, 40, false));
+        service.record(accounting(2, 70, 40, false));
+        service.flush();
+        // The good rows are written once, the bad one waits for the next flush
+        assertEquals(100, uploaded(1));
+        assertEquals(0, uploaded(2));
+        assertEquals(2, database.histories.size());
+        database.badUsers.clear();
+        service.flush();
+        assertEquals(100, uploaded(1));
+        assertEquals(70, uploaded(2));
+    }
+
+    @Test
+    void dropsARowFailingTooManyFlushes() {
+        database.badUsers.add(2L);
+        service.record(accounting(2, 70, 40, false));
+        service.flush();
+        service.record(accounting(1, 100, 40, false));
+        service.flush();
+        database.badUsers.clear();
+        service.flush();
+        assertEquals(100, uploaded(1));
+        assertEquals(0, uploaded(2));
+        assertEquals(2, service.getFailures());
+        // Traffic of the dropped user starts over
+        service.record(accounting(2, 5, 40, false));
+        service.flush();
+        assertEquals(5, uploaded(2));
+    }
+
+    @Test
+    void flushesPendingRowsOnShutdown() throws InterruptedException {
+        service.record(accounting(1, 100, 40, false));
+        service.shutdown();
+        assertEquals(100, uploaded(1));
+        assertEquals(0, service.getPendingRows());
+    }
+
+    @Test
+    void flushesRowsRecordedAfterTheLastRoundOnShutdown() throws InterruptedException {
+        service.start();
+        service.record(accounting(1, 100, 40, false));
+        service.shutdown();
+        service.record(accounting(2, 70, 40, false));
+        service.shutdown();
+        assertEquals(100, uploaded(1));
+        assertEquals(70, uploaded(2));
+        assertEquals(0, service.getPendingRows());
+    }
+
+    @Test
+    void countsACompletionOnceAcrossARetry() {
+        TorrentStatsService stats = completionCounter();
+        database.histories.put(new Key(1, TORRENT), new History(1024, 0, false));
+        service.record(accounting(1, 0, 0, true));
+        // The history is marked, then the connection drops and the mark is rolled back
+        database.failNext("UPDATE transfer_history SET to_go", new DataAccessResourceFailureException("Connection refused"));
+        service.flush();
+        assertFalse(database.histories.get(new Key(1, TORRENT)).complete());
+        assertEquals(0, stats.getCompletions(TORRENT));
+        service.flush();
+        assertTrue(database.histories.get(new Key(1, TORRENT)).complete());
+        assertEquals(1, stats.getCompletions(TORRENT));
+        // The same client reports the completion again from its other address
+        service.record(accounting(1, 0, 0, true));
+        service.flush();
+        assertEquals(1, stats.getCompletions(TORRENT));
+    }
+
+    @Test
+    void countsACompletionOnceWhenRetriedRowByRow() {
+        TorrentStatsService stats = completionCounter();
+        database.histories.put(new Key(1, TORRENT), new History(1024, 0, false));
+        service.record(accounting(1, 0, 0, true));
+        service.record(accounting(2, 70, 40, false));
+        database.failNext("UPDATE transfer_history SET to_go", new DataIntegrityViolationException("Data truncated for column 'to_go'"));
+        service.flush();
+        assertTrue(database.histories.get(new Key(1, TORRENT)).complete());
+        assertEquals(1, stats.getCompletions(TORRENT));
+        service.flush();
+        assertEquals(1, stats.getCompletions(TORRENT));
+    }
+
+    @Test
+    void countsACompletedNewHistoryOnce() {
+        TorrentStatsService stats = completionCounter();
+        service.record(accounting(1, 0, 0, true));
+        service.flush();
+        assertTrue(database.histories.get(new Key(1, TORRENT)).complete());
+        assertEquals(1, stats.getCompletions(TORRENT));
+        service.record(accounting(1, 0, 0, true));
+        service.flush();
+        assertEquals(1, stats.getCompletions(TORRENT));
+    }
+
+    private TorrentStatsService completionCounter() {
+        TorrentStatsService stats = new TorrentStatsService();
+        ReflectionTestUtils.setField(stats, "jdbcTemplate", database);
+        ReflectionTestUtils.setField(stats, "writeBehindService", service);
+        stats.init();
+        // Only the completions of loaded torrents are counted
+        assertEquals(0, stats.getCompletions(TORRENT));
+        return stats;
+    }
+
+    private long uploaded(long userId) {
+        return database.users.get(userId);
+    }
+
+    private static AnnounceWriteBehindService.AnnounceAccounting accounting(long userId, long uploaded, long left, boolean completed) {
+        return new AnnounceWriteBehindService.AnnounceAccounting(userId, TORRENT, uploaded, 0, uploaded, 0, 0, left,
+                0, 0, completed ? AnnounceEventType.COMPLETED : AnnounceEventType.UNKNOWN, completed, System.currentTimeMillis());
+    }
+
+    private record Key(long userId, long torrentId) {
+    }
+
+    private record History(long toGo, long uploaded, boolean complete) {
+    }
+
+    /**
+     * The users and transfer_history tables, enough of them for the statements of the write-behind stage and the completion count.
+     */
+    private static final class FakeDatabase extends JdbcTemplate {
+        private final Map<Long, Long> users = new HashMap<>();
+        private final Map<Key, History> histories = new HashMap<>();
+        // Any batch touching these users fails like a row out of range would
+        private final Set<Long> badUsers = new HashSet<>();
+        private String failingSql;
+        private RuntimeException failure;
+
+        void failNext(String sqlPrefix, RuntimeException failure) {
+            this.failingSql = sqlPrefix;
+            this.failure = failure;
+        }
+
+        @Override
+        public <T> T queryForObject(String sql, Class<T> requiredType, Object... args) {
+            if (!sql.startsWith("SELECT COUNT(*) FROM transfer_history")) throw new IllegalArgumentException(sql);
+            long torrentId = (Long) args[0];
+            int completed = 0;
+            for (Map.Entry<Key, History> entry : histories.entrySet()) {
+                if (entry.getKey().torrentId() == torrentId && entry.getValue().complete()) completed++;
+            }
+            return requiredType.cast(completed);
+        }
+
+        @Override
+        public int[] batchUpdate(String sql, List<Object[]> batchArgs) {
+            if (failure != null && sql.startsWith(failingSql)) {
+                RuntimeException e = failure;
+                failure = null;
+                throw e;
+            }
+            int[] counts = new int[batchArgs.size()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = apply(sql, batchArgs.get(i));
+            }
+            return counts;
+        }
+
+        private int apply(String sql, Object[] args) {
+            if (sql.startsWith("UPDATE users")) {
+                long userId = (Long) args[5];
+                if (badUsers.contains(userId)) throw new DataIntegrityViolationException("Out of range value for column 'uploaded'");
+                return users.computeIfPresent(userId, (id, uploaded) -> uploaded + (Long) args[0]) == null ? 0 : 1;
+            }
+            if (sql.startsWith("UPDATE transfer_history SET have_complete_history")) {
+                Key key = new Key((Long) args[0], (Long) args[1]);
+                History history = histories.get(key);
+                if (history == null || history.complete()) return 0;
+                if (!(Boolean) args[2] && (history.toGo() == 0 || (Long) args[3] != 0)) return 0;
+                histories.put(key, new History(history.toGo(), history.uploaded(), true));
+                return 1;
+            }
+            if (sql.startsWith("UPDATE transfer_history SET to_go")) {
+                Key key = new Key((Long) args[9], (Long) args[10]);
+                History history = histories.get(key);
+                if (history == null) return 0;
+                histories.put(key, new History((Long) args[0], history.uploaded() + (Long) args[2], history.complete()));
+                return 1;
+            }
+            if (sql.startsWith("INSERT INTO transfer_history")) {
+                Key key = new Key((Long) args[0], (Long) args[1]);
+                if (histories.containsKey(key)) throw new DuplicateKeyException("Duplicate entry for key 'user_torrent'");
+                histories.put(key, new History((Long) args[2], (Long) args[5], (Boolean) args[12]));
+                return 1;
+            }
+            throw new IllegalArgumentException(sql);
+        }
+    }
+
+    /**
+     * Rolls the fake database back when the callback throws.
+     */
+    private static final class FakeTransactions extends TransactionTemplate {
+        private final FakeDatabase database;
+
+        FakeTransactions(FakeDatabase database) {
+            this.database = database;
+        }
+
+        @Override
+        public <T> T execute(TransactionCallback<T> action) {
+            Map<Long, Long> users = new HashMap<>(database.users);
+            Map<Key, History> histories = new HashMap<>(database.histories);
+            try {
+                return action.doInTransaction(new SimpleTransactionStatus());
+            } catch (RuntimeException e) {
+                database.users.clear();
+                database.users.putAll(users);
+                database.histories.clear();
+                database.histories.putAll(histories);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.bitsapling.sapling.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlacklistClientServiceTest {
+    @Test
+    void parsesPeerIdRules() {
+        BlacklistClientService.PeerIdRule any = BlacklistClientService.PeerIdRule.parse("  -qB  ");
+        assertNotNull(any);
+        assertEquals("-qB", any.prefix());
+        assertNull(any.minVersion());
+        BlacklistClientService.PeerIdRule range = BlacklistClientService.PeerIdRule.parse("-qB 4500-4699");
+        assertNotNull(range);
+        assertEquals("4500", range.minVersion());
+        assertEquals("4699", range.maxVersion());
+    }
+
+    @Test
+    void rejectsInvalidPeerIdRules() {
+        assertNull(BlacklistClientService.PeerIdRule.parse(null));
+        assertNull(BlacklistClientService.PeerIdRule.parse("   "));
+        // Longer than the peer_id prefix that is compared
+        assertNull(BlacklistClientService.PeerIdRule.parse("-qB4650-x"));
+        assertNull(BlacklistClientService.PeerIdRule.parse("-qB 4500"));
+        assertNull(BlacklistClientService.PeerIdRule.parse("-qB 450-4699"));
+        assertNull(BlacklistClientService.PeerIdRule.parse("-qB 4500-4699-4700"));
+        assertNull(BlacklistClientService.PeerIdRule.parse("-qB 4500-4699 extra"));
+    }
+
+    @Test
+    void matchesVersionsWithinTheRange() {
+        BlacklistClientService.PeerIdRule rule = BlacklistClientService.PeerIdRule.parse("-qB 4500-4699");
+        assertNotNull(rule);
+        assertTrue(rule.matches("-qB4500-"));
+        assertTrue(rule.matches("-qB4650-"));
+        assertTrue(rule.matches("-qB4699-"));
+        assertFalse(rule.matches("-qB4499-"));
+        assertFalse(rule.matches("-qB4700-"));
+        // Letters sort after digits, like the versions they stand for
+        assertFalse(rule.matches("-qB46A0-"));
+        assertFalse(rule.matches("-qB45"));
+        BlacklistClientService.PeerIdRule any = BlacklistClientService.PeerIdRule.parse("-TR");
+        assertNotNull(any);
+        assertTrue(any.matches("-TR"));
+        assertTrue(any.matches("-TR4050-"));
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LoginAttemptServiceTest {
+    private static final String IP = "198.51.100.7";
+    private LoginAttemptService service;
+    private StringRedisTemplate redis;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        TrackerProperties properties = new TrackerProperties();
+        properties.getLoginAttempts().setShared(true);
+        redis = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> values = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(values);
+        when(values.increment(anyString(), anyLong())).thenReturn(1L);
+        service = new LoginAttemptService();
+        ReflectionTestUtils.setField(service, "trackerProperties", properties);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(service, "listenerContainer", mock(RedisMessageListenerContainer.class));
+        service.init();
+    }
+
+    @Test
+    void keepsResetsOfCleanIpsLocal() {
+        // What every successful announce does
+        service.reset(IP);
+        service.reset("2001:db8::7");
+        sync();
+        verify(redis, never()).delete(anyCollection());
+        verify(redis, never()).convertAndSend(anyString(), anyString());
+    }
+
+    @Test
+    void sharesResetsOfFailedIps() {
+        assertEquals(1, service.markFailure(IP));
+        service.reset(IP);
+        assertEquals(0, service.getFailures(IP));
+        assertTrue(pendingResets().containsKey(IP));
+        sync();
+        verify(redis).delete(anyCollection());
+        verify(redis).convertAndSend(eq("sapling:auth_fail:reset"), anyString());
+        // The failure never reached Redis, the reset dropped it
+        verify(redis, never()).opsForValue();
+        // Once reset the IP is clean again
+        service.reset(IP);
+        assertTrue(pendingResets().isEmpty());
+    }
+
+    @Test
+    void sharesResetsOfSyncedFailures() {
+        service.markFailure(IP);
+        sync();
+        verify(redis, atLeastOnce()).opsForValue();
+        service.reset(IP);
+        sync();
+        verify(redis).convertAndSend(eq("sapling:auth_fail:reset"), anyString());
+    }
+
+    private void sync() {
+        ReflectionTestUtils.invokeMethod(service, "sync");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Boolean> pendingResets() {
+        return (Map<String, Boolean>) ReflectionTestUtils.getField(service, "pendingResets");
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.bitsapling.sapling.service;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class LoginHistoryServiceTest {
+    private static final String AGENT = "qBittorrent/4.6.5";
+    private LoginHistoryService service;
+
+    @BeforeEach
+    void setUp() {
+        TrackerProperties properties = new TrackerProperties();
+        properties.getLoginHistory().setQueueCapacity(1);
+        service = new LoginHistoryService();
+        ReflectionTestUtils.setField(service, "trackerProperties", properties);
+        service.init();
+    }
+
+    @Test
+    void skipsRepeatedLoginsWithinTheWindow() {
+        service.logPasskey(1, "198.51.100.7", AGENT);
+        service.logPasskey(1, "198.51.100.7", AGENT);
+        assertEquals(1, pending().size());
+        assertEquals(1, service.getSkipped());
+        assertEquals(0, service.getDropped());
+    }
+
+    @Test
+    void retriesLoginsDroppedOnAFullQueue() {
+        service.logPasskey(1, "198.51.100.7", AGENT);
+        service.logPasskey(2, "198.51.100.8", AGENT);
+        assertEquals(1, service.getDropped());
+        // The writer catches up, the dropped login is recorded the next time it comes
+        assertNotNull(pending().poll());
+        service.logPasskey(2, "198.51.100.8", AGENT);
+        assertEquals(1, pending().size());
+        assertEquals(0, service.getSkipped());
+    }
+
+    private BlockingQueue<?> pending() {
+        return (BlockingQueue<?>) ReflectionTestUtils.getField(service, "pending");
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.bitsapling.sapling.tracker;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrackerRequestDecoderTest {
+    private static final String PASSKEY = "00000000-0000-0000-0000-000000000000";
+
+    @Test
+    void decodesAnnounce() {
+        byte[] infoHash = bytes(20, 0xF0);
+        byte[] peerId = bytes(20, 0x20);
+        TrackerRequest request = new TrackerRequest();
+        String error = TrackerRequestDecoder.decodeAnnounce("passkey=" + PASSKEY + "&info_hash=" + encode(infoHash) +
+                "&peer_id=" + encode(peerId) + "&port=6881&uploaded=1&downloaded=2&left=3&corrupt=4" +
+                "&event=Completed&numwant=50&compact=1&no_peer_id=true&supportcrypto=yes&ip=10.0.0.1" +
+                "&ipv4=10.0.0.2&ipv6=%3A%3A1&key=abc&redundant=7&unknown=%zz", request);
+        assertNull(error);
+        assertEquals(PASSKEY, request.getPasskey());
+        assertEquals(InfoHash.of(infoHash), request.getInfoHash());
+        assertArrayEquals(peerId, request.getPeerId());
+        assertEquals(6881, request.getPort());
+        assertEquals(1, request.getUploaded());
+        assertEquals(2, request.getDownloaded());
+        assertEquals(3, request.getLeft());
+        assertEquals(4, request.getCorrupt());
+        assertEquals(AnnounceEventType.COMPLETED, request.getEvent());
+        assertEquals(50, request.getNumWant());
+        assertTrue(request.isCompact());
+        assertTrue(request.isNoPeerId());
+        assertTrue(request.isSupportCrypto());
+        assertEquals("10.0.0.1", request.getIp());
+        assertEquals(List.of("10.0.0.2"), request.getIpv4());
+        assertEquals(List.of("::1"), request.getIpv6());
+        assertEquals("abc", request.getKey());
+        assertEquals(7, request.getRedundant());
+    }
+
+    @Test
+    void acceptsParameterAliases() {
+        TrackerRequest request = new TrackerRequest();
+        assertNull(TrackerRequestDecoder.decodeAnnounce(validAnnounce() + "&num+want=5&no_peerid=1" +
+                "&support_crypto=on&ip_address=10.0.0.1&redundant_peers=2", request));
+        assertEquals(5, request.getNumWant());
+        assertTrue(request.isNoPeerId());
+        assertTrue(request.isSupportCrypto());
+        assertEquals("10.0.0.1", request.getIp());
+        assertEquals(2, request.getRedundant());
+
+        request = new TrackerRequest();
+        assertNull(TrackerRequestDecoder.decodeAnnounce(validAnnounce() + "&num_want=6&nopeerid=0&address=10.0.0.3", request));
+        assertEquals(6, request.getNumWant());
+        assertFalse(request.isNoPeerId());
+        assertEquals("10.0.0.3", request.getIp());
+    }
+
+    @Test
+    void rejectsMalformedEscapes() {
+        String peerId = "&peer_id=" + encode(bytes(20, 0x20)) + "&port=1&uploaded=0&downloaded=0&left=0";
+        assertEquals("Invalid param: info_hash", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + "&info_hash=%zz" + encode(bytes(19, 1)) + peerId, new TrackerRequest()));
+        // An escape cut by the end of the value
+        assertEquals("Invalid param: info_hash", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + "&info_hash=" + encode(bytes(19, 1)) + "%4" + peerId, new TrackerRequest()));
+        assertEquals("Invalid param: info_hash", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + peerId + "&info_hash=" + encode(bytes(19, 1)) + "%", new TrackerRequest()));
+        // A malformed name is an unknown parameter, not a failure
+        TrackerRequest request = new TrackerRequest();
+        assertNull(TrackerRequestDecoder.decodeAnnounce(validAnnounce() + "&num%zwant=5", request));
+        assertEquals(-1, request.getNumWant());
+    }
+
+    @Test
+    void requiresTwentyByteHashes() {
+        String rest = "&port=1&uploaded=0&downloaded=0&left=0";
+        String peerId = "&peer_id=" + encode(bytes(20, 0x20));
+        String infoHash = "&info_hash=" + encode(bytes(20, 1));
+        assertEquals("Invalid param: info_hash", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + "&info_hash=" + encode(bytes(19, 1)) + peerId + rest, new TrackerRequest()));
+        assertEquals("Invalid param: info_hash", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + "&info_hash=" + encode(bytes(21, 1)) + peerId + rest, new TrackerRequest()));
+        assertEquals("Invalid param: peer_id", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + infoHash + "&peer_id=" + encode(bytes(19, 0x20)) + rest, new TrackerRequest()));
+        assertEquals("Invalid param: peer_id", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + infoHash + "&peer_id=" + encode(bytes(21, 0x20)) + rest, new TrackerRequest()));
+        // Unescaped chars count as one byte each
+        TrackerRequest request = new TrackerRequest();
+        assertNull(TrackerRequestDecoder.decodeAnnounce("passkey=" + PASSKEY + infoHash +
+                "&peer_id=-qB4650-abcdefghijkl" + rest, request));
+        assertEquals("-qB4650-abcdefghijkl", request.getPeerIdString());
+    }
+
+    @Test
+    void limitsNumbers() {
+        String base = "passkey=" + PASSKEY + "&info_hash=" + encode(bytes(20, 1)) + "&peer_id=" + encode(bytes(20, 0x20));
+        TrackerRequest request = new TrackerRequest();
+        assertNull(TrackerRequestDecoder.decodeAnnounce(base +
+                "&port=65535&uploaded=999999999999999999&downloaded=0&left=0&numwant=99999999999", request));
+        assertEquals(65535, request.getPort());
+        assertEquals(999999999999999999L, request.getUploaded());
+        assertEquals(Integer.MAX_VALUE, request.getNumWant());
+        // 19 digits could overflow a long, they are refused whatever the value
+        assertEquals("Missing/Invalid param: uploaded", TrackerRequestDecoder.decodeAnnounce(base +
+                "&port=1&uploaded=0000000000000000001&downloaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing/Invalid param: port", TrackerRequestDecoder.decodeAnnounce(base +
+                "&port=65536&uploaded=0&downloaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing/Invalid param: downloaded", TrackerRequestDecoder.decodeAnnounce(base +
+                "&port=1&uploaded=0&downloaded=-1&left=0", new TrackerRequest()));
+        assertEquals("Missing/Invalid param: left", TrackerRequestDecoder.decodeAnnounce(base +
+                "&port=1&uploaded=0&downloaded=0&left=1e3", new TrackerRequest()));
+        assertEquals("Invalid optional param: numwant", TrackerRequestDecoder.decodeAnnounce(base +
+                "&port=1&uploaded=0&downloaded=0&left=0&numwant=", new TrackerRequest()));
+    }
+
+    @Test
+    void reportsMissingFields() {
+        String infoHash = "&info_hash=" + encode(bytes(20, 1));
+        String peerId = "&peer_id=" + encode(bytes(20, 0x20));
+        assertEquals("Missing query string", TrackerRequestDecoder.decodeAnnounce(null, new TrackerRequest()));
+        assertEquals("You must re-download the torrent from tracker for seeding.", TrackerRequestDecoder.decodeAnnounce(
+                infoHash.substring(1) + peerId + "&port=1&uploaded=0&downloaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing param: info_hash", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + peerId + "&port=1&uploaded=0&downloaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing param: peer_id", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + infoHash + "&port=1&uploaded=0&downloaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing/Invalid param: port", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + infoHash + peerId + "&uploaded=0&downloaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing/Invalid param: uploaded", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + infoHash + peerId + "&port=1&downloaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing/Invalid param: downloaded", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + infoHash + peerId + "&port=1&uploaded=0&left=0", new TrackerRequest()));
+        assertEquals("Missing/Invalid param: left", TrackerRequestDecoder.decodeAnnounce(
+                "passkey=" + PASSKEY + infoHash + peerId + "&port=1&uploaded=0&downloaded=0", new TrackerRequest()));
+    }
+
+    @Test
+    void keepsEveryScrapedInfoHash() {
+        byte[] first = bytes(20, 1);
+        byte[] second = bytes(20, 2);
+        TrackerRequest request = new TrackerRequest();
+        assertNull(TrackerRequestDecoder.decodeScrape("passkey=" + PASSKEY + "&info_hash=" + encode(first) +
+                "&info_hash=" + encode(second) + "&info_hash=" + encode(first), request));
+        assertEquals(InfoHash.of(first), request.getInfoHash());
+        assertEquals(List.of(InfoHash.of(first), InfoHash.of(second), InfoHash.of(first)), request.getInfoHashes());
+
+        request = new TrackerRequest();
+        assertNull(TrackerRequestDecoder.decodeScrape("passkey=" + PASSKEY, request));
+        assertFalse(request.hasInfoHash());
+        assertTrue(request.getInfoHashes().isEmpty());
+    }
+
+    @Test
+    void resetsTheThreadLocalRequest() {
+        TrackerRequest request = TrackerRequestDecoder.local();
+        assertNull(TrackerRequestDecoder.decodeAnnounce(validAnnounce() + "&numwant=5", request));
+        request = TrackerRequestDecoder.local();
+        assertNull(request.getPasskey());
+        assertFalse(request.hasInfoHash());
+        assertEquals(-1, request.getNumWant());
+        assertEquals(-1, request.getPort());
+    }
+
+    private static String validAnnounce() {
+        return "passkey=" + PASSKEY + "&info_hash=" + encode(bytes(20, 1)) + "&peer_id=" + encode(bytes(20, 0x20)) +
+                "&port=6881&uploaded=0&downloaded=0&left=0";
+    }
+
+    private static byte[] bytes(int length, int first) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+
+    private static String encode(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append('%').append(String.format("%02X", b & 0xFF));
+        }
+        return builder.toString();
+    }
+}
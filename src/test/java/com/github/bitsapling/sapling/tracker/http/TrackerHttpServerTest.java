@@ -0,0 +1,304 @@
+package com.github.bitsapling.sapling.tracker.http;
+
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.exception.InvalidAnnounceException;
+import com.github.bitsapling.sapling.tracker.ClientAddressResolver;
+import com.github.bitsapling.sapling.tracker.TrackerHttpHandler;
+import com.github.bitsapling.sapling.tracker.TrackerHttpRequest;
+import com.github.bitsapling.sapling.util.BencodeWriter;
+import com.github.bitsapling.sapling.util.ClassUtil;
+import com.github.bitsapling.sapling.util.HibernateSessionUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Drives the standalone listener over real sockets, the tracker logic behind it is mocked.
+ */
+class TrackerHttpServerTest {
+    private static final String AGENT = "User-Agent: qBittorrent/4.6.5\r\n";
+    private TrackerProperties properties;
+    private TrackerHttpHandler handler;
+    private TrackerHttpServer server;
+    private InetSocketAddress address;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        properties = new TrackerProperties();
+        properties.getHttp().setEnabled(true);
+        properties.getHttp().setHost("127.0.0.1");
+        properties.getHttp().setPort(0);
+        properties.getHttp().setEventLoops(1);
+        properties.getHttp().setWorkers(1);
+        properties.getHttp().setWorkerQueueCapacity(1);
+        properties.getHttp().setMaxRequestSize(512);
+        handler = mock(TrackerHttpHandler.class);
+        // Every announce answers with its query string
+        doAnswer(invocation -> {
+            TrackerHttpRequest request = invocation.getArgument(0);
+            BencodeWriter writer = invocation.getArgument(1);
+            writer.writeString(String.valueOf(request.queryString()));
+            return null;
+        }).when(handler).announce(any(), any());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    void answersAnnouncesOverKeepAlive() throws Exception {
+        start();
+        try (Socket socket = connect()) {
+            send(socket, "GET /announce?n=1 HTTP/1.1\r\nHost: tracker\r\n" + AGENT + "\r\n");
+            Response first = read(socket);
+            assertNotNull(first);
+            assertEquals(200, first.status());
+            assertEquals("keep-alive", first.headers().get("connection"));
+            assertEquals("3:n=1", first.body());
+            send(socket, "GET /announce?n=2 HTTP/1.1\r\n" + AGENT + "\r\n");
+            Response second = read(socket);
+            assertNotNull(second);
+            assertEquals("3:n=2", second.body());
+        }
+        verify(handler, times(2)).announce(any(), any());
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws Exception {
+        // The first one is the slowest, its answer must still come first
+        doAnswer(invocation -> {
+            TrackerHttpRequest request = invocation.getArgument(0);
+            if ("n=1".equals(request.queryString())) Thread.sleep(200);
+            ((BencodeWriter) invocation.getArgument(1)).writeString(request.queryString());
+            return null;
+        }).when(handler).announce(any(), any());
+        properties.getHttp().setWorkers(4);
+        start();
+        try (Socket socket = connect()) {
+            send(socket, "GET /announce?n=1 HTTP/1.1\r\n" + AGENT + "\r\n"
+                    + "GET /announce?n=2 HTTP/1.1\r\n" + AGENT + "\r\n"
+                    + "GET /scrape?n=3 HTTP/1.1\r\n" + AGENT + "Connection: close\r\n\r\n");
+            assertEquals("3:n=1", read(socket).body());
+            assertEquals("3:n=2", read(socket).body());
+            Response last = read(socket);
+            assertEquals(200, last.status());
+            assertEquals("close", last.headers().get("connection"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void closesHttp10ConnectionsWithoutKeepAlive() throws Exception {
+        start();
+        try (Socket socket = connect()) {
+            send(socket, "GET /announce HTTP/1.0\r\n" + AGENT + "\r\n");
+            Response response = read(socket);
+            assertEquals("close", response.headers().get("connection"));
+            assertEquals("4:null", response.body());
+            assertNull(read(socket));
+        }
+    }
+
+    @Test
+    void writesAnnounceFailuresAsBencode() throws Exception {
+        doThrow(new InvalidAnnounceException("Invalid passkey.")).when(handler).announce(any(), any());
+        start();
+        try (Socket socket = connect()) {
+            send(socket, "GET /announce HTTP/1.1\r\n" + AGENT + "\r\n");
+            Response response = read(socket);
+            assertEquals(200, response.status());
+            assertEquals("d14:failure reason42:InvalidAnnounceException: Invalid passkey.8:retry in5:nevere",
+                    response.body());
+        }
+    }
+
+    @Test
+    void rejectsMalformedAndUnknownRequests() throws Exception {
+        start();
+        try (Socket socket = connect()) {
+            send(socket, "GET /favicon.ico HTTP/1.1\r\n\r\n");
+            assertEquals(404, read(socket).status());
+            // The connection survives a 404
+            send(socket, "NONSENSE\r\n\r\n");
+            Response response = read(socket);
+            assertEquals(400, response.status());
+            assertEquals("close", response.headers().get("connection"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        verify(handler, never()).announce(any(), any());
+    }
+
+    @Test
+    void refusesOversizedHeads() throws Exception {
+        start();
+        try (Socket socket = connect()) {
+            // Exactly the buffer size, unread bytes would turn the close into a reset
+            String line = "GET /announce?";
+            send(socket, line + "a".repeat(512 - line.length()));
+            Response response = read(socket);
+            assertNotNull(response);
+            assertEquals(431, response.status());
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        verify(handler, never()).announce(any(), any());
+    }
+
+    @Test
+    void answers503WhenTheWorkersAreSaturated() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            ((BencodeWriter) invocation.getArgument(1)).writeString("ok");
+            return null;
+        }).when(handler).announce(any(), any());
+        start();
+        try (Socket running = connect(); Socket queued = connect(); Socket rejected = connect()) {
+            send(running, "GET /announce HTTP/1.1\r\n" + AGENT + "\r\n");
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            send(queued, "GET /announce HTTP/1.1\r\n" + AGENT + "\r\n");
+            ThreadPoolExecutor workers = (ThreadPoolExecutor) ReflectionTestUtils.getField(server, "workers");
+            assertNotNull(workers);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (workers.getQueue().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            send(rejected, "GET /announce HTTP/1.1\r\n" + AGENT + "\r\n");
+            assertEquals(503, read(rejected).status());
+            release.countDown();
+            assertEquals("2:ok", read(running).body());
+            assertEquals("2:ok", read(queued).body());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void closesIdleConnections() throws Exception {
+        properties.getHttp().setIdleTimeout(200);
+        start();
+        try (Socket socket = connect()) {
+            long begin = System.currentTimeMillis();
+            assertEquals(-1, socket.getInputStream().read());
+            assertTrue(System.currentTimeMillis() - begin < 4000);
+        }
+    }
+
+    @Test
+    void ignoresForwardingHeadersFromUntrustedPeers() throws Exception {
+        properties.getProxy().setTrusted(List.of());
+        start();
+        try (Socket socket = connect()) {
+            send(socket, "GET /announce HTTP/1.1\r\n" + AGENT
+                    + "X-Real-IP: 198.51.100.1\r\nX-Forwarded-For: 198.51.100.2\r\n\r\n");
+            assertNotNull(read(socket));
+        }
+        ArgumentCaptor<TrackerHttpRequest> request = ArgumentCaptor.forClass(TrackerHttpRequest.class);
+        verify(handler).announce(request.capture(), any());
+        assertEquals("127.0.0.1", request.getValue().remoteIp());
+    }
+
+    @Test
+    void takesTheClientAddressFromTrustedProxies() throws Exception {
+        properties.getProxy().setTrusted(List.of("127.0.0.1"));
+        start();
+        try (Socket socket = connect()) {
+            send(socket, "GET /announce HTTP/1.1\r\n" + AGENT + "X-Forwarded-For: 1.2.3.4, 198.51.100.2\r\n\r\n");
+            assertNotNull(read(socket));
+        }
+        ArgumentCaptor<TrackerHttpRequest> request = ArgumentCaptor.forClass(TrackerHttpRequest.class);
+        verify(handler).announce(request.capture(), any());
+        assertEquals("198.51.100.2", request.getValue().remoteIp());
+        assertEquals("GET", request.getValue().method());
+        assertEquals("qBittorrent/4.6.5", request.getValue().userAgent());
+    }
+
+    private void start() throws Exception {
+        ClientAddressResolver resolver = new ClientAddressResolver();
+        ReflectionTestUtils.setField(resolver, "trackerProperties", properties);
+        resolver.init();
+        server = new TrackerHttpServer();
+        ReflectionTestUtils.setField(server, "trackerProperties", properties);
+        ReflectionTestUtils.setField(server, "trackerHttpHandler", handler);
+        ReflectionTestUtils.setField(server, "sessionUtil", mock(HibernateSessionUtil.class));
+        ReflectionTestUtils.setField(server, "classUtil", new ClassUtil());
+        ReflectionTestUtils.setField(server, "clientAddressResolver", resolver);
+        server.start();
+        ServerSocketChannel channel = (ServerSocketChannel) ReflectionTestUtils.getField(server, "serverChannel");
+        assertNotNull(channel);
+        address = (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String data) throws IOException {
+        socket.getOutputStream().write(data.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * @return null if the server closed the connection first
+     */
+    private static Response read(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                assertEquals(0, head.size(), "Connection closed within a response head");
+                return null;
+            }
+            head.write(b);
+        }
+        String[] lines = head.toString(StandardCharsets.ISO_8859_1).split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            headers.put(lines[i].substring(0, colon).toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        int length = Integer.parseInt(headers.get("content-length"));
+        byte[] body = in.readNBytes(length);
+        assertEquals(length, body.length);
+        return new Response(Integer.parseInt(lines[0].split(" ")[1]), headers,
+                new String(body, StandardCharsets.ISO_8859_1));
+    }
+
+    private record Response(int status, Map<String, String> headers, String body) {
+    }
+}
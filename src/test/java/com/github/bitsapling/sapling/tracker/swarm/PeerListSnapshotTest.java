@@ -0,0 +1,132 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import com.github.bitsapling.sapling.objects.InfoHash;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeerListSnapshotTest {
+    private static final InfoHash INFO_HASH = InfoHash.fromHex("00112233445566778899aabbccddeeff01234567");
+    // Random windows, repeat enough for every start to come up
+    private static final int ROUNDS = 500;
+
+    @Test
+    void placesLeechersBeforeSeeders() {
+        PeerListSnapshot snapshot = PeerListSnapshot.build(List.of(
+                peer(1, false, true), peer(2, false, false), peer(3, true, true), peer(4, false, false),
+                peer(5, true, false)), 1, 0);
+        assertEquals(List.of("peer-2", "peer-4", "peer-1"), peerIds(snapshot.getPeers()));
+        assertEquals(List.of("peer-5", "peer-3"), peerIds(snapshot.getPeers6()));
+        assertEquals(18, snapshot.getCompactPeers().length);
+        assertEquals(36, snapshot.getCompactPeers6().length);
+        byte[] second = new byte[6];
+        System.arraycopy(snapshot.getCompactPeers(), 6, second, 0, 6);
+        assertArrayEquals(snapshot.getPeers()[1].compactEndpoint(), second);
+    }
+
+    @Test
+    void selectsDistinctPeersUpToNumWant() {
+        PeerListSnapshot snapshot = PeerListSnapshot.build(swarm(10, 0, 0), 1, 0);
+        for (int i = 0; i < ROUNDS; i++) {
+            List<String> selected = selected(snapshot, snapshot.select(4, false, null));
+            assertEquals(4, selected.size());
+            assertEquals(4, new HashSet<>(selected).size());
+        }
+        assertEquals(10, selected(snapshot, snapshot.select(50, false, null)).size());
+        assertEquals(0, snapshot.select(0, false, null).size());
+        assertEquals(0, snapshot.select(-1, false, null).size());
+        assertEquals(0, PeerListSnapshot.EMPTY.select(50, false, null).size());
+    }
+
+    @Test
+    void givesSeedersOnlyLeechers() {
+        PeerListSnapshot snapshot = PeerListSnapshot.build(swarm(3, 5, 0), 1, 0);
+        for (int i = 0; i < ROUNDS; i++) {
+            List<String> selected = selected(snapshot, snapshot.select(50, true, null));
+            assertEquals(3, selected.size());
+            for (SwarmPeer peer : snapshot.getPeers()) {
+                if (peer.seeder()) assertFalse(selected.contains(peer.peerId()));
+            }
+        }
+    }
+
+    @Test
+    void leavesTheRequesterOut() {
+        PeerListSnapshot snapshot = PeerListSnapshot.build(swarm(6, 0, 0), 1, 0);
+        for (int i = 0; i < ROUNDS; i++) {
+            List<String> selected = selected(snapshot, snapshot.select(3, false, "peer-2"));
+            // One more peer is taken in place of the requester
+            assertEquals(3, selected.size());
+            assertEquals(3, new HashSet<>(selected).size());
+            assertFalse(selected.contains("peer-2"));
+        }
+        List<String> everyone = selected(snapshot, snapshot.select(50, false, "peer-2"));
+        assertEquals(5, everyone.size());
+        assertFalse(everyone.contains("peer-2"));
+    }
+
+    @Test
+    void splitsBetweenFamiliesBySize() {
+        PeerListSnapshot snapshot = PeerListSnapshot.build(swarm(8, 0, 2), 1, 0);
+        PeerSelection selection = snapshot.select(5, false, null);
+        assertEquals(4, selection.peers().size());
+        assertEquals(1, selection.peers6().size());
+        // A small family still fills what the other one can't
+        selection = snapshot.select(10, false, null);
+        assertEquals(8, selection.peers().size());
+        assertEquals(2, selection.peers6().size());
+    }
+
+    @Test
+    void picksEveryPeerEventually() {
+        PeerListSnapshot snapshot = PeerListSnapshot.build(swarm(12, 0, 0), 1, 0);
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < ROUNDS; i++) {
+            seen.addAll(selected(snapshot, snapshot.select(1, false, null)));
+        }
+        assertEquals(12, seen.size());
+        assertTrue(seen.containsAll(peerIds(snapshot.getPeers())));
+    }
+
+    private static List<SwarmPeer> swarm(int leechers, int seeders, int ipv6) {
+        List<SwarmPeer> peers = new ArrayList<>();
+        int id = 0;
+        for (int i = 0; i < leechers; i++) peers.add(peer(id++, false, false));
+        for (int i = 0; i < seeders; i++) peers.add(peer(id++, false, true));
+        for (int i = 0; i < ipv6; i++) peers.add(peer(id++, true, false));
+        return peers;
+    }
+
+    private static SwarmPeer peer(int id, boolean ipv6, boolean seeder) {
+        byte[] endpoint = new byte[ipv6 ? 18 : 6];
+        endpoint[0] = (byte) id;
+        String ip = ipv6 ? "2001:db8::" + id : "10.0.0." + id;
+        return new SwarmPeer(INFO_HASH, ip, 6881, endpoint, "peer-" + id, "test", "passkey", 1,
+                0, 0, seeder ? 0 : 1, seeder, false, 0, 0, 0, 0);
+    }
+
+    private static List<String> selected(PeerListSnapshot snapshot, PeerSelection selection) {
+        List<String> selected = new ArrayList<>();
+        selection.peers().forEachRange((from, to) -> {
+            for (int i = from; i < to; i++) selected.add(snapshot.getPeers()[i].peerId());
+        });
+        selection.peers6().forEachRange((from, to) -> {
+            for (int i = from; i < to; i++) selected.add(snapshot.getPeers6()[i].peerId());
+        });
+        return selected;
+    }
+
+    private static List<String> peerIds(SwarmPeer[] peers) {
+        List<String> ids = new ArrayList<>();
+        for (SwarmPeer peer : peers) ids.add(peer.peerId());
+        return ids;
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.bitsapling.sapling.tracker.swarm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeerWindowTest {
+    @Test
+    void visitsOneRangeWithoutWrap() {
+        PeerWindow window = new PeerWindow(2, 3, 10, -1);
+        assertEquals(List.of(List.of(2, 5)), ranges(window));
+        assertEquals(3, window.size());
+    }
+
+    @Test
+    void wrapsAroundTheEnd() {
+        assertEquals(List.of(List.of(8, 10), List.of(0, 2)), ranges(new PeerWindow(8, 4, 10, -1)));
+        assertEquals(List.of(List.of(0, 10)), ranges(new PeerWindow(0, 10, 10, -1)));
+        assertEquals(List.of(List.of(9, 10), List.of(0, 9)), ranges(new PeerWindow(9, 10, 10, -1)));
+    }
+
+    @Test
+    void skipsTheExcludedEntry() {
+        assertEquals(List.of(List.of(2, 3), List.of(4, 6)), ranges(new PeerWindow(2, 4, 10, 3)));
+        assertEquals(List.of(List.of(3, 5)), ranges(new PeerWindow(2, 3, 10, 2)));
+        assertEquals(List.of(List.of(2, 4)), ranges(new PeerWindow(2, 3, 10, 4)));
+        assertEquals(List.of(List.of(8, 9), List.of(0, 2)), ranges(new PeerWindow(8, 4, 10, 9)));
+        assertEquals(List.of(List.of(8, 10), List.of(1, 2)), ranges(new PeerWindow(8, 4, 10, 0)));
+        assertEquals(List.of(List.of(8, 10), List.of(0, 1)), ranges(new PeerWindow(8, 4, 10, 1)));
+        assertEquals(3, new PeerWindow(8, 4, 10, 1).size());
+    }
+
+    @Test
+    void ignoresAnExcludedEntryOutsideTheWindow() {
+        // The excluded index is only ever set inside the window, but it must not cut anything otherwise
+        assertEquals(List.of(List.of(2, 5)), ranges(new PeerWindow(2, 3, 10, 7)));
+    }
+
+    @Test
+    void isEmptyWithoutPeers() {
+        assertTrue(PeerWindow.EMPTY.isEmpty());
+        assertTrue(ranges(PeerWindow.EMPTY).isEmpty());
+        PeerWindow onlyExcluded = new PeerWindow(0, 1, 1, 0);
+        assertTrue(onlyExcluded.isEmpty());
+        assertTrue(ranges(onlyExcluded).isEmpty());
+        assertFalse(new PeerWindow(0, 1, 1, -1).isEmpty());
+    }
+
+    private static List<List<Integer>> ranges(PeerWindow window) {
+        List<List<Integer>> ranges = new ArrayList<>();
+        window.forEachRange((from, to) -> ranges.add(List.of(from, to)));
+        return ranges;
+    }
+}
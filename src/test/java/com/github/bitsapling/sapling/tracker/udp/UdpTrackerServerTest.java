@@ -0,0 +1,306 @@
+package com.github.bitsapling.sapling.tracker.udp;
+
+import cn.dev33.satoken.stp.StpLogic;
+import cn.dev33.satoken.stp.StpUtil;
+import com.github.bitsapling.sapling.autoconfig.TrackerProperties;
+import com.github.bitsapling.sapling.config.TrackerConfig;
+import com.github.bitsapling.sapling.objects.InfoHash;
+import com.github.bitsapling.sapling.service.AnnouncePerformanceMonitorService;
+import com.github.bitsapling.sapling.service.AnnounceService;
+import com.github.bitsapling.sapling.service.AuthenticationService;
+import com.github.bitsapling.sapling.service.BlacklistClientService;
+import com.github.bitsapling.sapling.service.GroupPermissionService;
+import com.github.bitsapling.sapling.service.PasskeyCacheService;
+import com.github.bitsapling.sapling.service.PeerAccessService;
+import com.github.bitsapling.sapling.service.SettingService;
+import com.github.bitsapling.sapling.service.TorrentCacheService;
+import com.github.bitsapling.sapling.service.TorrentStatsService;
+import com.github.bitsapling.sapling.tracker.swarm.InMemorySwarmRegistry;
+import com.github.bitsapling.sapling.tracker.swarm.SwarmPeer;
+import com.github.bitsapling.sapling.type.AnnounceEventType;
+import com.github.bitsapling.sapling.util.BencodeUtil;
+import com.github.bitsapling.sapling.util.HibernateSessionUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives the BEP 15 server over a real socket on the loopback interface, every collaborator but the swarm is mocked.
+ */
+class UdpTrackerServerTest {
+    private static final long PROTOCOL_ID = 0x41727101980L;
+    private static final String PASSKEY = "9b2f1a3c-5d4e-4f60-8a71-b2c3d4e5f607";
+    private static final InfoHash INFO_HASH = InfoHash.fromHex("00112233445566778899aabbccddeeff01234567");
+    private static final InfoHash UNKNOWN_HASH = InfoHash.fromHex("ffffffffffffffffffffffffffffffffffffffff");
+    private static final TorrentCacheService.TorrentSummary TORRENT =
+            new TorrentCacheService.TorrentSummary(10, INFO_HASH, 1, false, 1024);
+    private static final TorrentStatsService.PeerStatus PEER_STATUS = new TorrentStatsService.PeerStatus(3, 4, 5, 0);
+    private UdpTrackerServer server;
+    private InMemorySwarmRegistry swarmRegistry;
+    private AnnounceService announceService;
+    private TorrentCacheService torrentCacheService;
+    private GroupPermissionService groupPermissionService;
+    private StpLogic previousStpLogic;
+    private DatagramChannel client;
+    private Selector selector;
+    private InetSocketAddress serverAddress;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        TrackerProperties properties = new TrackerProperties();
+        properties.getUdp().setEnabled(true);
+        properties.getUdp().setHost("127.0.0.1");
+        properties.getUdp().setPort(0);
+        // One worker answers in the order packets are sent
+        properties.getUdp().setWorkers(1);
+        server = new UdpTrackerServer() {
+            @Override
+            boolean isReachable(String ip) {
+                return true;
+            }
+        };
+        swarmRegistry = new InMemorySwarmRegistry();
+        ReflectionTestUtils.setField(swarmRegistry, "trackerProperties", properties);
+        announceService = mock(AnnounceService.class);
+        torrentCacheService = mock(TorrentCacheService.class);
+        groupPermissionService = mock(GroupPermissionService.class);
+        AuthenticationService authenticationService = mock(AuthenticationService.class);
+        TorrentStatsService torrentStatsService = mock(TorrentStatsService.class);
+        SettingService settingService = mock(SettingService.class);
+        PeerAccessService peerAccessService = mock(PeerAccessService.class);
+        when(authenticationService.authenticatePasskey(eq(PASSKEY), anyString(), anyString()))
+                .thenReturn(new PasskeyCacheService.PasskeyIdentity(1, 2));
+        when(groupPermissionService.hasPermission(anyLong(), anyString())).thenReturn(true);
+        // Same permission logic as SaTokenConfig installs
+        previousStpLogic = StpUtil.getStpLogic();
+        StpUtil.setStpLogic(new StpLogic(StpUtil.TYPE) {
+            @Override
+            public boolean hasPermission(Object loginId, String permission) {
+                return groupPermissionService.hasPermission(Long.parseLong(String.valueOf(loginId)), permission);
+            }
+        });
+        when(torrentCacheService.get(INFO_HASH)).thenReturn(TORRENT);
+        when(torrentCacheService.getAll(anyCollection())).thenReturn(Map.of(INFO_HASH, TORRENT));
+        when(torrentStatsService.getPeerStatus(TORRENT.id(), INFO_HASH)).thenReturn(PEER_STATUS);
+        when(torrentStatsService.getPeerStatuses(anyCollection())).thenReturn(Map.of(TORRENT.id(), PEER_STATUS));
+        when(settingService.get(TrackerConfig.getConfigKey(), TrackerConfig.class)).thenReturn(TrackerConfig.spawnDefault());
+        when(peerAccessService.isAddressAllowed(any(InetAddress.class))).thenReturn(true);
+        when(peerAccessService.isPortAllowed(6881)).thenReturn(true);
+        ReflectionTestUtils.setField(server, "trackerProperties", properties);
+        ReflectionTestUtils.setField(server, "authenticationService", authenticationService);
+        ReflectionTestUtils.setField(server, "torrentCacheService", torrentCacheService);
+        ReflectionTestUtils.setField(server, "announceService", announceService);
+        ReflectionTestUtils.setField(server, "swarmRegistry", swarmRegistry);
+        ReflectionTestUtils.setField(server, "torrentStatsService", torrentStatsService);
+        ReflectionTestUtils.setField(server, "settingService", settingService);
+        ReflectionTestUtils.setField(server, "blacklistClientService", mock(BlacklistClientService.class));
+        ReflectionTestUtils.setField(server, "peerAccessService", peerAccessService);
+        ReflectionTestUtils.setField(server, "performanceMonitorService", mock(AnnouncePerformanceMonitorService.class));
+        ReflectionTestUtils.setField(server, "sessionUtil", mock(HibernateSessionUtil.class));
+        server.start();
+        DatagramChannel channel = (DatagramChannel) ReflectionTestUtils.getField(server, "channel");
+        assertNotNull(channel);
+        serverAddress = (InetSocketAddress) channel.getLocalAddress();
+
+        client = DatagramChannel.open();
+        client.bind(new InetSocketAddress("127.0.0.1", 0));
+        client.configureBlocking(false);
+        selector = Selector.open();
+        client.register(selector, SelectionKey.OP_READ);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.shutdown();
+        StpUtil.setStpLogic(previousStpLogic);
+        selector.close();
+        client.close();
+    }
+
+    @Test
+    void connectsAndAnnouncesWithThePasskeyInUrlData() throws Exception {
+        byte[] endpoint = BencodeUtil.compactEndpoint("10.0.0.2", 6881);
+        assertNotNull(endpoint);
+        swarmRegistry.putPeer(new SwarmPeer(INFO_HASH, "10.0.0.2", 6881, endpoint, "-TR4050-000000000000", "",
+                "other", 3, 0, 0, 0, true, false, System.currentTimeMillis(), 0, 0, 0));
+        long connectionId = connect(1);
+
+        send(announce(connectionId, 2, "/announce?passkey=" + PASSKEY));
+        ByteBuffer response = receive();
+        assertEquals(1, response.getInt());
+        assertEquals(2, response.getInt());
+        TrackerConfig trackerConfig = TrackerConfig.spawnDefault();
+        int interval = response.getInt();
+        assertTrue(interval >= trackerConfig.getTorrentIntervalMin() && interval < trackerConfig.getTorrentIntervalMax());
+        assertEquals(PEER_STATUS.incomplete(), response.getInt());
+        assertEquals(PEER_STATUS.complete(), response.getInt());
+        assertEquals(6, response.remaining());
+        byte[] peer = new byte[6];
+        response.get(peer);
+        assertEquals(ByteBuffer.wrap(endpoint), ByteBuffer.wrap(peer));
+
+        ArgumentCaptor<AnnounceService.AnnounceTask> task = ArgumentCaptor.forClass(AnnounceService.AnnounceTask.class);
+        verify(announceService).schedule(task.capture());
+        assertEquals(PASSKEY, task.getValue().passKey());
+        assertEquals(INFO_HASH, task.getValue().infoHash());
+        assertEquals("-qB4650-123456789012", task.getValue().peerId());
+        assertEquals("127.0.0.1", task.getValue().ip());
+        assertEquals(6881, task.getValue().port());
+        assertEquals(100, task.getValue().left());
+        assertEquals(AnnounceEventType.STARTED, task.getValue().event());
+        assertEquals(1, task.getValue().userId());
+        assertEquals(2, task.getValue().groupId());
+        assertEquals(TORRENT.id(), task.getValue().torrentId());
+    }
+
+    @Test
+    void findsThePasskeyAsPathSegment() throws Exception {
+        long connectionId = connect(1);
+        send(announce(connectionId, 2, "/" + PASSKEY + "/announce"));
+        ByteBuffer response = receive();
+        assertEquals(1, response.getInt());
+        verify(announceService).schedule(any());
+    }
+
+    @Test
+    void refusesAnnouncesWithoutPasskey() throws Exception {
+        long connectionId = connect(1);
+        send(announce(connectionId, 2, "/announce"));
+        assertError(receive(), 2, "Invalid passkey.");
+        verify(announceService, never()).schedule(any());
+    }
+
+    @Test
+    void scrapesAfterAnAnnounce() throws Exception {
+        long connectionId = connect(1);
+        send(announce(connectionId, 2, "/announce?passkey=" + PASSKEY));
+        assertEquals(1, receive().getInt());
+
+        ByteBuffer scrape = ByteBuffer.allocate(16 + 2 * InfoHash.LENGTH);
+        scrape.putLong(connectionId).putInt(2).putInt(3);
+        scrape.put(INFO_HASH.toByteArray()).put(UNKNOWN_HASH.toByteArray());
+        send(scrape.flip());
+        ByteBuffer response = receive();
+        assertEquals(2, response.getInt());
+        assertEquals(3, response.getInt());
+        assertEquals(PEER_STATUS.complete(), response.getInt());
+        assertEquals(PEER_STATUS.downloaded(), response.getInt());
+        assertEquals(PEER_STATUS.incomplete(), response.getInt());
+        // Unknown torrents keep their position with zeros
+        assertEquals(0, response.getInt());
+        assertEquals(0, response.getInt());
+        assertEquals(0, response.getInt());
+        assertEquals(0, response.remaining());
+        verify(groupPermissionService).hasPermission(1, "torrent:scrape");
+    }
+
+    @Test
+    void refusesScrapesFromAddressesWhichNeverAnnounced() throws Exception {
+        long connectionId = connect(1);
+        ByteBuffer scrape = ByteBuffer.allocate(16 + InfoHash.LENGTH);
+        scrape.putLong(connectionId).putInt(2).putInt(4).put(INFO_HASH.toByteArray());
+        send(scrape.flip());
+        assertError(receive(), 4, "Unauthorized, announce with your passkey first");
+        verify(torrentCacheService, never()).getAll(anyCollection());
+    }
+
+    @Test
+    void rejectsExpiredConnectionIds() throws Exception {
+        InetSocketAddress clientAddress = (InetSocketAddress) client.getLocalAddress();
+        // Ids are valid for the current and the previous minute only
+        long expired = ReflectionTestUtils.invokeMethod(server, "connectionId", clientAddress,
+                System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(3));
+        send(announce(expired, 5, "/announce?passkey=" + PASSKEY));
+        assertError(receive(), 5, "Connection id expired");
+        verify(announceService, never()).schedule(any());
+    }
+
+    @Test
+    void ignoresShortAndForeignPackets() throws Exception {
+        send(ByteBuffer.wrap(new byte[10]));
+        // A connect without the protocol id isn't BEP 15
+        send(ByteBuffer.allocate(16).putLong(42).putInt(0).putInt(6).flip());
+        // Only the valid connect is answered
+        connect(7);
+    }
+
+    @Test
+    void rejectsTruncatedAnnounces() throws Exception {
+        long connectionId = connect(1);
+        ByteBuffer truncated = announce(connectionId, 8, "/announce?passkey=" + PASSKEY);
+        truncated.limit(60);
+        send(truncated);
+        assertError(receive(), 8, "Malformed announce packet");
+    }
+
+    private long connect(int transactionId) throws IOException {
+        send(ByteBuffer.allocate(16).putLong(PROTOCOL_ID).putInt(0).putInt(transactionId).flip());
+        ByteBuffer response = receive();
+        assertEquals(16, response.remaining());
+        assertEquals(0, response.getInt());
+        assertEquals(transactionId, response.getInt());
+        return response.getLong();
+    }
+
+    private static ByteBuffer announce(long connectionId, int transactionId, String urlData) {
+        byte[] url = urlData.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer packet = ByteBuffer.allocate(98 + 3 + url.length);
+        packet.putLong(connectionId).putInt(1).putInt(transactionId);
+        packet.put(INFO_HASH.toByteArray());
+        packet.put("-qB4650-123456789012".getBytes(StandardCharsets.ISO_8859_1));
+        // downloaded, left, uploaded, event (started), ip, key, num_want, port
+        packet.putLong(0).putLong(100).putLong(0).putInt(2).putInt(0).putInt(0).putInt(-1).putShort((short) 6881);
+        // BEP 41 URL data option, then end of options
+        packet.put((byte) 2).put((byte) url.length).put(url).put((byte) 0);
+        return packet.flip();
+    }
+
+    private void send(ByteBuffer packet) throws IOException {
+        client.send(packet, serverAddress);
+    }
+
+    private ByteBuffer receive() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (System.currentTimeMillis() < deadline) {
+            selector.select(Math.max(1, deadline - System.currentTimeMillis()));
+            selector.selectedKeys().clear();
+            if (client.receive(buffer) != null) return buffer.flip();
+        }
+        throw new AssertionError("No response from the UDP tracker");
+    }
+
+    private static void assertError(ByteBuffer response, int transactionId, String message) {
+        assertEquals(3, response.getInt());
+        assertEquals(transactionId, response.getInt());
+        byte[] text = new byte[response.remaining()];
+        response.get(text);
+        assertEquals(message, new String(text, StandardCharsets.UTF_8));
+    }
+}
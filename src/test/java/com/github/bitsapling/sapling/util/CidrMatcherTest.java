@@ -0,0 +1,97 @@
+package com.github.bitsapling.sapling.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CidrMatcherTest {
+    @Test
+    void matchesIpv4Ranges() {
+        CidrMatcher matcher = CidrMatcher.compile(List.of("10.0.0.0/8", "192.168.1.0/24", "172.16.5.4"));
+        assertTrue(matcher.matches("10.0.0.0"));
+        assertTrue(matcher.matches("10.255.255.255"));
+        assertFalse(matcher.matches("11.0.0.0"));
+        assertFalse(matcher.matches("9.255.255.255"));
+        assertTrue(matcher.matches("192.168.1.77"));
+        assertFalse(matcher.matches("192.168.2.1"));
+        assertTrue(matcher.matches("172.16.5.4"));
+        assertFalse(matcher.matches("172.16.5.5"));
+    }
+
+    @Test
+    void matchesIpv6Ranges() {
+        CidrMatcher matcher = CidrMatcher.compile(List.of("2001:db8::/32", "::1"));
+        assertTrue(matcher.matches("2001:db8::1"));
+        assertTrue(matcher.matches("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(matcher.matches("2001:db9::"));
+        assertTrue(matcher.matches("::1"));
+        assertFalse(matcher.matches("::2"));
+        // Families are kept apart, 0.0.0.1 isn't ::1
+        assertFalse(matcher.matches("0.0.0.1"));
+    }
+
+    @Test
+    void handlesPrefixBoundaries() {
+        CidrMatcher all = CidrMatcher.compile(List.of("0.0.0.0/0"));
+        assertTrue(all.matches("1.2.3.4"));
+        assertTrue(all.matches("255.255.255.255"));
+        assertFalse(all.matches("::1"));
+        CidrMatcher odd = CidrMatcher.compile(List.of("10.0.0.128/25"));
+        assertTrue(odd.matches("10.0.0.128"));
+        assertTrue(odd.matches("10.0.0.255"));
+        assertFalse(odd.matches("10.0.0.127"));
+    }
+
+    @Test
+    void keepsTheWiderOfNestedRanges() {
+        // The narrower range inserted first must not shadow the wider one, nor the other way round
+        CidrMatcher narrowFirst = CidrMatcher.compile(List.of("10.1.0.0/16", "10.0.0.0/8"));
+        CidrMatcher wideFirst = CidrMatcher.compile(List.of("10.0.0.0/8", "10.1.0.0/16"));
+        for (CidrMatcher matcher : List.of(narrowFirst, wideFirst)) {
+            assertTrue(matcher.matches("10.1.2.3"));
+            assertTrue(matcher.matches("10.2.3.4"));
+            assertFalse(matcher.matches("11.1.2.3"));
+        }
+    }
+
+    @Test
+    void skipsInvalidEntries() {
+        List<String> ranges = new ArrayList<>(List.of("example.com", "10.0.0.0/33", "10.0.0.0/x", "10.0.0.0/-1",
+                "::/129", "", "  192.168.0.0/16  "));
+        ranges.add(null);
+        CidrMatcher matcher = CidrMatcher.compile(ranges);
+        assertFalse(matcher.isEmpty());
+        assertTrue(matcher.matches("192.168.3.4"));
+        assertFalse(matcher.matches("10.0.0.1"));
+        assertFalse(matcher.matches("example.com"));
+        assertFalse(matcher.matches("not an ip"));
+    }
+
+    @Test
+    void isEmptyWithoutRanges() {
+        assertTrue(CidrMatcher.compile(null).isEmpty());
+        assertTrue(CidrMatcher.compile(List.of()).isEmpty());
+        assertTrue(CidrMatcher.compile(List.of("invalid")).isEmpty());
+        assertFalse(CidrMatcher.compile(List.of()).matches("10.0.0.1"));
+    }
+
+    @Test
+    void growsPastTheInitialCapacity() throws Exception {
+        List<String> ranges = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            ranges.add("10." + i + ".0.0/16");
+        }
+        CidrMatcher matcher = CidrMatcher.compile(ranges);
+        for (int i = 0; i < 256; i++) {
+            assertTrue(matcher.matches("10." + i + ".1.1"));
+        }
+        assertFalse(matcher.matches("11.0.0.1"));
+        assertTrue(matcher.matches(InetAddress.getByName("10.200.0.1")));
+        assertTrue(matcher.matches(new byte[]{10, 7, 0, 1}));
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.bitsapling.sapling.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IPUtilTest {
+    private static final CidrMatcher PROXIES = CidrMatcher.compile(List.of("127.0.0.1", "10.0.0.0/8"));
+
+    @Test
+    void ignoresHeadersFromUntrustedPeers() {
+        assertEquals("203.0.113.7", IPUtil.getClientIp("203.0.113.7", "198.51.100.1", "198.51.100.2", PROXIES));
+        assertEquals("203.0.113.7", IPUtil.getClientIp("203.0.113.7", null, "10.0.0.1", CidrMatcher.compile(null)));
+    }
+
+    @Test
+    void takesTheRightMostUntrustedHop() {
+        // The left-most entry is whatever the client sent, the proxy appended the real one
+        assertEquals("198.51.100.9", IPUtil.getClientIp("127.0.0.1", null, "1.2.3.4, 198.51.100.9", PROXIES));
+        assertEquals("198.51.100.9", IPUtil.getClientIp("127.0.0.1", null, "1.2.3.4,198.51.100.9, 10.1.2.3", PROXIES));
+        assertEquals("198.51.100.9", IPUtil.getClientIp("127.0.0.1", "1.2.3.4", "198.51.100.9", PROXIES));
+    }
+
+    @Test
+    void stopsAtMalformedHops() {
+        assertEquals("10.1.2.3", IPUtil.getClientIp("127.0.0.1", null, "198.51.100.9, unknown, 10.1.2.3", PROXIES));
+        assertEquals("127.0.0.1", IPUtil.getClientIp("127.0.0.1", null, "not an ip", PROXIES));
+        // Only proxies in the chain, the first one is all there is
+        assertEquals("10.0.0.5", IPUtil.getClientIp("127.0.0.1", null, "10.0.0.5, 10.0.0.6", PROXIES));
+    }
+
+    @Test
+    void fallsBackToRealIp() {
+        assertEquals("198.51.100.9", IPUtil.getClientIp("127.0.0.1", " 198.51.100.9 ", null, PROXIES));
+        assertEquals("127.0.0.1", IPUtil.getClientIp("127.0.0.1", "example.com", null, PROXIES));
+        assertEquals("127.0.0.1", IPUtil.getClientIp("127.0.0.1", null, null, PROXIES));
+    }
+
+    @Test
+    void acceptsOnlyReachableLiterals() {
+        assertTrue(IPUtil.isPublicAddress("198.51.100.9"));
+        assertTrue(IPUtil.isPublicAddress("2001:4860::1"));
+        assertFalse(IPUtil.isPublicAddress("10.0.0.1"));
+        assertFalse(IPUtil.isPublicAddress("127.0.0.1"));
+        assertFalse(IPUtil.isPublicAddress("fe80::1"));
+        assertFalse(IPUtil.isPublicAddress("example.com"));
+    }
+}
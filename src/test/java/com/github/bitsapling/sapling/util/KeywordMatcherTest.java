@@ -0,0 +1,55 @@
+package com.github.bitsapling.sapling.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeywordMatcherTest {
+    @Test
+    void findsKeywordsAnywhere() {
+        KeywordMatcher matcher = KeywordMatcher.compile(List.of("mozilla", "chrome", "safari"));
+        assertTrue(matcher.matches("Mozilla/5.0 (Windows NT 10.0)"));
+        assertTrue(matcher.matches("AppleWebKit/537.36 Chrome/120.0"));
+        assertTrue(matcher.matches("xsafari"));
+        assertFalse(matcher.matches("qBittorrent/4.6.0"));
+        assertFalse(matcher.matches("chrom"));
+        assertFalse(matcher.matches(""));
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    void ignoresCase() {
+        KeywordMatcher matcher = KeywordMatcher.compile(List.of("QBitTorrent"));
+        assertTrue(matcher.matches("qbittorrent/4.6.0"));
+        assertTrue(matcher.matches("QBITTORRENT/4.6.0"));
+    }
+
+    @Test
+    void followsFailureLinks() {
+        // The text leaves "abcd" at its last char, where "bce" must still be found through the failure link
+        KeywordMatcher matcher = KeywordMatcher.compile(List.of("abcd", "bce"));
+        assertTrue(matcher.matches("abce"));
+        assertFalse(matcher.matches("abcx"));
+        // A keyword inside another one ends on the longer path
+        KeywordMatcher nested = KeywordMatcher.compile(List.of("transmission", "miss"));
+        assertTrue(nested.matches("transmiss"));
+        // Overlapping prefixes of a repeated char
+        KeywordMatcher repeated = KeywordMatcher.compile(List.of("aab"));
+        assertTrue(repeated.matches("aaab"));
+        assertFalse(repeated.matches("abab"));
+    }
+
+    @Test
+    void isEmptyWithoutKeywords() {
+        List<String> blank = new ArrayList<>(Arrays.asList("", "  "));
+        blank.add(null);
+        assertFalse(KeywordMatcher.compile(null).matches("anything"));
+        assertFalse(KeywordMatcher.compile(List.of()).matches("anything"));
+        assertFalse(KeywordMatcher.compile(blank).matches("  anything  "));
+    }
+}